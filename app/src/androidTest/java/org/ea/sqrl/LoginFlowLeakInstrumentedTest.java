@@ -0,0 +1,185 @@
+package org.ea.sqrl;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.runner.lifecycle.ActivityLifecycleMonitorRegistry;
+import android.support.test.runner.lifecycle.Stage;
+
+import org.ea.sqrl.activites.CPSMissingActivity;
+import org.ea.sqrl.activites.LoginActivity;
+import org.ea.sqrl.processors.CommunicationFlowHandler;
+import org.ea.sqrl.processors.ReplayTransport;
+import org.ea.sqrl.processors.SQRLSession;
+import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.processors.SecretArena;
+import org.ea.sqrl.utils.EncryptionUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.support.test.espresso.Espresso.onView;
+import static android.support.test.espresso.action.ViewActions.click;
+import static android.support.test.espresso.matcher.ViewMatchers.withId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs replayed logins over and over, each ending with the done action closing the screens,
+ * and checks that none of them is kept alive by the flow handler, the CPS server or an open
+ * session, and that the heap stays flat.
+ *
+ * @author Daniel Persson
+ */
+@RunWith(AndroidJUnit4.class)
+public class LoginFlowLeakInstrumentedTest {
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int ROUNDS = 15;
+    private static final long MAX_HEAP_GROWTH = 2 * 1024 * 1024;
+    private static final long FLOW_TIMEOUT_MS = 10000;
+
+    @Rule
+    public ActivityTestRule<LoginActivity> loginActivityTestRule =
+            new ActivityTestRule<>(LoginActivity.class, true, false);
+
+    @Rule
+    public ActivityTestRule<CPSMissingActivity> cpsMissingActivityTestRule =
+            new ActivityTestRule<>(CPSMissingActivity.class, true, false);
+
+    private static String[] exchange(String nut, String response) throws Exception {
+        String body = "ver=1\r\nnut=" + nut + "\r\n" + response;
+        return new String[] {
+                "https://example.com/sqrl?nut=" + nut,
+                "",
+                EncryptionUtils.encodeUrlSafe(body.getBytes(StandardCharsets.UTF_8))
+        };
+    }
+
+    /**
+     * Gives the storage identity keys without running a KDF, the done action clears them
+     * again after every login.
+     */
+    private static void unlockTestIdentity(Context context) throws Exception {
+        byte[] unlockKey = new byte[32];
+        new SecureRandom().nextBytes(unlockKey);
+
+        SQRLStorage storage = SQRLStorage.getInstance(context);
+        Field rescueKey = SQRLStorage.class.getDeclaredField("rescueIdentityUnlockKey");
+        rescueKey.setAccessible(true);
+        rescueKey.set(storage, SecretArena.getInstance().wrap(unlockKey));
+        storage.reInitializeMasterKeyIdentity();
+    }
+
+    private static void waitUntilDestroyed(Activity activity) throws InterruptedException {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        long deadline = SystemClock.uptimeMillis() + FLOW_TIMEOUT_MS;
+        Stage[] stage = new Stage[1];
+        do {
+            Thread.sleep(50);
+            instrumentation.runOnMainSync(() -> stage[0] =
+                    ActivityLifecycleMonitorRegistry.getInstance().getLifecycleStageOf(activity));
+        } while (stage[0] != Stage.DESTROYED && SystemClock.uptimeMillis() < deadline);
+        assertEquals("Login screen was not closed by the done action", Stage.DESTROYED, stage[0]);
+    }
+
+    /**
+     * Opens a session from a login screen and continues it from the CPS missing screen, the
+     * way a login started from the browser does when no browser answers the CPS probe.
+     */
+    private List<WeakReference<Activity>> runLoginFlow() throws Exception {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context targetContext = instrumentation.getTargetContext();
+        unlockTestIdentity(targetContext);
+
+        Intent loginIntent = new Intent(targetContext, LoginActivity.class);
+        loginIntent.putExtra("RUNNING_TEST", true);
+        LoginActivity loginActivity = loginActivityTestRule.launchActivity(loginIntent);
+
+        SQRLSession[] session = new SQRLSession[1];
+        instrumentation.runOnMainSync(() ->
+                session[0] = SQRLSession.open(loginActivity, new Handler(Looper.getMainLooper())));
+        session[0].acquireIdentity();
+
+        ReplayTransport transport = new ReplayTransport(Arrays.asList(
+                exchange("1", "tif=5\r\nqry=/sqrl?nut=2\r\n"),
+                exchange("2", "tif=5\r\nqry=/sqrl?nut=3\r\n")
+        ), 0);
+        session[0].getCommHandler().setTransport(transport);
+
+        CommunicationFlowHandler flowHandler = session[0].getFlowHandler();
+        flowHandler.setServerData("sqrl://example.com/sqrl?nut=1");
+        flowHandler.setUseSSL(true);
+        flowHandler.setQueryLink("/sqrl?nut=1");
+        flowHandler.setDomain("example.com", "/sqrl?nut=1");
+        flowHandler.addAction(CommunicationFlowHandler.Action.QUERY_WITHOUT_SUK_QRCODE);
+        flowHandler.addAction(CommunicationFlowHandler.Action.LOGIN);
+
+        Intent cpsMissingIntent = new Intent(targetContext, CPSMissingActivity.class);
+        cpsMissingIntent.putExtra(SQRLSession.EXTRA_SESSION_ID, session[0].getId());
+        CPSMissingActivity cpsMissingActivity = cpsMissingActivityTestRule.launchActivity(cpsMissingIntent);
+
+        onView(withId(R.id.btnCPSContinue)).perform(click());
+
+        // The done action closes the whole task, taking the login screen along
+        waitUntilDestroyed(cpsMissingActivity);
+        waitUntilDestroyed(loginActivity);
+        assertEquals(CommunicationFlowHandler.State.DONE, flowHandler.getState());
+        assertEquals(0, transport.getRemainingExchanges());
+        session[0].close();
+
+        return Arrays.asList(
+                new WeakReference<>(loginActivity),
+                new WeakReference<>(cpsMissingActivity));
+    }
+
+    private List<WeakReference<Activity>> runLoginFlows(int rounds) throws Exception {
+        List<WeakReference<Activity>> activities = new ArrayList<>();
+        for (int i = 0; i < rounds; i++) {
+            activities.addAll(runLoginFlow());
+        }
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        return activities;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            System.runFinalization();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void finishedLoginScreensAreNotRetained() throws Exception {
+        runLoginFlows(WARM_UP_ROUNDS);
+        long baseline = usedHeapAfterGc();
+
+        List<WeakReference<Activity>> activities = runLoginFlows(ROUNDS);
+        long used = usedHeapAfterGc();
+
+        // The last screens can still be referenced by the framework for a moment
+        for (WeakReference<Activity> activity : activities.subList(0, activities.size() - 2)) {
+            assertNull("Finished screen was retained", activity.get());
+        }
+        assertTrue("Heap grew by " + (used - baseline) + " bytes",
+                used - baseline < MAX_HEAP_GROWTH);
+    }
+}
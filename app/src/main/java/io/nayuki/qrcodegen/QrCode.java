@@ -24,10 +24,18 @@
 package io.nayuki.qrcodegen;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -250,10 +258,42 @@ public final class QrCode {
     }
 
 
+    /**
+     * Draws this QR Code as vector shapes onto the specified canvas, without any border, with its top left
+     * corner at (left, top). Horizontally adjacent black modules are merged into a single rectangle, so a
+     * PDF or print canvas gets a few hundred sharp rectangles instead of a scaled bitmap.
+     * @param canvas the canvas to draw on
+     * @param left the x coordinate of the left edge of the symbol
+     * @param top the y coordinate of the top edge of the symbol
+     * @param moduleSize the width and height of each module, which must be positive
+     * @param paint the paint to fill the black modules with
+     * @throws IllegalArgumentException if the module size is out of range
+     */
+    public void draw(Canvas canvas, float left, float top, float moduleSize, Paint paint) {
+        if (moduleSize <= 0)
+            throw new IllegalArgumentException("Module size must be positive");
+        Path path = new Path();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; ) {
+                int run = getRunLength(x, y);
+                if (run == 0) {
+                    x++;
+                    continue;
+                }
+                path.addRect(left + x * moduleSize, top + y * moduleSize,
+                        left + (x + run) * moduleSize, top + (y + 1) * moduleSize, Path.Direction.CW);
+                x += run;
+            }
+        }
+        canvas.drawPath(path, paint);
+    }
+
+
     /**
      * Based on the specified number of border modules to add as padding, this returns a
      * string whose contents represents an SVG XML file that depicts this QR Code symbol.
      * Note that Unix newlines (\n) are always used, regardless of the platform.
+     * Horizontally adjacent black modules are merged into one subpath each.
      * @param border the number of border modules to add, which must be non-negative
      * @return a string representing this QR Code as an SVG document
      */
@@ -269,15 +309,20 @@ public final class QrCode {
         sb.append("\t<rect width=\"100%\" height=\"100%\" fill=\"#FFFFFF\"/>\n");
         sb.append("\t<path d=\"");
         boolean head = true;
-        for (int y = -border; y < size + border; y++) {
-            for (int x = -border; x < size + border; x++) {
-                if (getModule(x, y)) {
-                    if (head)
-                        head = false;
-                    else
-                        sb.append(" ");
-                    sb.append(String.format(Locale.US, "M%d,%dh1v1h-1z", x + border, y + border));
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; ) {
+                int run = getRunLength(x, y);
+                if (run == 0) {
+                    x++;
+                    continue;
                 }
+                if (head)
+                    head = false;
+                else
+                    sb.append(" ");
+                sb.append('M').append(x + border).append(',').append(y + border)
+                        .append('h').append(run).append("v1h-").append(run).append('z');
+                x += run;
             }
         }
         sb.append("\" fill=\"#000000\"/>\n");
@@ -287,6 +332,16 @@ public final class QrCode {
 	
 	
 	
+    // Returns the number of black modules in a row starting at (x, y), which is 0 if that module is white.
+    private int getRunLength(int x, int y) {
+        int end = x;
+        while (end < size && modules[y][end])
+            end++;
+        return end - x;
+    }
+	
+	
+	
 	/*---- Private helper methods for constructor: Drawing function modules ----*/
 
     private void drawFunctionPatterns() {
@@ -322,6 +377,12 @@ public final class QrCode {
     // Draws two copies of the format bits (with its own error correction code)
     // based on the given mask and this object's error correction level field.
     private void drawFormatBits(int mask) {
+        drawFormatBits(mask, null);
+    }
+
+
+    // Same as above, but onto the given packed grid instead of this object's modules when it is not null.
+    private void drawFormatBits(int mask, PackedGrid grid) {
         // Calculate error correction code and pack bits
         int data = errorCorrectionLevel.formatBits << 3 | mask;  // errCorrLvl is uint2, mask is uint3
         int rem = data;
@@ -334,19 +395,27 @@ public final class QrCode {
 
         // Draw first copy
         for (int i = 0; i <= 5; i++)
-            setFunctionModule(8, i, ((data >>> i) & 1) != 0);
-        setFunctionModule(8, 7, ((data >>> 6) & 1) != 0);
-        setFunctionModule(8, 8, ((data >>> 7) & 1) != 0);
-        setFunctionModule(7, 8, ((data >>> 8) & 1) != 0);
+            setFormatModule(grid, 8, i, ((data >>> i) & 1) != 0);
+        setFormatModule(grid, 8, 7, ((data >>> 6) & 1) != 0);
+        setFormatModule(grid, 8, 8, ((data >>> 7) & 1) != 0);
+        setFormatModule(grid, 7, 8, ((data >>> 8) & 1) != 0);
         for (int i = 9; i < 15; i++)
-            setFunctionModule(14 - i, 8, ((data >>> i) & 1) != 0);
+            setFormatModule(grid, 14 - i, 8, ((data >>> i) & 1) != 0);
 
         // Draw second copy
         for (int i = 0; i <= 7; i++)
-            setFunctionModule(size - 1 - i, 8, ((data >>> i) & 1) != 0);
+            setFormatModule(grid, size - 1 - i, 8, ((data >>> i) & 1) != 0);
         for (int i = 8; i < 15; i++)
-            setFunctionModule(8, size - 15 + i, ((data >>> i) & 1) != 0);
-        setFunctionModule(8, size - 8, true);
+            setFormatModule(grid, 8, size - 15 + i, ((data >>> i) & 1) != 0);
+        setFormatModule(grid, 8, size - 8, true);
+    }
+
+
+    private void setFormatModule(PackedGrid grid, int x, int y, boolean isBlack) {
+        if (grid == null)
+            setFunctionModule(x, y, isBlack);
+        else
+            grid.set(x, y, isBlack);
     }
 
 
@@ -484,21 +553,24 @@ public final class QrCode {
         if (mask < 0 || mask > 7)
             throw new IllegalArgumentException("Mask value out of range");
         for (int y = 0; y < size; y++) {
-            for (int x = 0; x < size; x++) {
-                boolean invert;
-                switch (mask) {
-                    case 0:  invert = (x + y) % 2 == 0;                    break;
-                    case 1:  invert = y % 2 == 0;                          break;
-                    case 2:  invert = x % 3 == 0;                          break;
-                    case 3:  invert = (x + y) % 3 == 0;                    break;
-                    case 4:  invert = (x / 3 + y / 2) % 2 == 0;            break;
-                    case 5:  invert = x * y % 2 + x * y % 3 == 0;          break;
-                    case 6:  invert = (x * y % 2 + x * y % 3) % 2 == 0;    break;
-                    case 7:  invert = ((x + y) % 2 + x * y % 3) % 2 == 0;  break;
-                    default:  throw new AssertionError();
-                }
-                modules[y][x] ^= invert & !isFunction[y][x];
-            }
+            for (int x = 0; x < size; x++)
+                modules[y][x] ^= getMaskBit(mask, x, y) & !isFunction[y][x];
+        }
+    }
+
+
+    // Returns whether the given mask pattern inverts the module at the given coordinates.
+    private static boolean getMaskBit(int mask, int x, int y) {
+        switch (mask) {
+            case 0:  return (x + y) % 2 == 0;
+            case 1:  return y % 2 == 0;
+            case 2:  return x % 3 == 0;
+            case 3:  return (x + y) % 3 == 0;
+            case 4:  return (x / 3 + y / 2) % 2 == 0;
+            case 5:  return x * y % 2 + x * y % 3 == 0;
+            case 6:  return (x * y % 2 + x * y % 3) % 2 == 0;
+            case 7:  return ((x + y) % 2 + x * y % 3) % 2 == 0;
+            default:  throw new AssertionError();
         }
     }
 
@@ -508,16 +580,13 @@ public final class QrCode {
     // This method applies and returns the actual mask chosen, from 0 to 7.
     private int handleConstructorMasking(int mask) {
         if (mask == -1) {  // Automatically choose best mask
+            int[] penalties = getMaskPenaltyScores();
             int minPenalty = Integer.MAX_VALUE;
             for (int i = 0; i < 8; i++) {
-                drawFormatBits(i);
-                applyMask(i);
-                int penalty = getPenaltyScore();
-                if (penalty < minPenalty) {
+                if (penalties[i] < minPenalty) {
                     mask = i;
-                    minPenalty = penalty;
+                    minPenalty = penalties[i];
                 }
-                applyMask(i);  // Undoes the mask due to XOR
             }
         }
         if (mask < 0 || mask > 7)
@@ -528,85 +597,66 @@ public final class QrCode {
     }
 
 
-    // Calculates and returns the penalty score based on state of this QR Code's current modules.
-    // This is used by the automatic mask choice algorithm to find the mask pattern that yields the lowest score.
-    private int getPenaltyScore() {
-        int result = 0;
+    // Returns the penalty score of each of the 8 masks. Each mask is tried on its own bit-packed copy of
+    // the unmasked modules, so for the larger versions they are scored in parallel.
+    private int[] getMaskPenaltyScores() {
+        final PackedGrid unmasked = new PackedGrid(modules);
+        final PackedGrid function = new PackedGrid(isFunction);
+        int[] result = new int[8];
 
-        // Adjacent modules in row having same color
-        for (int y = 0; y < size; y++) {
-            boolean colorX = false;
-            for (int x = 0, runX = 0; x < size; x++) {
-                if (x == 0 || modules[y][x] != colorX) {
-                    colorX = modules[y][x];
-                    runX = 1;
-                } else {
-                    runX++;
-                    if (runX == 5)
-                        result += PENALTY_N1;
-                    else if (runX > 5)
-                        result++;
-                }
-            }
-        }
-        // Adjacent modules in column having same color
-        for (int x = 0; x < size; x++) {
-            boolean colorY = false;
-            for (int y = 0, runY = 0; y < size; y++) {
-                if (y == 0 || modules[y][x] != colorY) {
-                    colorY = modules[y][x];
-                    runY = 1;
-                } else {
-                    runY++;
-                    if (runY == 5)
-                        result += PENALTY_N1;
-                    else if (runY > 5)
-                        result++;
-                }
-            }
+        ExecutorService executor = version >= PARALLEL_MASKING_MIN_VERSION ? getMaskingExecutor() : null;
+        if (executor == null) {
+            for (int i = 0; i < 8; i++)
+                result[i] = getMaskPenaltyScore(unmasked, function, i);
+            return result;
         }
 
-        // 2*2 blocks of modules having same color
-        for (int y = 0; y < size - 1; y++) {
-            for (int x = 0; x < size - 1; x++) {
-                boolean color = modules[y][x];
-                if (  color == modules[y][x + 1] &&
-                        color == modules[y + 1][x] &&
-                        color == modules[y + 1][x + 1])
-                    result += PENALTY_N2;
+        List<Future<Integer>> futures = new ArrayList<>(8);
+        for (int i = 0; i < 8; i++) {
+            final int mask = i;
+            futures.add(executor.submit(() -> getMaskPenaltyScore(unmasked, function, mask)));
+        }
+        for (int i = 0; i < 8; i++) {
+            try {
+                result[i] = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result[i] = getMaskPenaltyScore(unmasked, function, i);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
         }
+        return result;
+    }
+
 
-        // Finder-like pattern in rows
+    // Calculates the penalty score of the given mask applied to a copy of the given unmasked modules.
+    private int getMaskPenaltyScore(PackedGrid unmasked, PackedGrid function, int mask) {
+        PackedGrid grid = unmasked.copy();
+        long[][] pattern = MASK_PATTERNS[mask];
         for (int y = 0; y < size; y++) {
-            for (int x = 0, bits = 0; x < size; x++) {
-                bits = ((bits << 1) & 0x7FF) | (modules[y][x] ? 1 : 0);
-                if (x >= 10 && (bits == 0x05D || bits == 0x5D0))  // Needs 11 bits accumulated
-                    result += PENALTY_N3;
-            }
-        }
-        // Finder-like pattern in columns
-        for (int x = 0; x < size; x++) {
-            for (int y = 0, bits = 0; y < size; y++) {
-                bits = ((bits << 1) & 0x7FF) | (modules[y][x] ? 1 : 0);
-                if (y >= 10 && (bits == 0x05D || bits == 0x5D0))  // Needs 11 bits accumulated
-                    result += PENALTY_N3;
-            }
+            long[] row = pattern[y % MASK_PATTERN_PERIOD];
+            for (int w = 0, i = y * grid.words; w < grid.words; w++, i++)
+                grid.bits[i] ^= row[w] & ~function.bits[i] & grid.valid[w];
         }
+        drawFormatBits(mask, grid);
+        return grid.getPenaltyScore();
+    }
 
-        // Balance of black and white modules
-        int black = 0;
-        for (boolean[] row : modules) {
-            for (boolean color : row) {
-                if (color)
-                    black++;
-            }
+
+    // Lazily creates the threads the masks are scored on, or returns null on a single core device.
+    private static synchronized ExecutorService getMaskingExecutor() {
+        if (maskingExecutor == null) {
+            int threads = Math.min(8, Runtime.getRuntime().availableProcessors());
+            if (threads < 2)
+                return null;
+            maskingExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "QrMasking");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        int total = size * size;
-        // Find smallest k such that (45-5k)% <= dark/total <= (55+5k)%
-        for (int k = 0; black*20 < (9-k)*total || black*20 > (11+k)*total; k++)
-            result += PENALTY_N4;
-        return result;
+        return maskingExecutor;
     }
 	
 	
@@ -684,6 +734,27 @@ public final class QrCode {
     private static final int PENALTY_N3 = 40;
     private static final int PENALTY_N4 = 10;
 
+    // Versions from which the masks are scored on several threads, below it isn't worth the hand-off.
+    private static final int PARALLEL_MASKING_MIN_VERSION = 10;
+
+    private static ExecutorService maskingExecutor = null;
+
+    // Every mask pattern repeats every 6 columns and 12 rows, so one bit-packed row of full width
+    // (3 words covers the 177 modules of version 40) is kept per mask and row modulo 12.
+    private static final int MASK_PATTERN_PERIOD = 12;
+    private static final long[][][] MASK_PATTERNS = new long[8][MASK_PATTERN_PERIOD][3];
+
+    static {
+        for (int mask = 0; mask < 8; mask++) {
+            for (int y = 0; y < MASK_PATTERN_PERIOD; y++) {
+                for (int x = 0; x < 64 * 3; x++) {
+                    if (getMaskBit(mask, x, y))
+                        MASK_PATTERNS[mask][y][x >>> 6] |= 1L << (x & 63);
+                }
+            }
+        }
+    }
+
 
     private static final byte[][] ECC_CODEWORDS_PER_BLOCK = {
             // Version: (note that index 0 is for padding, and is set to an illegal value)
@@ -726,7 +797,154 @@ public final class QrCode {
 	
 	
 	
-	/*---- Private helper class ----*/
+	/*---- Private helper classes ----*/
+
+    /**
+     * A square grid of modules packed into 64-bit words, each row starting at a new word with
+     * column x at bit x &amp; 63 of word x / 64. Bits past the edge of the symbol are always 0.
+     * Lets the mask penalty be scored 64 modules at a time.
+     */
+    private static final class PackedGrid {
+
+        final int size;
+        final int words;     // Words per row
+        final long[] bits;   // Rows one after the other
+        final long[] valid;  // For each word of a row, the bits that are inside the symbol
+
+
+        PackedGrid(boolean[][] modules) {
+            this(modules.length);
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (modules[y][x])
+                        bits[y * words + (x >>> 6)] |= 1L << (x & 63);
+                }
+            }
+        }
+
+
+        private PackedGrid(int size) {
+            this.size = size;
+            words = (size + 63) >>> 6;
+            bits = new long[size * words];
+            valid = new long[words];
+            for (int x = 0; x < size; x++)
+                valid[x >>> 6] |= 1L << (x & 63);
+        }
+
+
+        PackedGrid copy() {
+            PackedGrid result = new PackedGrid(size);
+            System.arraycopy(bits, 0, result.bits, 0, bits.length);
+            return result;
+        }
+
+
+        void set(int x, int y, boolean isBlack) {
+            long bit = 1L << (x & 63);
+            int i = y * words + (x >>> 6);
+            bits[i] = isBlack ? bits[i] | bit : bits[i] & ~bit;
+        }
+
+
+        // Same rules and result as scoring the modules one by one: runs of 5 or more of the same color
+        // in a row or column, 2*2 blocks of the same color, finder-like patterns and the dark balance.
+        int getPenaltyScore() {
+            int result = 0;
+            long[] same = new long[words];   // Modules having the same color as the one to their left
+            long[] block = new long[words];  // Modules having the same color as the one below them
+            long[] edge = new long[words];   // Columns 1 and up
+            long[] finder = new long[words]; // Columns 10 and up, where a finder-like pattern can end
+            for (int w = 0; w < words; w++) {
+                edge[w] = valid[w];
+                finder[w] = valid[w];
+            }
+            edge[0] &= ~1L;
+            finder[0] &= ~0x3FFL;
+
+            for (int y = 0; y < size; y++) {
+                int row = y * words;
+
+                // Adjacent modules in row having same color
+                for (int w = 0; w < words; w++)
+                    same[w] = ~(bits[row + w] ^ shifted(bits, row, w, 1)) & edge[w];
+                for (int w = 0; w < words; w++) {
+                    long run5 = same[w] & shifted(same, 0, w, 1) & shifted(same, 0, w, 2) & shifted(same, 0, w, 3);
+                    long exactly5 = run5 & ~shifted(same, 0, w, 4);
+                    result += Long.bitCount(exactly5) * PENALTY_N1 + Long.bitCount(run5 & ~exactly5);
+                }
+
+                // Adjacent modules in column having same color, the row being the lowest of the run
+                if (y >= 4) {
+                    for (int w = 0; w < words; w++) {
+                        long run5 = valid[w];
+                        for (int k = 0; k < 4; k++)
+                            run5 &= ~(bits[row - k * words + w] ^ bits[row - (k + 1) * words + w]);
+                        long exactly5 = y == 4 ? run5 : run5 & (bits[row - 4 * words + w] ^ bits[row - 5 * words + w]);
+                        result += Long.bitCount(exactly5) * PENALTY_N1 + Long.bitCount(run5 & ~exactly5);
+                    }
+                }
+
+                // 2*2 blocks of modules having same color, the row being the top of the block
+                if (y < size - 1) {
+                    for (int w = 0; w < words; w++)
+                        block[w] = ~(bits[row + w] ^ bits[row + words + w]);
+                    for (int w = 0; w < words; w++)
+                        result += Long.bitCount(block[w] & shifted(block, 0, w, 1) & same[w]) * PENALTY_N2;
+                }
+
+                // Finder-like pattern in row, the column being the last of the pattern
+                for (int w = 0; w < words; w++) {
+                    long first = finder[w];
+                    long second = finder[w];
+                    for (int k = 0; k <= 10; k++) {
+                        long modules = shifted(bits, row, w, k);
+                        first &= ((0x05D >>> k) & 1) != 0 ? modules : ~modules;
+                        second &= ((0x5D0 >>> k) & 1) != 0 ? modules : ~modules;
+                    }
+                    result += (Long.bitCount(first) + Long.bitCount(second)) * PENALTY_N3;
+                }
+
+                // Finder-like pattern in columns, the row being the last of the pattern
+                if (y >= 10) {
+                    for (int w = 0; w < words; w++) {
+                        long first = valid[w];
+                        long second = valid[w];
+                        for (int k = 0; k <= 10; k++) {
+                            long modules = bits[row - k * words + w];
+                            first &= ((0x05D >>> k) & 1) != 0 ? modules : ~modules;
+                            second &= ((0x5D0 >>> k) & 1) != 0 ? modules : ~modules;
+                        }
+                        result += (Long.bitCount(first) + Long.bitCount(second)) * PENALTY_N3;
+                    }
+                }
+            }
+
+            // Balance of black and white modules
+            int black = 0;
+            for (long word : bits)
+                black += Long.bitCount(word);
+            int total = size * size;
+            // Find smallest k such that (45-5k)% <= dark/total <= (55+5k)%
+            for (int k = 0; black*20 < (9-k)*total || black*20 > (11+k)*total; k++)
+                result += PENALTY_N4;
+            return result;
+        }
+
+
+        // Returns word w of the row starting at the given offset, moved k columns towards the right
+        // edge, so each bit holds the module k columns to its left. 0 &lt;= k &lt; 64.
+        private static long shifted(long[] row, int offset, int w, int k) {
+            long result = row[offset + w] << k;
+            if (k > 0 && w > 0)
+                result |= row[offset + w - 1] >>> (64 - k);
+            return result;
+        }
+
+    }
+
+
+
 
     /**
      * Computes the Reed-Solomon error correction codewords for a sequence of data codewords
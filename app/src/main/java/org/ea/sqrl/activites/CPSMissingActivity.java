@@ -8,8 +8,7 @@ import android.widget.TextView;
 
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.LoginBaseActivity;
-import org.ea.sqrl.processors.CommunicationFlowHandler;
-import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.processors.SQRLSession;
 
 
 public class CPSMissingActivity  extends LoginBaseActivity {
@@ -20,39 +19,45 @@ public class CPSMissingActivity  extends LoginBaseActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_cps_missing);
 
-        communicationFlowHandler = CommunicationFlowHandler.getInstance(this, handler);
+        SQRLSession session = SQRLSession.fromIntent(getIntent());
+        if (session == null) {
+            finish();
+            return;
+        }
+        communicationFlowHandler = session.getFlowHandler();
         communicationFlowHandler.setUrlBasedLogin(true);
         setupBasePopups(getLayoutInflater());
 
         final TextView txtSite = findViewById(R.id.txtSite);
         txtSite.setText(new String(communicationFlowHandler.getDomain()));
 
-        SQRLStorage storage = SQRLStorage.getInstance(CPSMissingActivity.this.getApplicationContext());
-
-        communicationFlowHandler.setDoneAction(() -> {
-            storage.clear();
-            handler.post(() -> {
-                hideProgressPopup();
-                closeActivity();
+        communicationFlowHandler.setDoneAction(screen -> {
+            session.releaseIdentity();
+            if (!(screen instanceof CPSMissingActivity)) return;
+            CPSMissingActivity activity = (CPSMissingActivity) screen;
+            activity.handler.post(() -> {
+                activity.hideProgressPopup();
+                activity.closeActivity();
             });
         });
 
-        communicationFlowHandler.setErrorAction(() -> {
-            storage.clear();
-            handler.post(() -> hideProgressPopup());
+        communicationFlowHandler.setErrorAction(screen -> {
+            session.releaseIdentity();
+            if (!(screen instanceof CPSMissingActivity)) return;
+            CPSMissingActivity activity = (CPSMissingActivity) screen;
+            activity.handler.post(activity::hideProgressPopup);
         });
 
         final Button btnCPSContinue = findViewById(R.id.btnCPSContinue);
         btnCPSContinue.setOnClickListener(v -> {
             showProgressPopup();
-            new Thread(() -> {
-                communicationFlowHandler.setNoCPSServer();
-                communicationFlowHandler.handleNextAction();
-            }).start();
+            communicationFlowHandler.setNoCPSServer();
+            communicationFlowHandler.start();
         });
 
         final Button btnCPSCancel = findViewById(R.id.btnCPSCancel);
         btnCPSCancel.setOnClickListener(v -> {
+            communicationFlowHandler.cancel();
             startActivity(new Intent(this, MainActivity.class));
             this.finish();
         });
@@ -6,6 +6,8 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.CancellationSignal;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.StringRes;
 import android.support.constraint.ConstraintLayout;
 import android.support.design.widget.TextInputLayout;
 import android.text.Editable;
@@ -22,9 +24,11 @@ import android.widget.TextView;
 
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.LoginBaseActivity;
+import org.ea.sqrl.database.IdentityRepository;
 import org.ea.sqrl.processors.BioAuthenticationCallback;
 import org.ea.sqrl.processors.CommunicationFlowHandler;
 import org.ea.sqrl.processors.CommunicationHandler;
+import org.ea.sqrl.processors.SQRLSession;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.utils.IdentitySelector;
 import org.ea.sqrl.utils.RescueCodeInputHelper;
@@ -45,6 +49,7 @@ public class LoginActivity extends LoginBaseActivity {
     public static final String EXTRA_USE_CPS = "use_cps";
     public static final String EXTRA_QUICK_SCAN = "quick_scan";
     public static final String ACTION_QUICKPASS_OPERATION = "org.ea.sqrl.activites.LOGON";
+    private static final String STATE_SESSION_ID = "session_id";
 
     private boolean useCps = true;
     private TextInputLayout pwdTextInputLayout;
@@ -52,6 +57,7 @@ public class LoginActivity extends LoginBaseActivity {
     private IdentitySelector mIdentitySelector = null;
     private Matcher mSqrlMatcher;
     private RescueCodeInputHelper mRescueCodeInputHelper;
+    private SQRLSession mSession;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,7 +67,17 @@ public class LoginActivity extends LoginBaseActivity {
         rootView = findViewById(R.id.loginActivityView);
         pwdTextInputLayout = findViewById(R.id.txtLoginPasswordLayoutInternal);
         txtLoginPassword = findViewById(R.id.txtLoginPassword);
-        communicationFlowHandler = CommunicationFlowHandler.getInstance(this, handler);
+        // A login that is still running when the screen is recreated is picked up again
+        if (savedInstanceState != null) {
+            mSession = SQRLSession.fromId(savedInstanceState.getLong(STATE_SESSION_ID));
+        }
+        final boolean restoredSession = mSession != null;
+        if (restoredSession) {
+            mSession.getFlowHandler().attach(this, handler);
+        } else {
+            mSession = SQRLSession.open(this, handler);
+        }
+        communicationFlowHandler = mSession.getFlowHandler();
 
         final TextView txtSiteDomain = findViewById(R.id.txtSite);
         final LinearLayout rescueCodeLayout = findViewById(R.id.rescueCodeLayout);
@@ -85,22 +101,24 @@ public class LoginActivity extends LoginBaseActivity {
             txtSiteDomain.setText(data.getHost());
 
             final String serverData = data.toString();
-            communicationFlowHandler.setServerData(serverData);
-            communicationFlowHandler.setUseSSL(serverData.startsWith("sqrl://"));
-
             mSqrlMatcher = CommunicationHandler.sqrlPattern.matcher(serverData);
             if(!mSqrlMatcher.matches()) {
                 showErrorMessage(R.string.scan_incorrect);
                 return;
             }
 
-            try {
-                communicationFlowHandler.setQueryLink(mSqrlMatcher.group(2));
-                communicationFlowHandler.setDomain(mSqrlMatcher.group(1), mSqrlMatcher.group(2));
-            } catch (Exception e) {
-                showErrorMessage(e.getMessage());
-                Log.e(TAG, e.getMessage(), e);
-                return;
+            if (!restoredSession) {
+                communicationFlowHandler.setServerData(serverData);
+                communicationFlowHandler.setUseSSL(serverData.startsWith("sqrl://"));
+
+                try {
+                    communicationFlowHandler.setQueryLink(mSqrlMatcher.group(2));
+                    communicationFlowHandler.setDomain(mSqrlMatcher.group(1), mSqrlMatcher.group(2));
+                } catch (Exception e) {
+                    showErrorMessage(e.getMessage());
+                    Log.e(TAG, e.getMessage(), e);
+                    return;
+                }
             }
         }
 
@@ -175,11 +193,21 @@ public class LoginActivity extends LoginBaseActivity {
         boolean runningTest = getIntent().getBooleanExtra("RUNNING_TEST", false);
         if(runningTest) return;
 
-        if(!mDbHelper.hasIdentities()) {
+        IdentityRepository.getInstance(this).hasIdentities(this::showLoginForm);
+    }
+
+    private void showLoginForm(boolean hasIdentities) {
+        if (isFinishing()) return;
+
+        if(!hasIdentities) {
             startActivity(new Intent(this, WizardPage1Activity.class));
         } else {
             useCps = getIntent().getBooleanExtra(EXTRA_USE_CPS, true);
             setupBasePopups(getLayoutInflater());
+            // A login restored after a rotation is still running, it hides the popup when done
+            if (communicationFlowHandler.getState() == CommunicationFlowHandler.State.RUNNING) {
+                rootView.post(this::showProgressPopup);
+            }
             SQRLStorage storage = SQRLStorage.getInstance(LoginActivity.this.getApplicationContext());
             configureIdentitySelector(storage).update();
             setupAdvancedFunctions();
@@ -196,6 +224,20 @@ public class LoginActivity extends LoginBaseActivity {
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLong(STATE_SESSION_ID, mSession.getId());
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            mSession.close();
+        }
+        super.onDestroy();
+    }
+
     private void setupHelp() {
         SQRLStorage storage = SQRLStorage.getInstance(LoginActivity.this.getApplicationContext());
 
@@ -369,9 +411,12 @@ public class LoginActivity extends LoginBaseActivity {
         showProgressPopup();
         closeKeyboard();
 
+        SQRLSession session = mSession;
         new Thread(() -> {
+            session.acquireIdentity();
             if (needsDecryption) {
                 if (!decryptIdentityInternal(storage, useQuickpass)) {
+                    session.releaseIdentity();
                     return;
                 }
             }
@@ -380,7 +425,7 @@ public class LoginActivity extends LoginBaseActivity {
             handler.post(() -> txtLoginPassword.setText(""));
 
             if (this instanceof EnableQuickPassActivity) {
-                storage.clear();
+                session.releaseIdentity();
                 handler.post(() -> {
                     hideProgressPopup();
                     closeActivity();
@@ -407,12 +452,10 @@ public class LoginActivity extends LoginBaseActivity {
                     break;
             }
 
-            communicationFlowHandler.setErrorAction(() -> {
-                storage.clear();
-                handler.post(() -> hideProgressPopup());
-            });
+            communicationFlowHandler.setErrorAction(onLoginScreen(mSession,
+                    LoginActivity::hideProgressPopup));
 
-            communicationFlowHandler.handleNextAction();
+            communicationFlowHandler.start();
         }).start();
     }
 
@@ -434,7 +477,6 @@ public class LoginActivity extends LoginBaseActivity {
                 showErrorMessage(e.getMessage());
                 Log.e(TAG, e.getMessage(), e);
                 this.closeActivity();
-                storage.clear();
                 storage.clearQuickPass();
                 return false;
             } finally {
@@ -448,7 +490,6 @@ public class LoginActivity extends LoginBaseActivity {
                     txtLoginPassword.setText("");
                     hideProgressPopup();
                 });
-                storage.clear();
                 storage.clearQuickPass();
                 return false;
             }
@@ -465,13 +506,14 @@ public class LoginActivity extends LoginBaseActivity {
             communicationFlowHandler.addAction(CommunicationFlowHandler.Action.LOGIN);
         }
 
-        communicationFlowHandler.setDoneAction(() -> {
-            storage.clear();
-            handler.post(() -> {
-                hideProgressPopup();
-                closeActivity();
-            });
-        });
+        long scanStarted = getIntent().getLongExtra(QRCodeScanActivity.EXTRA_SCAN_STARTED, 0);
+        communicationFlowHandler.setDoneAction(onLoginScreen(mSession, activity -> {
+            if (scanStarted != 0) {
+                Log.i(TAG, "Logged in " + (SystemClock.elapsedRealtime() - scanStarted) + " ms after scan started");
+            }
+            activity.hideProgressPopup();
+            activity.closeActivity();
+        }));
     }
 
     private void configureCommFlowHandlerDisableAccount(SQRLStorage storage) {
@@ -483,17 +525,12 @@ public class LoginActivity extends LoginBaseActivity {
             communicationFlowHandler.addAction(CommunicationFlowHandler.Action.LOCK_ACCOUNT);
         }
 
-        communicationFlowHandler.setDoneAction(() -> {
-            storage.clear();
+        CommunicationFlowHandler.FlowAction showDone = onLoginScreen(mSession, activity ->
+                activity.showDoneMessage(R.string.disable_account_title, R.string.disable_account_successful)
+        );
+        communicationFlowHandler.setDoneAction(screen -> {
             storage.clearQuickPass();
-            handler.post(() -> {
-                hideProgressPopup();
-                showInfoMessage(
-                        R.string.disable_account_title,
-                        R.string.disable_account_successful,
-                        () -> closeActivity()
-                );
-            });
+            showDone.run(screen);
         });
     }
 
@@ -506,17 +543,9 @@ public class LoginActivity extends LoginBaseActivity {
             communicationFlowHandler.addAction(CommunicationFlowHandler.Action.UNLOCK_ACCOUNT);
         }
 
-        communicationFlowHandler.setDoneAction(() -> {
-            storage.clear();
-            handler.post(() -> {
-                hideProgressPopup();
-                showInfoMessage(
-                        R.string.enable_account_title,
-                        R.string.enable_account_successful,
-                        () -> closeActivity()
-                );
-            });
-        });
+        communicationFlowHandler.setDoneAction(onLoginScreen(mSession, activity ->
+                activity.showDoneMessage(R.string.enable_account_title, R.string.enable_account_successful)
+        ));
     }
 
     private void configureCommFlowHandlerRemoveAccount(SQRLStorage storage) {
@@ -530,16 +559,30 @@ public class LoginActivity extends LoginBaseActivity {
             communicationFlowHandler.addAction(CommunicationFlowHandler.Action.REMOVE_ACCOUNT);
         }
 
-        communicationFlowHandler.setDoneAction(() -> {
-            storage.clear();
-            handler.post(() -> {
-                hideProgressPopup();
-                showInfoMessage(
-                        R.string.remove_account_title,
-                        R.string.remove_account_successful,
-                        () -> closeActivity()
-                );
-            });
-        });
+        communicationFlowHandler.setDoneAction(onLoginScreen(mSession, activity ->
+                activity.showDoneMessage(R.string.remove_account_title, R.string.remove_account_successful)
+        ));
+    }
+
+    private void showDoneMessage(@StringRes int title, @StringRes int message) {
+        hideProgressPopup();
+        showInfoMessage(title, message, this::closeActivity);
+    }
+
+    private interface LoginScreenAction {
+        void run(LoginActivity activity);
+    }
+
+    /**
+     * Lets go of the unlocked identity and runs the action on the main thread of the login
+     * screen attached when the flow ends, which after a rotation isn't the one that started it.
+     */
+    private static CommunicationFlowHandler.FlowAction onLoginScreen(SQRLSession session, LoginScreenAction action) {
+        return screen -> {
+            session.releaseIdentity();
+            if (!(screen instanceof LoginActivity)) return;
+            LoginActivity activity = (LoginActivity) screen;
+            activity.handler.post(() -> action.run(activity));
+        };
     }
 }
@@ -2,25 +2,21 @@ package org.ea.sqrl.activites;
 
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.util.Log;
 
-import com.google.zxing.FormatException;
-import com.google.zxing.integration.android.IntentIntegrator;
-import com.google.zxing.integration.android.IntentResult;
-import org.ea.sqrl.utils.QRCodeDecodeHelper;
-
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.LoginBaseActivity;
 import org.ea.sqrl.activites.identity.ImportActivity;
+import org.ea.sqrl.database.IdentityRepository;
 import org.ea.sqrl.processors.CommunicationFlowHandler;
-import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.processors.QRCodeFrameDecoder;
 import org.ea.sqrl.utils.IdentitySelector;
 import org.ea.sqrl.utils.SqrlApplication;
 import org.ea.sqrl.utils.Utils;
 
-import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -31,8 +27,19 @@ public class MainActivity extends LoginBaseActivity {
     private static final String TAG = "MainActivity";
 
     public static final String ACTION_QUICK_SCAN = "org.ea.sqrl.activites.QUICK_SCAN";
+    private static final int SCAN_QR_CODE_REQUEST_CODE = 1;
 
     private IdentitySelector mIdentitySelector = null;
+    private static boolean mStartupReported = false;
+
+    /**
+     * The identity is reselected on the startup thread in onResume, the scan screen is drawn
+     * without waiting for it.
+     */
+    @Override
+    protected boolean readsIdentityOnCreate() {
+        return false;
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -66,82 +73,81 @@ public class MainActivity extends LoginBaseActivity {
         boolean runningTest = getIntent().getBooleanExtra("RUNNING_TEST", false);
         if(runningTest) return;
 
-        if(!mDbHelper.hasIdentities()) {
-            startActivity(new Intent(this, WizardPage1Activity.class));
-        } else {
-            long currentId = SqrlApplication.getCurrentId(this.getApplication());
-            if(currentId != 0) {
-                SqrlApplication.setCurrentId(this, currentId);
-                mIdentitySelector.update();
-            }
+        IdentityRepository.getInstance(this).hasIdentities(hasIdentities -> {
+            if (isFinishing()) return;
 
-            setupBasePopups(getLayoutInflater());
-        }
-    }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        IntentResult result = IntentIntegrator.parseActivityResult(requestCode, resultCode, data);
-        if(result != null) {
-            if(result.getContents() == null) {
-                Log.d(TAG, "Cancelled scan");
-                Snackbar.make(rootView, R.string.scan_cancel, Snackbar.LENGTH_LONG).show();
-                if(!mDbHelper.hasIdentities()) {
-                    startActivity(new Intent(this, WizardPage1Activity.class));
-                }
+            if(!hasIdentities) {
+                startActivity(new Intent(this, WizardPage1Activity.class));
             } else {
-                byte[] qrCodeData = null;
-
-                try {
-                    qrCodeData = QRCodeDecodeHelper.decode(result.getRawBytes());
-                } catch (FormatException fe) {
-                    Snackbar.make(rootView, R.string.scan_incorrect, Snackbar.LENGTH_LONG).show();
-                    return;
+                long currentId = SqrlApplication.getCurrentId(this.getApplication());
+                if(currentId != 0) {
+                    SqrlApplication.runInBackground(() -> {
+                        SqrlApplication.setCurrentId(getApplicationContext(), currentId);
+                        handler.post(() -> mIdentitySelector.update());
+                    });
                 }
 
-                if (qrCodeData == null) {
-                    Snackbar.make(rootView, R.string.scan_incorrect, Snackbar.LENGTH_LONG).show();
-                    return;
+                setupBasePopups(getLayoutInflater());
+            }
+        });
+
+        if (!mStartupReported) {
+            mStartupReported = true;
+            handler.post(() -> {
+                SqrlApplication.logStartupTime("scan screen drawn");
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    reportFullyDrawn();
                 }
+            });
+        }
+    }
 
-                // If an identity qr-code was scanned instead of a login qr code,
-                // simply forward it to the import activity and bail out
-
-                if (qrCodeData.length > 8 && new String(Arrays.copyOfRange(qrCodeData, 0, 8))
-                        .startsWith(SQRLStorage.STORAGE_HEADER)) {
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != SCAN_QR_CODE_REQUEST_CODE) return;
+
+        byte[] qrCodeData = data != null ? data.getByteArrayExtra(QRCodeScanActivity.EXTRA_SCANNED_DATA) : null;
+        if (resultCode != RESULT_OK || qrCodeData == null) {
+            Log.d(TAG, "Cancelled scan");
+            Snackbar.make(rootView, R.string.scan_cancel, Snackbar.LENGTH_LONG).show();
+            if(!mDbHelper.hasIdentities()) {
+                startActivity(new Intent(this, WizardPage1Activity.class));
+            }
+            return;
+        }
 
-                    Intent importIntent = new Intent(this, ImportActivity.class);
-                    importIntent.putExtra(ImportActivity.EXTRA_IMPORT_METHOD, ImportActivity.IMPORT_METHOD_FORWARDED_QR_CODE);
-                    importIntent.putExtra(ImportActivity.EXTRA_FORWARDED_QR_CODE, qrCodeData);
-                    startActivity(importIntent);
-                    return;
-                }
+        // If an identity qr-code was scanned instead of a login qr code,
+        // simply forward it to the import activity and bail out
 
-                final String serverData = new String(qrCodeData);
-                Uri serverUri = Uri.parse(serverData);
+        int scanType = data.getIntExtra(QRCodeScanActivity.EXTRA_SCAN_TYPE, QRCodeFrameDecoder.TYPE_OTHER);
+        if (scanType == QRCodeFrameDecoder.TYPE_IDENTITY) {
+            Intent importIntent = new Intent(this, ImportActivity.class);
+            importIntent.putExtra(ImportActivity.EXTRA_IMPORT_METHOD, ImportActivity.IMPORT_METHOD_FORWARDED_QR_CODE);
+            importIntent.putExtra(ImportActivity.EXTRA_FORWARDED_QR_CODE, qrCodeData);
+            startActivity(importIntent);
+            return;
+        }
 
-                if (!Utils.isValidSqrlUri(serverUri)) {
-                    Snackbar.make(rootView, R.string.scan_incorrect, Snackbar.LENGTH_LONG).show();
-                    return;
-                }
+        final String serverData = new String(qrCodeData);
+        Uri serverUri = Uri.parse(serverData);
 
-                Intent urlLoginIntent = new Intent(Intent.ACTION_VIEW);
-                urlLoginIntent.setData(serverUri);
-                urlLoginIntent.putExtra(LoginActivity.EXTRA_USE_CPS, false);
-                if (ACTION_QUICK_SCAN.equals(getIntent().getAction())) urlLoginIntent.putExtra(LoginActivity.EXTRA_QUICK_SCAN, true);
-                startActivity(urlLoginIntent);
-            }
+        if (!Utils.isValidSqrlUri(serverUri)) {
+            Snackbar.make(rootView, R.string.scan_incorrect, Snackbar.LENGTH_LONG).show();
+            return;
         }
+
+        Intent urlLoginIntent = new Intent(Intent.ACTION_VIEW);
+        urlLoginIntent.setData(serverUri);
+        urlLoginIntent.putExtra(LoginActivity.EXTRA_USE_CPS, false);
+        urlLoginIntent.putExtra(QRCodeScanActivity.EXTRA_SCAN_STARTED,
+                data.getLongExtra(QRCodeScanActivity.EXTRA_SCAN_STARTED, 0));
+        if (ACTION_QUICK_SCAN.equals(getIntent().getAction())) urlLoginIntent.putExtra(LoginActivity.EXTRA_QUICK_SCAN, true);
+        startActivity(urlLoginIntent);
     }
 
     private void initiateScan() {
-        final IntentIntegrator integrator = new IntentIntegrator(this);
-        integrator.setDesiredBarcodeFormats(IntentIntegrator.QR_CODE_TYPES);
-        integrator.setCameraId(0);
-        integrator.setBeepEnabled(false);
-        integrator.setOrientationLocked(false);
-        integrator.setBarcodeImageEnabled(false);
-        integrator.setPrompt(this.getString(R.string.scan_site_code));
-        integrator.initiateScan();
+        Intent scanIntent = new Intent(this, QRCodeScanActivity.class);
+        scanIntent.putExtra(QRCodeScanActivity.EXTRA_PROMPT, getString(R.string.scan_site_code));
+        startActivityForResult(scanIntent, SCAN_QR_CODE_REQUEST_CODE);
     }
 }
@@ -0,0 +1,292 @@
+package org.ea.sqrl.activites;
+
+import android.Manifest;
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+import org.ea.sqrl.R;
+import org.ea.sqrl.activites.base.CommonBaseActivity;
+import org.ea.sqrl.processors.QRCodeFrameDecoder;
+import org.ea.sqrl.processors.QRCodeScanPipeline;
+import org.ea.sqrl.utils.FountainCode;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scans QR codes with the camera in this process, decoding on a worker thread. A site code or
+ * a single identity QR code is returned as soon as it's read, the frames of an animated
+ * identity export are collected, in whatever order and with however many missed, until the
+ * identity can be put back together.
+ *
+ * @author Daniel Persson
+ */
+public class QRCodeScanActivity extends CommonBaseActivity {
+    private static final String TAG = "QRCodeScanActivity";
+    public static final String EXTRA_PROMPT = "prompt";
+    public static final String EXTRA_SCANNED_DATA = "scanned_data";
+    public static final String EXTRA_SCAN_TYPE = "scan_type";
+    public static final String EXTRA_SCAN_STARTED = "scan_started";
+
+    private final int REQUEST_PERMISSION_CAMERA = 1;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final FountainCode.Decoder mFrameDecoder = new FountainCode.Decoder();
+    private Camera mCamera;
+    private int mCameraId;
+    private CameraPreview mPreview;
+    private FrameLayout mPreviewLayout;
+    private TextView mTxtScanStatus;
+    private QRCodeScanPipeline mScanPipeline;
+    private long mScanStarted;
+
+    @Override
+    protected boolean readsIdentityOnCreate() {
+        return false;
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_qrcode_scan);
+        mPreviewLayout = findViewById(R.id.camera_preview);
+        mTxtScanStatus = findViewById(R.id.txtScanStatus);
+
+        String prompt = getIntent().getStringExtra(EXTRA_PROMPT);
+        mTxtScanStatus.setText(prompt != null ? prompt : getString(R.string.scan_identity));
+        mScanStarted = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        showPhoneStatePermission();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        if (mCamera != null) {
+            mCamera.stopPreview();
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+
+        if (mScanPipeline != null) {
+            mScanPipeline.stop();
+            mScanPipeline = null;
+        }
+
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+        }
+
+        if (mPreview != null) {
+            mPreviewLayout.removeView(mPreview);
+            mPreview = null;
+        }
+    }
+
+    private void initCameraUsage() {
+        if (mCamera == null) {
+            mCamera = getCameraInstance();
+        }
+        if (mCamera == null) {
+            finish();
+            return;
+        }
+
+        setCameraDisplayOrientation();
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        List<String> focusModes = parameters.getSupportedFocusModes();
+        if (focusModes != null && focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+            mCamera.setParameters(parameters);
+        }
+
+        if (mPreview == null) {
+            mPreview = new CameraPreview(this, mCamera);
+            mPreviewLayout.addView(mPreview);
+        }
+
+        mCamera.startPreview();
+    }
+
+    /**
+     * Runs on the scan worker, returns true once there is something to hand back.
+     */
+    private boolean onScanResult(QRCodeFrameDecoder.Result result) {
+        if (result.type != QRCodeFrameDecoder.TYPE_IDENTITY_FRAME) {
+            handler.post(() -> finishWithData(result.type, result.data));
+            return true;
+        }
+
+        mFrameDecoder.add(result.data);
+        if (mFrameDecoder.isComplete()) {
+            byte[] identityData = mFrameDecoder.getData();
+            handler.post(() -> finishWithData(QRCodeFrameDecoder.TYPE_IDENTITY, identityData));
+            return true;
+        }
+
+        int rank = mFrameDecoder.getRank();
+        int blockCount = mFrameDecoder.getBlockCount();
+        handler.post(() -> mTxtScanStatus.setText(getString(R.string.scan_frames_progress, rank, blockCount)));
+        return false;
+    }
+
+    private void finishWithData(int type, byte[] data) {
+        if (isFinishing()) return;
+        Log.i(TAG, "QR code read after " + (SystemClock.elapsedRealtime() - mScanStarted) + " ms");
+
+        Intent result = new Intent();
+        result.putExtra(EXTRA_SCAN_TYPE, type);
+        result.putExtra(EXTRA_SCANNED_DATA, data);
+        result.putExtra(EXTRA_SCAN_STARTED, mScanStarted);
+        setResult(RESULT_OK, result);
+        finish();
+    }
+
+    private void showPhoneStatePermission() {
+        int permissionCheck = ContextCompat.checkSelfPermission(
+                this, Manifest.permission.CAMERA);
+        if (permissionCheck != PackageManager.PERMISSION_GRANTED) {
+            if (ActivityCompat.shouldShowRequestPermissionRationale(this, Manifest.permission.CAMERA)) {
+                showExplanation(
+                        getString(R.string.camera_permission_request_title),
+                        getString(R.string.camera_permission_request_desc)
+                );
+            } else {
+                requestPermission();
+            }
+        } else {
+            initCameraUsage();
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
+        switch (requestCode) {
+            case REQUEST_PERMISSION_CAMERA:
+                if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                    initCameraUsage();
+                } else {
+                    this.finish();
+                }
+        }
+    }
+
+    private void requestPermission() {
+        ActivityCompat.requestPermissions(
+                QRCodeScanActivity.this,
+                new String[] {Manifest.permission.CAMERA},
+                REQUEST_PERMISSION_CAMERA
+        );
+    }
+
+    private void showExplanation(String title, String message) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(title)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, (dialog, id) -> requestPermission());
+        builder.create().show();
+    }
+
+    /**
+     * Opens the first back facing camera, the same one Camera.open() would pick.
+     */
+    private Camera getCameraInstance() {
+        try {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            for (int cameraId = 0; cameraId < Camera.getNumberOfCameras(); cameraId++) {
+                Camera.getCameraInfo(cameraId, info);
+                if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                    mCameraId = cameraId;
+                    return Camera.open(cameraId);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Turns the preview upright for the current screen rotation. Only the preview is turned,
+     * the frames keep the sensor orientation, which doesn't matter to the QR code decoder.
+     */
+    private void setCameraDisplayOrientation() {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(mCameraId, info);
+
+        int degrees;
+        switch (getWindowManager().getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90: degrees = 90; break;
+            case Surface.ROTATION_180: degrees = 180; break;
+            case Surface.ROTATION_270: degrees = 270; break;
+            default: degrees = 0;
+        }
+        mCamera.setDisplayOrientation((info.orientation - degrees + 360) % 360);
+    }
+
+    private class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
+        private final Camera mCamera;
+
+        public CameraPreview(Context context, Camera camera) {
+            super(context);
+            mCamera = camera;
+            getHolder().addCallback(this);
+        }
+
+        public void surfaceCreated(SurfaceHolder holder) {
+            try {
+                mCamera.setPreviewDisplay(holder);
+                startScanPipeline();
+            } catch (IOException e) {
+                Log.d(TAG, "Error setting camera preview: " + e.getMessage());
+            }
+        }
+
+        /**
+         * The camera gets a single buffer, which comes back to it as soon as the worker has
+         * copied the part it decodes.
+         */
+        private void startScanPipeline() {
+            Camera.Parameters parameters = mCamera.getParameters();
+            final Camera.Size size = parameters.getPreviewSize();
+            int frameLength = size.width * size.height *
+                    ImageFormat.getBitsPerPixel(parameters.getPreviewFormat()) / 8;
+
+            final Camera camera = mCamera;
+            final QRCodeScanPipeline pipeline = new QRCodeScanPipeline(
+                    handler::post, camera::addCallbackBuffer, QRCodeScanActivity.this::onScanResult);
+            mScanPipeline = pipeline;
+            camera.addCallbackBuffer(new byte[frameLength]);
+            camera.setPreviewCallbackWithBuffer((data, cam) -> pipeline.offer(data, size.width, size.height));
+        }
+
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            holder.removeCallback(this);
+        }
+
+        public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) { }
+    }
+}
@@ -49,6 +49,7 @@ import org.ea.sqrl.processors.ProgressionUpdater;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.services.ClearIdentityReceiver;
 import org.ea.sqrl.services.ClearIdentityService;
+import org.ea.sqrl.services.KdfJobService;
 import org.ea.sqrl.utils.SqrlApplication;
 
 import java.lang.reflect.Method;
@@ -71,6 +72,8 @@ public class BaseActivity extends CommonBaseActivity {
     private PopupWindow cameraAccessPopupWindow;
     private PopupWindow errorPopupWindow;
     protected PopupWindow progressPopupWindow;
+    private ProgressionUpdater progressionUpdater;
+    private KdfJobService.Listener kdfJobListener;
 
     private TextView txtErrorMessage;
 
@@ -124,12 +127,6 @@ public class BaseActivity extends CommonBaseActivity {
         }
     }
 
-    @Override
-    protected void onDestroy() {
-        mDbHelper.close();
-        super.onDestroy();
-    }
-
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_default, menu);
@@ -208,8 +205,47 @@ public class BaseActivity extends CommonBaseActivity {
         final TextView lblProgressTitle = popupView.findViewById(R.id.lblProgressTitle);
         final TextView lblProgressText = popupView.findViewById(R.id.lblProgressText);
 
+        progressionUpdater = new ProgressionUpdater(handler, lblProgressTitle, progressBar, lblProgressText);
         SQRLStorage storage = SQRLStorage.getInstance(BaseActivity.this.getApplicationContext());
-        storage.setProgressionUpdater(new ProgressionUpdater(handler, lblProgressTitle, progressBar, lblProgressText));
+        storage.setProgressionUpdater(progressionUpdater);
+    }
+
+    /**
+     * Runs a long key derivation in {@link KdfJobService} with this screen's progress popup
+     * attached, the listener is called on the main thread when it is done.
+     */
+    protected void startKdfJob(String jobName, int jobTitle, KdfJobService.Job job, KdfJobService.Listener listener) {
+        if (!KdfJobService.start(this, jobName, jobTitle, job)) {
+            showErrorMessage(R.string.error_job_already_running);
+            return;
+        }
+        attachKdfJob(jobName, listener);
+    }
+
+    /**
+     * Picks up a job started by an earlier instance of this screen, to be called from
+     * onResume.
+     */
+    protected void attachKdfJob(String jobName, KdfJobService.Listener listener) {
+        kdfJobListener = result -> {
+            kdfJobListener = null;
+            hideProgressPopup();
+            listener.onJobFinished(result);
+        };
+        if (KdfJobService.attach(jobName, progressionUpdater, kdfJobListener)) {
+            showProgressPopup();
+        } else {
+            kdfJobListener = null;
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (kdfJobListener != null) {
+            KdfJobService.detach(kdfJobListener);
+            kdfJobListener = null;
+        }
     }
 
     protected void setupCameraAccessPopupWindow(LayoutInflater layoutInflater) {
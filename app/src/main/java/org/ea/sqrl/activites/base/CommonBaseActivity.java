@@ -8,6 +8,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.app.AppCompatDelegate;
 
 import org.ea.sqrl.R;
+import org.ea.sqrl.utils.SqrlApplication;
 import org.ea.sqrl.utils.Utils;
 
 import java.util.Objects;
@@ -26,6 +27,11 @@ public class CommonBaseActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // A screen restored after the process was killed can run before the startup thread
+        if (readsIdentityOnCreate()) {
+            SqrlApplication.loadCurrentIdentity(this);
+        }
+
         if(getSupportActionBar() != null) {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
             getSupportActionBar().setDisplayShowHomeEnabled(true);
@@ -39,6 +45,15 @@ public class CommonBaseActivity extends AppCompatActivity {
         mCurrentLanguage = Utils.getLanguage(this);
     }
 
+    /**
+     * Screens reading the current identity from the sqrl storage wait in onCreate until it is
+     * loaded. Screens that don't, or load it themselves off the main thread, return false so
+     * they don't hold up a cold start.
+     */
+    protected boolean readsIdentityOnCreate() {
+        return true;
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
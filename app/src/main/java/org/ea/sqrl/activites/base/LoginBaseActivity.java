@@ -25,6 +25,8 @@ public class LoginBaseActivity extends BaseActivity {
 
 
     protected void setupBasePopups(LayoutInflater layoutInflater) {
+        communicationFlowHandler.attach(this, handler);
+
         boolean runningTest = getIntent().getBooleanExtra("RUNNING_TEST", false);
         if(runningTest) return;
 
@@ -36,6 +38,11 @@ public class LoginBaseActivity extends BaseActivity {
     protected void onResume() {
         super.onResume();
         setupProgressPopupWindow(getLayoutInflater());
+
+        // Another screen may have taken over the flow while this one was in the background
+        if(communicationFlowHandler != null && !communicationFlowHandler.isAttachedTo(this)) {
+            setupBasePopups(getLayoutInflater());
+        }
     }
 
     protected void closeActivity() {}
@@ -48,6 +55,14 @@ public class LoginBaseActivity extends BaseActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if(communicationFlowHandler != null) {
+            communicationFlowHandler.detach(this);
+        }
+        super.onDestroy();
+    }
+
     protected void closeKeyboard() {
         View view = this.getCurrentFocus();
         if (view != null) {
@@ -5,10 +5,13 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -18,6 +21,7 @@ import android.widget.ProgressBar;
 
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.CommonBaseActivity;
+import org.ea.sqrl.processors.CameraEntropyPipeline;
 import org.ea.sqrl.processors.EntropyHarvester;
 
 import java.io.IOException;
@@ -30,12 +34,14 @@ public class EntropyGatherActivity extends CommonBaseActivity {
     private static final String TAG = "EntropyGatherActivity";
 
     private final int REQUEST_PERMISSION_CAMERA = 1;
+    private static final int FRAME_BUFFERS = 3;
 
     private Camera mCamera;
     private CameraPreview mPreview;
     private FrameLayout mPreviewLayout;
     private EntropyHarvester entropyHarvester;
     private ProgressBar progressBar;
+    private CameraEntropyPipeline mEntropyPipeline;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -57,7 +63,15 @@ public class EntropyGatherActivity extends CommonBaseActivity {
 
         if (mCamera != null) {
             mCamera.stopPreview();
-            mCamera.setPreviewCallback(null);
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+
+        if (mEntropyPipeline != null) {
+            mEntropyPipeline.stop();
+            mEntropyPipeline = null;
+        }
+
+        if (mCamera != null) {
             mCamera.release();
             mCamera = null;
         }
@@ -169,15 +183,41 @@ public class EntropyGatherActivity extends CommonBaseActivity {
             try {
                 if(mCamera != null) {
                     mCamera.setPreviewDisplay(holder);
-                    mCamera.setPreviewCallback((data, camera) -> {
-                        mEntropyHarvester.addEntropy(progressBar, data);
-                    });
+                    startEntropyPipeline();
                 }
             } catch (IOException e) {
                 Log.d(TAG, "Error setting camera preview: " + e.getMessage());
             }
         }
 
+        /**
+         * Frames are delivered into a few reused buffers and hashed on a worker thread. When
+         * the worker falls behind the camera runs out of buffers and skips frames, the preview
+         * itself is never held up.
+         */
+        private void startEntropyPipeline() {
+            Camera.Parameters parameters = mCamera.getParameters();
+            Camera.Size size = parameters.getPreviewSize();
+            int lumaLength = size.width * size.height;
+            int frameLength = lumaLength * ImageFormat.getBitsPerPixel(parameters.getPreviewFormat()) / 8;
+
+            final Camera camera = mCamera;
+            // The camera was opened on the main thread, its frames arrive and go back there
+            final Handler cameraHandler = new Handler(Looper.getMainLooper());
+            mEntropyPipeline = new CameraEntropyPipeline(
+                    mEntropyHarvester, FRAME_BUFFERS - 1, lumaLength, cameraHandler::post,
+                    camera::addCallbackBuffer);
+            for (int i = 0; i < FRAME_BUFFERS; i++) {
+                camera.addCallbackBuffer(new byte[frameLength]);
+            }
+
+            final CameraEntropyPipeline pipeline = mEntropyPipeline;
+            camera.setPreviewCallbackWithBuffer((data, cam) -> {
+                pipeline.offer(data);
+                progressBar.setProgress(mEntropyHarvester.getProgress());
+            });
+        }
+
         public void surfaceDestroyed(SurfaceHolder holder) {
             holder.removeCallback(this);
         }
@@ -11,6 +11,7 @@ import android.widget.TextView;
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.LoginBaseActivity;
 import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.services.KdfJobService;
 import org.ea.sqrl.utils.RescueCodeInputHelper;
 
 /**
@@ -19,6 +20,7 @@ import org.ea.sqrl.utils.RescueCodeInputHelper;
  */
 public class RekeyVerifyActivity extends LoginBaseActivity {
     private static final String TAG = "RekeyVerifyActivity";
+    private static final String JOB_REKEY_UNLOCK = "RekeyVerifyActivity.unlock";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -26,7 +28,9 @@ public class RekeyVerifyActivity extends LoginBaseActivity {
         setContentView(R.layout.activity_rekey_verify);
 
         SQRLStorage storage = SQRLStorage.getInstance(RekeyVerifyActivity.this.getApplicationContext());
-        storage.clear();
+        if (!KdfJobService.isRunning(JOB_REKEY_UNLOCK)) {
+            storage.clear();
+        }
 
         setupProgressPopupWindow(getLayoutInflater());
         setupErrorPopupWindow(getLayoutInflater());
@@ -48,24 +52,30 @@ public class RekeyVerifyActivity extends LoginBaseActivity {
         btnRekeyIdentityStart.setEnabled(false);
         btnRekeyIdentityStart.setOnClickListener(
                 v -> {
-                    handler.post(() -> showProgressPopup());
-
-                    new Thread(() -> {
-                        String rescueCode = rescueCodeInputHelper.getRescueCodeInput();
-                        boolean decryptRescueCode = storage.decryptUnlockKey(rescueCode);
-                        if (!decryptRescueCode) {
-                            Log.e(TAG, "Incorrect decryptRescue");
-                            showErrorMessage(R.string.decrypt_identity_fail);
-                            handler.post(() -> hideProgressPopup());
-                            return;
-                        }
-                        this.finish();
-                        startActivity(new Intent(this, EntropyGatherActivity.class));
-                    }).start();
+                    String rescueCode = rescueCodeInputHelper.getRescueCodeInput();
+                    startKdfJob(JOB_REKEY_UNLOCK, R.string.progress_state_descrypting_rescuecode_identity,
+                            () -> storage.decryptUnlockKey(rescueCode) ? 0 : R.string.decrypt_identity_fail,
+                            this::onUnlockFinished);
                 }
         );
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        attachKdfJob(JOB_REKEY_UNLOCK, this::onUnlockFinished);
+    }
+
+    private void onUnlockFinished(int errorMessage) {
+        if (errorMessage != 0) {
+            Log.e(TAG, "Incorrect decryptRescue");
+            showErrorMessage(errorMessage);
+            return;
+        }
+        this.finish();
+        startActivity(new Intent(this, EntropyGatherActivity.class));
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         return false;
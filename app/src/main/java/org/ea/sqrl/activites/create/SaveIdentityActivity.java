@@ -1,5 +1,6 @@
 package org.ea.sqrl.activites.create;
 
+import android.app.Application;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
@@ -12,6 +13,9 @@ import android.widget.ImageView;
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.LoginBaseActivity;
 import org.ea.sqrl.activites.identity.RenameActivity;
+import org.ea.sqrl.database.IdentityDBHelper;
+import org.ea.sqrl.database.IdentityRepository;
+import org.ea.sqrl.processors.EntropyHarvester;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.utils.PasswordStrengthMeter;
 import org.ea.sqrl.utils.SqrlApplication;
@@ -23,7 +27,10 @@ import org.ea.sqrl.utils.SqrlApplication;
 public class SaveIdentityActivity extends LoginBaseActivity {
     private static final String TAG = "SaveIdentityActivity";
 
-    private boolean firstIdentity = false;
+    private static final String JOB_SAVE_IDENTITY = "SaveIdentityActivity.save";
+
+    private EditText txtNewPassword;
+    private EditText txtRetypePassword;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,8 +44,8 @@ public class SaveIdentityActivity extends LoginBaseActivity {
 
         SQRLStorage storage = SQRLStorage.getInstance(SaveIdentityActivity.this.getApplicationContext());
 
-        final EditText txtNewPassword = findViewById(R.id.txtNewPassword);
-        final EditText txtRetypePassword = findViewById(R.id.txtRetypePassword);
+        txtNewPassword = findViewById(R.id.txtNewPassword);
+        txtRetypePassword = findViewById(R.id.txtRetypePassword);
         final ViewGroup pwStrengthMeter = findViewById(R.id.passwordStrengthMeter);
         final ImageView imgNewPasswordHelp = findViewById(R.id.imgNewPasswordHelp);
 
@@ -56,55 +63,65 @@ public class SaveIdentityActivity extends LoginBaseActivity {
             }
             txtRetypePassword.setError(null);
 
-            showProgressPopup();
-
-            new Thread(() -> {
+            String newPassword = txtNewPassword.getText().toString();
+            EntropyHarvester harvester = entropyHarvester;
+            IdentityDBHelper dbHelper = mDbHelper;
+            Application application = getApplication();
+            startKdfJob(JOB_SAVE_IDENTITY, R.string.progress_state_encrypting_rescue_code_identity, () -> {
                 try {
-                    boolean encryptRescueCode = storage.encryptRescueKey(entropyHarvester);
+                    boolean encryptRescueCode = storage.encryptRescueKey(harvester);
                     if (!encryptRescueCode) {
                         Log.e(TAG, "Incorrect encryptRescue");
-                        showErrorMessage(R.string.encrypt_identity_fail);
-                        return;
+                        return R.string.encrypt_identity_fail;
                     }
 
                     storage.reInitializeMasterKeyIdentity();
 
-                    boolean encryptStatus = storage.encryptIdentityKey(txtNewPassword.getText().toString(), entropyHarvester);
+                    boolean encryptStatus = storage.encryptIdentityKey(newPassword, harvester);
                     if (!encryptStatus) {
                         Log.e(TAG, "Incorrect Password");
-                        showErrorMessage(R.string.encrypt_identity_fail);
-                        return;
+                        return R.string.encrypt_identity_fail;
                     }
+
+                    long newIdentityId = dbHelper.newIdentity(application, storage.createSaveData());
+                    SqrlApplication.saveCurrentId(application, newIdentityId);
+                    return 0;
                 } finally {
                     storage.clear();
-                    handler.post(() -> hideProgressPopup());
                 }
+            }, this::onSaveFinished);
+        });
+    }
 
-                if(!mDbHelper.hasIdentities()) {
-                    firstIdentity = true;
-                }
+    @Override
+    protected void onResume() {
+        super.onResume();
+        attachKdfJob(JOB_SAVE_IDENTITY, this::onSaveFinished);
+    }
 
-                long newIdentityId = mDbHelper.newIdentity(SaveIdentityActivity.this, storage.createSaveData());
-                SqrlApplication.saveCurrentId(this.getApplication(), newIdentityId);
+    private void onSaveFinished(int errorMessage) {
+        if (errorMessage != 0) {
+            showErrorMessage(errorMessage);
+            return;
+        }
 
-                handler.post(() -> {
-                    txtNewPassword.setText("");
-                    txtRetypePassword.setText("");
+        txtNewPassword.setText("");
+        txtRetypePassword.setText("");
 
-                    SaveIdentityActivity.this.finishAffinity();
+        // The job saved the identity, if it is the only one this was the first
+        IdentityRepository.getInstance(this).getIdentities(identities -> {
+            SaveIdentityActivity.this.finishAffinity();
 
-                    Intent nextActivity = null;
+            Intent nextActivity = null;
 
-                    if(firstIdentity) {
-                        nextActivity = new Intent(this, NewIdentityDoneActivity.class);
-                    } else {
-                        nextActivity = new Intent(this, RenameActivity.class);
-                        nextActivity.putExtra(SqrlApplication.EXTRA_NEXT_ACTIVITY, NewIdentityDoneActivity.class.getName());
-                    }
+            if(identities.size() == 1) {
+                nextActivity = new Intent(this, NewIdentityDoneActivity.class);
+            } else {
+                nextActivity = new Intent(this, RenameActivity.class);
+                nextActivity.putExtra(SqrlApplication.EXTRA_NEXT_ACTIVITY, NewIdentityDoneActivity.class.getName());
+            }
 
-                    startActivity(nextActivity);
-                });
-            }).start();
+            startActivity(nextActivity);
         });
     }
 
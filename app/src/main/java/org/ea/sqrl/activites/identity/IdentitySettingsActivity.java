@@ -1,5 +1,6 @@
 package org.ea.sqrl.activites.identity;
 
+import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.TextInputLayout;
 import android.text.Editable;
@@ -16,6 +17,7 @@ import android.widget.PopupWindow;
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.BaseActivity;
 import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.processors.UnlockedKeyCache;
 import org.ea.sqrl.utils.IdentitySelector;
 import org.ea.sqrl.utils.SqrlApplication;
 import org.ea.sqrl.utils.Utils;
@@ -35,6 +37,7 @@ public class IdentitySettingsActivity extends BaseActivity implements TextWatche
     private EditText txtQuickPassTimeout;
     private CheckBox cbSQRLOnly;
     private CheckBox cbNoBypass;
+    private CheckBox cbKeepUnlocked;
     private Button btnSettingsSave;
 
     private boolean mInputFieldsValid = false;
@@ -53,6 +56,8 @@ public class IdentitySettingsActivity extends BaseActivity implements TextWatche
         txtQuickPassTimeout = findViewById(R.id.txtSettingsQuickPassTimeout);
         cbSQRLOnly = findViewById(R.id.cbSettingsSQRLOnly);
         cbNoBypass = findViewById(R.id.cbSettingsNoBypass);
+        cbKeepUnlocked = findViewById(R.id.cbSettingsKeepUnlocked);
+        cbKeepUnlocked.setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
 
         txtQuickPassLength.addTextChangedListener(this);
         txtPwdVerifySecs.addTextChangedListener(this);
@@ -90,6 +95,10 @@ public class IdentitySettingsActivity extends BaseActivity implements TextWatche
         findViewById(R.id.imgSettingsNoBypassInfo).setOnClickListener(view ->
                 showInfoMessage(R.string.settings_no_sqrl_bypass, R.string.helptext_request_no_sqrl_bypass)
         );
+
+        findViewById(R.id.imgSettingsKeepUnlockedInfo).setOnClickListener(view ->
+                showInfoMessage(R.string.settings_keep_unlocked, R.string.helptext_keep_unlocked)
+        );
     }
 
     @Override
@@ -167,6 +176,7 @@ public class IdentitySettingsActivity extends BaseActivity implements TextWatche
         txtQuickPassTimeout.setText(Integer.toString(storage.getIdleTimeout()));
         cbSQRLOnly.setChecked(storage.isSQRLOnly());
         cbNoBypass.setChecked(storage.isNoByPass());
+        cbKeepUnlocked.setChecked(UnlockedKeyCache.isEnabled(getApplicationContext()));
     }
 
     public int getIntValue(EditText txt) {
@@ -234,6 +244,7 @@ public class IdentitySettingsActivity extends BaseActivity implements TextWatche
             }
             storage.clear();
             storage.clearQuickPass();
+            UnlockedKeyCache.setEnabled(getApplicationContext(), cbKeepUnlocked.isChecked());
 
             long currentId = SqrlApplication.getCurrentId(this.getApplication());
             mDbHelper.updateIdentityData(currentId, storage.createSaveData());
@@ -12,12 +12,9 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
-import com.google.zxing.integration.android.IntentIntegrator;
-import com.google.zxing.integration.android.IntentResult;
-import org.ea.sqrl.utils.QRCodeDecodeHelper;
-
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.MainActivity;
+import org.ea.sqrl.activites.QRCodeScanActivity;
 import org.ea.sqrl.activites.base.BaseActivity;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.utils.SqrlApplication;
@@ -28,6 +25,7 @@ import java.util.Arrays;
 public class ImportActivity extends BaseActivity {
     private static final String TAG = "ImportActivity";
     private static final int PICK_FILE_REQUEST_CODE = 1;
+    private static final int SCAN_QR_CODE_REQUEST_CODE = 2;
     public static final String EXTRA_IMPORT_METHOD = "import_method";
     public static final String IMPORT_METHOD_QR_CODE = "qr_code";
     public static final String IMPORT_METHOD_FORWARDED_QR_CODE = "forwarded_qr_code";
@@ -102,15 +100,7 @@ public class ImportActivity extends BaseActivity {
         }
 
         if (importMethod.equals(IMPORT_METHOD_QR_CODE)) {
-            final IntentIntegrator integrator = new IntentIntegrator(this);
-            integrator.setDesiredBarcodeFormats(IntentIntegrator.QR_CODE_TYPES);
-            integrator.setCameraId(0);
-            integrator.setBeepEnabled(false);
-            integrator.setOrientationLocked(false);
-            integrator.setBarcodeImageEnabled(false);
-
-            integrator.setPrompt(this.getString(R.string.scan_identity));
-            integrator.initiateScan();
+            startActivityForResult(new Intent(this, QRCodeScanActivity.class), SCAN_QR_CODE_REQUEST_CODE);
         }
 
         if (importMethod.equals(IMPORT_METHOD_FORWARDED_QR_CODE)) {
@@ -138,29 +128,27 @@ public class ImportActivity extends BaseActivity {
             return;
         }
 
-        IntentResult result = IntentIntegrator.parseActivityResult(requestCode, resultCode, data);
-        if(result != null) {
-            if(result.getContents() == null) {
+        if (requestCode == SCAN_QR_CODE_REQUEST_CODE) {
+            byte[] qrCodeData = data != null ? data.getByteArrayExtra(QRCodeScanActivity.EXTRA_SCANNED_DATA) : null;
+            if (resultCode != RESULT_OK || qrCodeData == null) {
                 Log.d(TAG, "Cancelled scan");
                 Snackbar.make(rootView, R.string.scan_cancel, Snackbar.LENGTH_LONG).show();
                 ImportActivity.this.finish();
-            } else {
-                try {
-                    byte[] qrCodeData = QRCodeDecodeHelper.decode(result.getRawBytes());
-                    if(qrCodeData.length == 0) {
-                        showErrorMessage(R.string.scan_incorrect);
-                        return;
-                    }
-
-                    readIdentityData(qrCodeData);
+                return;
+            }
+            if (qrCodeData.length == 0) {
+                showErrorMessage(R.string.scan_incorrect);
+                return;
+            }
 
-                } catch (Exception e) {
-                    if(e.getMessage().equals("Incorrect header")) {
-                        showErrorMessage(R.string.scan_incorrect);
-                    } else {
-                        showErrorMessage(e.getMessage());
-                        Log.e(TAG, e.getMessage(), e);
-                    }
+            try {
+                readIdentityData(qrCodeData);
+            } catch (Exception e) {
+                if ("Incorrect header".equals(e.getMessage())) {
+                    showErrorMessage(R.string.scan_incorrect);
+                } else {
+                    showErrorMessage(e.getMessage());
+                    Log.e(TAG, e.getMessage(), e);
                 }
             }
         }
@@ -1,5 +1,6 @@
 package org.ea.sqrl.activites.identity;
 
+import android.app.Application;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.design.widget.TextInputLayout;
@@ -10,8 +11,9 @@ import android.widget.EditText;
 import android.widget.TextView;
 
 import org.ea.sqrl.R;
-import org.ea.sqrl.activites.MainActivity;
 import org.ea.sqrl.activites.base.BaseActivity;
+import org.ea.sqrl.database.IdentityDBHelper;
+import org.ea.sqrl.processors.EntropyHarvester;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.utils.PasswordStrengthMeter;
 import org.ea.sqrl.utils.RescueCodeInputHelper;
@@ -19,19 +21,24 @@ import org.ea.sqrl.utils.SqrlApplication;
 import org.ea.sqrl.utils.Utils;
 
 public class ResetPasswordActivity extends BaseActivity {
+    private static final String JOB_RESET_PASSWORD = "ResetPasswordActivity.reset";
+
+    private boolean newIdentity;
+    private EditText txtResetPasswordNewPassword;
+    private RescueCodeInputHelper rescueCodeInputHelper;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_reset_password);
 
-        final boolean newIdentity = getIntent().getBooleanExtra(SQRLStorage.NEW_IDENTITY, false);
+        newIdentity = getIntent().getBooleanExtra(SQRLStorage.NEW_IDENTITY, false);
 
         setupProgressPopupWindow(getLayoutInflater());
         setupErrorPopupWindow(getLayoutInflater());
 
         final TextInputLayout newPwdTextInputLayout = findViewById(R.id.txtResetPasswordNewPasswordLayout);
-        final EditText txtResetPasswordNewPassword = findViewById(R.id.txtResetPasswordNewPassword);
+        txtResetPasswordNewPassword = findViewById(R.id.txtResetPasswordNewPassword);
         final TextView txtResetPasswordDescription = findViewById(R.id.txtResetPasswordDescription);
         final ViewGroup pwStrengthMeter = findViewById(R.id.passwordStrengthMeter);
         final ViewGroup rootView = findViewById(R.id.resetPasswordActivityView);
@@ -51,7 +58,7 @@ public class ResetPasswordActivity extends BaseActivity {
             txtResetPasswordDescription.setVisibility(hasFocus ? View.GONE : View.VISIBLE);
         });
 
-        RescueCodeInputHelper rescueCodeInputHelper = new RescueCodeInputHelper(
+        rescueCodeInputHelper = new RescueCodeInputHelper(
                 this, rootView, txtResetPasswordNewPassword, false);
         rescueCodeInputHelper.setStatusChangedListener(successfullyCompleted -> {
             btnResetPassword.setEnabled(successfullyCompleted);
@@ -64,61 +71,60 @@ public class ResetPasswordActivity extends BaseActivity {
             SQRLStorage storage = SQRLStorage.getInstance(ResetPasswordActivity.this.getApplicationContext());
 
             Utils.reMaskPassword(newPwdTextInputLayout);
-            showProgressPopup();
 
-            new Thread(() -> {
-                String rescueCode = rescueCodeInputHelper.getRescueCodeInput();
+            String rescueCode = rescueCodeInputHelper.getRescueCodeInput();
+            String newPassword = txtResetPasswordNewPassword.getText().toString();
+            EntropyHarvester harvester = entropyHarvester;
+            IdentityDBHelper dbHelper = mDbHelper;
+            Application application = getApplication();
+            boolean importedIdentity = newIdentity;
+            startKdfJob(JOB_RESET_PASSWORD, R.string.progress_state_descrypting_rescuecode_identity, () -> {
+                try {
+                    if (!storage.decryptUnlockKey(rescueCode)) {
+                        return R.string.decrypt_identity_fail;
+                    }
 
-                boolean decryptionOk = storage.decryptUnlockKey(rescueCode);
-                if (!decryptionOk) {
-                    handler.post(() -> hideProgressPopup());
-                    showErrorMessage(R.string.decrypt_identity_fail);
-                    return;
-                }
+                    storage.reInitializeMasterKeyIdentity();
 
-                storage.reInitializeMasterKeyIdentity();
+                    if (!storage.encryptIdentityKey(newPassword, harvester)) {
+                        return R.string.encrypt_identity_fail;
+                    }
 
-                boolean encryptStatus = storage.encryptIdentityKey(txtResetPasswordNewPassword.getText().toString(), entropyHarvester);
-                if (!encryptStatus) {
-                    handler.post(() -> hideProgressPopup());
-                    showErrorMessage(R.string.encrypt_identity_fail);
-                    return;
+                    if (dbHelper.hasIdentities() && !importedIdentity) {
+                        long currentId = SqrlApplication.getCurrentId(application);
+                        if (currentId != 0) {
+                            dbHelper.updateIdentityData(currentId, storage.createSaveData());
+                        }
+                    } else {
+                        long newIdentityId = dbHelper.newIdentity(application, storage.createSaveData());
+                        SqrlApplication.saveCurrentId(application, newIdentityId);
+                    }
+                    return 0;
+                } finally {
+                    storage.clear();
                 }
-                storage.clear();
+            }, this::onResetFinished);
+        });
+    }
 
-                storage.clear();
-                handler.post(() -> {
-                    hideProgressPopup();
-                    txtResetPasswordNewPassword.setText("");
-                    rescueCodeInputHelper.clearForm();
-                });
+    @Override
+    protected void onResume() {
+        super.onResume();
+        attachKdfJob(JOB_RESET_PASSWORD, this::onResetFinished);
+    }
 
-                if(mDbHelper.hasIdentities() && !newIdentity) {
-                    long currentId = SqrlApplication.getCurrentId(this.getApplication());
+    private void onResetFinished(int errorMessage) {
+        if (errorMessage != 0) {
+            showErrorMessage(errorMessage);
+            return;
+        }
 
-                    if(currentId != 0) {
-                        mDbHelper.updateIdentityData(currentId, storage.createSaveData());
-                    }
-                    handler.post(() -> ResetPasswordActivity.this.finish());
-                } else {
-                    long newIdentityId = mDbHelper.newIdentity(
-                            ResetPasswordActivity.this, storage.createSaveData());
-                    SqrlApplication.saveCurrentId(this.getApplication(), newIdentityId);
-
-                    if(newIdentity) {
-                        handler.post(() -> {
-                            ResetPasswordActivity.this.finish();
-                            startActivity(new Intent(this, RenameActivity.class));
-                        });
-                    } else {
-                        handler.post(() -> {
-                            ResetPasswordActivity.this.finish();
-                            startActivity(new Intent(this, MainActivity.class));
-                        });
-                    }
-                }
+        txtResetPasswordNewPassword.setText("");
+        rescueCodeInputHelper.clearForm();
 
-            }).start();
-        });
+        ResetPasswordActivity.this.finish();
+        if (newIdentity) {
+            startActivity(new Intent(this, RenameActivity.class));
+        }
     }
 }
@@ -1,7 +1,9 @@
 package org.ea.sqrl.activites.identity;
 
+import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Button;
@@ -11,8 +13,13 @@ import android.widget.TextView;
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.BaseActivity;
 import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.utils.FountainCode;
+import org.ea.sqrl.utils.QrCodeCache;
 import org.ea.sqrl.utils.SqrlApplication;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import io.nayuki.qrcodegen.QrCode;
 
 /**
@@ -23,31 +30,48 @@ import io.nayuki.qrcodegen.QrCode;
  */
 public class ShowIdentityActivity extends BaseActivity {
     private static final String TAG = "ShowIdentityActivity";
+    private static final int FRAME_BLOCK_SIZE = 100;
+    private static final long FRAME_INTERVAL_MS = 250;
 
-    @Override
-    protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_show_identity);
-
-        long currentId = SqrlApplication.getCurrentId(this.getApplication());
+    private static final ExecutorService qrCodeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ShowIdentityQRCode");
+        t.setDaemon(true);
+        return t;
+    });
 
-        if(currentId == 0) return;
+    private ImageView imageView;
+    private Bitmap singleQRCode;
+    private FountainCode.Encoder frameEncoder;
+    private int nextFrame = 0;
+    private boolean animated = false;
+    private int animationRun = 0;
 
-        final byte[] qrCodeData = mDbHelper.getIdentityData(currentId);
-        if (qrCodeData.length == 0) {
-            return;
+    /**
+     * Encodes the next frame off the main thread and shows it, the following frame is only
+     * started once this one is on screen so a slow device never builds up a queue.
+     */
+    private final Runnable showNextFrame = new Runnable() {
+        @Override
+        public void run() {
+            final FountainCode.Encoder encoder = frameEncoder;
+            final int frameIndex = nextFrame++;
+            final int run = animationRun;
+            qrCodeExecutor.execute(() -> {
+                byte[] frame = encoder.getFrame(frameIndex);
+                Bitmap bitmap = QrCode.encodeBinary(frame, QrCode.Ecc.MEDIUM).toImage(3, 0);
+                handler.post(() -> {
+                    if (run != animationRun) return;
+                    imageView.setImageBitmap(bitmap);
+                    handler.postDelayed(showNextFrame, FRAME_INTERVAL_MS);
+                });
+            });
         }
+    };
 
-
-        final TextView txtIdentityText = findViewById(R.id.txtIdentityText);
-        SQRLStorage storage = SQRLStorage.getInstance(ShowIdentityActivity.this.getApplicationContext());
-        try {
-            storage.read(qrCodeData);
-            txtIdentityText.setText(storage.getVerifyingRecoveryBlock());
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage(), e);
-            return;
-        }
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_show_identity);
 
         final Button btnCloseIdentity = findViewById(R.id.btnCloseIdentity);
         btnCloseIdentity.setOnClickListener(
@@ -56,18 +80,76 @@ public class ShowIdentityActivity extends BaseActivity {
                 }
         );
 
+        imageView = findViewById(R.id.imgQRCode);
+        final TextView txtIdentityText = findViewById(R.id.txtIdentityText);
+        final Button btnAnimatedQRCode = findViewById(R.id.btnAnimatedQRCode);
+        btnAnimatedQRCode.setEnabled(false);
+        btnAnimatedQRCode.setOnClickListener(v -> {
+            animated = !animated;
+            btnAnimatedQRCode.setText(animated ?
+                    R.string.button_show_single_qrcode : R.string.button_show_animated_qrcode);
+            stopAnimation();
+            if (animated) {
+                handler.post(showNextFrame);
+            } else {
+                imageView.setImageBitmap(singleQRCode);
+            }
+        });
+
         final boolean exportWithoutPassword = getIntent().getBooleanExtra(EXPORT_WITHOUT_PASSWORD, false);
+        final Application application = getApplication();
+        final SQRLStorage storage = SQRLStorage.getInstance(application);
 
-        byte[] saveData;
-        if(exportWithoutPassword) {
-            saveData = storage.createSaveDataWithoutPassword();
-        } else {
-            saveData = storage.createSaveData();
-        }
+        qrCodeExecutor.execute(() -> {
+            long currentId = SqrlApplication.getCurrentId(application);
+            if(currentId == 0) return;
+
+            final byte[] qrCodeData = mDbHelper.getIdentityData(currentId);
+            if (qrCodeData.length == 0) {
+                return;
+            }
 
-        ImageView imageView = findViewById(R.id.imgQRCode);
+            final String recoveryBlock;
+            final byte[] saveData;
+            try {
+                storage.read(qrCodeData);
+                recoveryBlock = storage.getVerifyingRecoveryBlock();
+                if(exportWithoutPassword) {
+                    saveData = storage.createSaveDataWithoutPassword();
+                } else {
+                    saveData = storage.createSaveData();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+                return;
+            }
+
+            final Bitmap qrCode = QrCodeCache.getInstance().getImage(saveData, 3, 0);
+            final FountainCode.Encoder encoder = new FountainCode.Encoder(saveData, FRAME_BLOCK_SIZE);
+            handler.post(() -> {
+                txtIdentityText.setText(recoveryBlock);
+                singleQRCode = qrCode;
+                frameEncoder = encoder;
+                if (!animated) imageView.setImageBitmap(qrCode);
+                btnAnimatedQRCode.setEnabled(true);
+            });
+        });
+    }
 
-        QrCode qrCode = QrCode.encodeBinary(saveData, QrCode.Ecc.MEDIUM);
-        imageView.setImageBitmap(qrCode.toImage(3, 0));
+    private void stopAnimation() {
+        animationRun++;
+        handler.removeCallbacks(showNextFrame);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (animated) handler.post(showNextFrame);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        stopAnimation();
     }
 }
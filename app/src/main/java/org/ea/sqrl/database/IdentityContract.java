@@ -14,5 +14,15 @@ public class IdentityContract {
         public static final String TABLE_NAME = "identities";
         public static final String COLUMN_NAME_NAME = "name";
         public static final String COLUMN_NAME_DATA = "data";
+        public static final String COLUMN_NAME_CONTENT_HASH = "content_hash";
+        public static final String COLUMN_NAME_HINT_LENGTH = "hint_length";
+        public static final String COLUMN_NAME_LOG_N_FACTOR = "log_n_factor";
+        public static final String COLUMN_NAME_ITERATION_COUNT = "iteration_count";
+        public static final String COLUMN_NAME_OPTION_FLAGS = "option_flags";
+        public static final String COLUMN_NAME_IDLE_TIMEOUT = "idle_timeout";
+        public static final String COLUMN_NAME_PREVIOUS_KEY_COUNT = "previous_key_count";
+        public static final String COLUMN_NAME_HAS_RESCUE_BLOCK = "has_rescue_block";
+        public static final String COLUMN_NAME_LAST_USED = "last_used";
+        public static final String INDEX_NAME_NAME = "identities_name_idx";
     }
 }
@@ -6,12 +6,18 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import org.ea.sqrl.R;
 import org.ea.sqrl.database.IdentityContract.IdentityEntry;
+import org.ea.sqrl.utils.QrCodeCache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This little database handle makes it possible to create a new data store and save identities with
@@ -30,11 +36,87 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + IdentityEntry.TABLE_NAME;
 
-    public static final int DATABASE_VERSION = 1;
+    private static final String SQL_CREATE_NAME_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + IdentityEntry.INDEX_NAME_NAME +
+                    " ON " + IdentityEntry.TABLE_NAME + " (" + IdentityEntry.COLUMN_NAME_NAME + ")";
+
+    /**
+     * One step of the schema history, taking the database from the version before it to
+     * the version after it.
+     */
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    /*
+     * MIGRATIONS[i] upgrades version i + 1 to i + 2. New databases are created at version 1
+     * and run through all of them, so a fresh install and an upgraded one end up the same.
+     */
+    private static final Migration[] MIGRATIONS = new Migration[] {
+            db -> {
+                renameDuplicateNames(db);
+                db.execSQL(SQL_CREATE_NAME_INDEX);
+            },
+            db -> {
+                addColumn(db, IdentityEntry.COLUMN_NAME_CONTENT_HASH, "TEXT");
+                addColumn(db, IdentityEntry.COLUMN_NAME_HINT_LENGTH, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_LOG_N_FACTOR, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_ITERATION_COUNT, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_OPTION_FLAGS, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_IDLE_TIMEOUT, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_PREVIOUS_KEY_COUNT, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_HAS_RESCUE_BLOCK, "INTEGER");
+                addColumn(db, IdentityEntry.COLUMN_NAME_LAST_USED, "INTEGER DEFAULT 0");
+                backfillMetadata(db);
+            }
+    };
+
+    private static final String[] METADATA_COLUMNS = new String[] {
+            IdentityEntry.COLUMN_NAME_CONTENT_HASH,
+            IdentityEntry.COLUMN_NAME_HINT_LENGTH,
+            IdentityEntry.COLUMN_NAME_LOG_N_FACTOR,
+            IdentityEntry.COLUMN_NAME_ITERATION_COUNT,
+            IdentityEntry.COLUMN_NAME_OPTION_FLAGS,
+            IdentityEntry.COLUMN_NAME_IDLE_TIMEOUT,
+            IdentityEntry.COLUMN_NAME_PREVIOUS_KEY_COUNT,
+            IdentityEntry.COLUMN_NAME_HAS_RESCUE_BLOCK,
+            IdentityEntry.COLUMN_NAME_LAST_USED
+    };
+
+    private static final String SELECTION_BY_ID = IdentityEntry._ID + " = ?";
+
+    private static final String SQL_UPDATE_NAME =
+            "UPDATE " + IdentityEntry.TABLE_NAME + " SET " + IdentityEntry.COLUMN_NAME_NAME + " = ?" +
+                    " WHERE " + SELECTION_BY_ID;
+
+    private static final String SQL_UPDATE_LAST_USED =
+            "UPDATE " + IdentityEntry.TABLE_NAME + " SET " + IdentityEntry.COLUMN_NAME_LAST_USED + " = ?" +
+                    " WHERE " + SELECTION_BY_ID;
+
+    private static final String SQL_DELETE_IDENTITY =
+            "DELETE FROM " + IdentityEntry.TABLE_NAME + " WHERE " + SELECTION_BY_ID;
+
+    private static final String SQL_COUNT_IDENTITIES =
+            "SELECT COUNT(*) FROM " + IdentityEntry.TABLE_NAME;
+
+    public static final int DATABASE_VERSION = MIGRATIONS.length + 1;
     public static final String DATABASE_NAME = "SQRLIdentities.db";
 
     private static IdentityDBHelper mIdentityDbHelper;
 
+    /*
+     * Write-through copy of the id to name mapping, plus the reverse mapping used to check
+     * that names are unique. Loaded on first use and kept in step with every write.
+     */
+    private Map<Long, String> mIdentityNames = null;
+    private Map<String, Long> mIdentityIds = null;
+
+    /*
+     * Statements compiled once per open database and reused, guarded by the helper's lock.
+     */
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+    private SQLiteDatabase mStatementDatabase = null;
+
     public static IdentityDBHelper getInstance(Context context) {
         if (mIdentityDbHelper == null) {
             mIdentityDbHelper = new IdentityDBHelper(context);
@@ -43,19 +125,138 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
     }
 
     private IdentityDBHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    private static String[] idArgs(long id) {
+        return new String[] {Long.toString(id)};
+    }
+
+    private synchronized SQLiteStatement getStatement(String sql) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        if (db != mStatementDatabase) {
+            releaseStatements();
+            mStatementDatabase = db;
+        }
+
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    private synchronized void releaseStatements() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mStatementDatabase = null;
+    }
+
+    @Override
+    public synchronized void close() {
+        releaseStatements();
+        super.close();
     }
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        /*
-         * Might need to look into upgrade and downgrade strategies if we change
-         * this but probably not.
-         */
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        if (newVersion < oldVersion) {
+            db.execSQL(SQL_DELETE_ENTRIES);
+            onCreate(db);
+            return;
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            MIGRATIONS[version - 1].migrate(db);
+        }
+    }
+
+    private static void addColumn(SQLiteDatabase db, String column, String type) {
+        db.execSQL("ALTER TABLE " + IdentityEntry.TABLE_NAME + " ADD COLUMN " + column + " " + type);
+    }
+
+    /*
+     * Names were kept unique by the app before the index existed, the rename makes sure
+     * stray duplicates from old versions can't stop the index from being created. Every
+     * duplicate after the first gets a suffix, checked against all names already in use.
+     */
+    private static void renameDuplicateNames(SQLiteDatabase db) {
+        List<Long> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Cursor cursor = db.query(
+                IdentityEntry.TABLE_NAME,
+                new String[] {IdentityEntry._ID, IdentityEntry.COLUMN_NAME_NAME},
+                null, null, null, null,
+                IdentityEntry._ID
+        );
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+            names.add(cursor.getString(1));
+        }
+        cursor.close();
+
+        Set<String> takenNames = new HashSet<>(names);
+        Set<String> seenNames = new HashSet<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String name = names.get(i);
+            if (name == null || seenNames.add(name)) continue;
+
+            String newName = uniqueName(name, ids.get(i), takenNames);
+            takenNames.add(newName);
+            ContentValues values = new ContentValues();
+            values.put(IdentityEntry.COLUMN_NAME_NAME, newName);
+            db.update(IdentityEntry.TABLE_NAME, values, SELECTION_BY_ID, idArgs(ids.get(i)));
+        }
+    }
+
+    /**
+     * The name with the first free number after it, starting from the identity's id.
+     */
+    static String uniqueName(String name, long id, Set<String> takenNames) {
+        long suffix = id;
+        String newName = name + " " + suffix;
+        while (takenNames.contains(newName)) {
+            newName = name + " " + ++suffix;
+        }
+        return newName;
+    }
+
+    private static void backfillMetadata(SQLiteDatabase db) {
+        Cursor cursor = db.query(
+                IdentityEntry.TABLE_NAME,
+                new String[] {IdentityEntry._ID, IdentityEntry.COLUMN_NAME_DATA},
+                null, null, null, null, null
+        );
+        while (cursor.moveToNext()) {
+            ContentValues values = new ContentValues();
+            putMetadata(values, cursor.getBlob(1));
+            db.update(
+                    IdentityEntry.TABLE_NAME,
+                    values,
+                    SELECTION_BY_ID,
+                    idArgs(cursor.getLong(0)));
+        }
+        cursor.close();
+    }
+
+    private static void putMetadata(ContentValues values, byte[] data) {
+        IdentityMetadata metadata = IdentityMetadata.fromIdentityData(data);
+        values.put(IdentityEntry.COLUMN_NAME_CONTENT_HASH, metadata.getContentHash());
+        values.put(IdentityEntry.COLUMN_NAME_HINT_LENGTH, metadata.getHintLength());
+        values.put(IdentityEntry.COLUMN_NAME_LOG_N_FACTOR, metadata.getLogNFactor());
+        values.put(IdentityEntry.COLUMN_NAME_ITERATION_COUNT, metadata.getIterationCount());
+        values.put(IdentityEntry.COLUMN_NAME_OPTION_FLAGS, metadata.getOptionFlags());
+        values.put(IdentityEntry.COLUMN_NAME_IDLE_TIMEOUT, metadata.getIdleTimeoutInMinutes());
+        values.put(IdentityEntry.COLUMN_NAME_PREVIOUS_KEY_COUNT, metadata.getPreviousKeyCount());
+        values.put(IdentityEntry.COLUMN_NAME_HAS_RESCUE_BLOCK, metadata.hasRescueBlock() ? 1 : 0);
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -65,11 +266,16 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
     public long newIdentity(Context context, byte[] data) {
         ContentValues values = new ContentValues();
         values.put(IdentityContract.IdentityEntry.COLUMN_NAME_DATA, data);
+        putMetadata(values, data);
         long id = this.getWritableDatabase().insert(
                     IdentityEntry.TABLE_NAME,
                     null,
                     values
                 );
+        if (id != -1) {
+            indexIdentity(id, null);
+        }
+        QrCodeCache.getInstance().clear();
 
         updateIdentityName(context, id,
                 context.getResources().getString(R.string.default_identity_name));
@@ -78,11 +284,11 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
     }
 
     public byte[] getIdentityData(long id) {
-        Cursor cursor = this.getWritableDatabase().query(
+        Cursor cursor = this.getReadableDatabase().query(
                 IdentityEntry.TABLE_NAME,
                 new String[] {IdentityEntry.COLUMN_NAME_DATA},
-                IdentityEntry._ID + " = " + id,
-                null,
+                SELECTION_BY_ID,
+                idArgs(id),
                 null,
                 null,
                 null
@@ -96,8 +302,16 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
         return returnVal;
     }
 
-    public Map<Long, String> getIdentities() {
-        Cursor cursor = this.getWritableDatabase().query(
+    public synchronized Map<Long, String> getIdentities() {
+        return new HashMap<>(getIdentityIndex());
+    }
+
+    private synchronized Map<Long, String> getIdentityIndex() {
+        if (mIdentityNames != null) {
+            return mIdentityNames;
+        }
+
+        Cursor cursor = this.getReadableDatabase().query(
                 IdentityEntry.TABLE_NAME,
                 new String[] {
                         IdentityEntry._ID,
@@ -111,35 +325,56 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
         );
 
         @SuppressLint("UseSparseArrays") Map<Long, String> identities = new HashMap<>();
+        Map<String, Long> identityIds = new HashMap<>();
         while(cursor.moveToNext()) {
             Long id = cursor.getLong(0);
             String name = cursor.getString(1);
-            identities.put(id, name != null ? name : "ID " + id);
+            String displayName = name != null ? name : "ID " + id;
+            identities.put(id, displayName);
+            identityIds.put(displayName, id);
         }
         cursor.close();
+        mIdentityNames = identities;
+        mIdentityIds = identityIds;
         return identities;
     }
 
-    public void deleteIdentity(long id) {
-        this.getWritableDatabase().delete(
-                IdentityEntry.TABLE_NAME,
-                IdentityEntry._ID + " = " + id,
-                null
-        );
+    private synchronized void indexIdentity(long id, String name) {
+        if (mIdentityNames == null) return;
+
+        String oldName = mIdentityNames.remove(id);
+        if (oldName != null) {
+            mIdentityIds.remove(oldName);
+        }
+        String displayName = name != null ? name : "ID " + id;
+        mIdentityNames.put(id, displayName);
+        mIdentityIds.put(displayName, id);
     }
 
-    public boolean checkUnique(long id, String name) {
-        for(Map.Entry<Long, String> entry : getIdentities().entrySet()) {
-            if(entry.getKey() != id && entry.getValue().equals(name)) {
-                return false;
-            }
+    private synchronized void unindexIdentity(long id) {
+        if (mIdentityNames == null) return;
+
+        String oldName = mIdentityNames.remove(id);
+        if (oldName != null) {
+            mIdentityIds.remove(oldName);
         }
-        return true;
     }
 
-    public void updateIdentityName(Context context, long id, String name) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    public synchronized void deleteIdentity(long id) {
+        SQLiteStatement statement = getStatement(SQL_DELETE_IDENTITY);
+        statement.bindLong(1, id);
+        statement.executeUpdateDelete();
+        unindexIdentity(id);
+        QrCodeCache.getInstance().clear();
+    }
 
+    public synchronized boolean checkUnique(long id, String name) {
+        getIdentityIndex();
+        Long owner = mIdentityIds.get(name);
+        return owner == null || owner == id;
+    }
+
+    public synchronized void updateIdentityName(Context context, long id, String name) {
         if (name == null || name.isEmpty()) {
             name = context.getResources().getString(R.string.default_identity_name);
         }
@@ -151,14 +386,12 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
             i++;
         }
 
-        ContentValues values = new ContentValues();
-        values.put(IdentityEntry.COLUMN_NAME_NAME, newName);
-
-        db.update(
-                IdentityEntry.TABLE_NAME,
-                values,
-                IdentityEntry._ID + " = " + id,
-                null);
+        SQLiteStatement statement = getStatement(SQL_UPDATE_NAME);
+        statement.bindString(1, newName);
+        statement.bindLong(2, id);
+        if (statement.executeUpdateDelete() > 0) {
+            indexIdentity(id, newName);
+        }
     }
 
     public void updateIdentityData(long id, byte[] data) {
@@ -166,21 +399,69 @@ public class IdentityDBHelper extends SQLiteOpenHelper {
 
         ContentValues values = new ContentValues();
         values.put(IdentityEntry.COLUMN_NAME_DATA, data);
+        putMetadata(values, data);
 
         db.update(
                 IdentityEntry.TABLE_NAME,
                 values,
-                IdentityEntry._ID + " = " + id,
-                null);
+                SELECTION_BY_ID,
+                idArgs(id));
+        QrCodeCache.getInstance().clear();
+    }
+
+    /**
+     * Gets the facts about an identity stored next to its data, without loading the data.
+     *
+     * @param id    The id of the identity.
+     * @return  The metadata, or null if there is no identity with this id.
+     */
+    public IdentityMetadata getIdentityMetadata(long id) {
+        Cursor cursor = this.getReadableDatabase().query(
+                IdentityEntry.TABLE_NAME,
+                METADATA_COLUMNS,
+                SELECTION_BY_ID,
+                idArgs(id),
+                null,
+                null,
+                null
+        );
+
+        IdentityMetadata metadata = null;
+        if (cursor.moveToFirst()) {
+            metadata = new IdentityMetadata(
+                    cursor.getString(0),
+                    cursor.getInt(1),
+                    cursor.getInt(2),
+                    cursor.getInt(3),
+                    cursor.getInt(4),
+                    cursor.getInt(5),
+                    cursor.getInt(6),
+                    cursor.getInt(7) != 0,
+                    cursor.getLong(8)
+            );
+        }
+        cursor.close();
+        return metadata;
     }
 
-    public boolean hasIdentities() {
-        Map<Long, String> identities = getIdentities();
-        return identities.size() > 0;
+    /**
+     * Records that the identity has just been selected or used.
+     */
+    public synchronized void touchIdentity(long id) {
+        SQLiteStatement statement = getStatement(SQL_UPDATE_LAST_USED);
+        statement.bindLong(1, System.currentTimeMillis());
+        statement.bindLong(2, id);
+        statement.executeUpdateDelete();
+    }
+
+    public synchronized boolean hasIdentities() {
+        if (mIdentityNames != null) {
+            return mIdentityNames.size() > 0;
+        }
+        return getStatement(SQL_COUNT_IDENTITIES).simpleQueryForLong() > 0;
     }
 
-    public String getIdentityName(long currentId) {
-        Map<Long, String> identities = this.getIdentities();
-        return identities.get(currentId);
+    public synchronized String getIdentityName(long currentId) {
+        return getIdentityIndex().get(currentId);
     }
 }
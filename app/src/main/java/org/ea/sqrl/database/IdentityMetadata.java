@@ -0,0 +1,154 @@
+package org.ea.sqrl.database;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The plaintext facts about a stored identity that screens need without decrypting or
+ * even parsing the identity, extracted once when the identity is written.
+ *
+ * @author Daniel Persson
+ */
+public class IdentityMetadata {
+    private static final String STORAGE_HEADER = "sqrldata";
+    private static final int PASSWORD_PBKDF = 1;
+    private static final int RESCUECODE_PBKDF = 2;
+    private static final int PREVIOUS_IDENTITY_KEYS = 3;
+
+    private final String contentHash;
+    private final int hintLength;
+    private final int logNFactor;
+    private final int iterationCount;
+    private final int optionFlags;
+    private final int idleTimeoutInMinutes;
+    private final int previousKeyCount;
+    private final boolean hasRescueBlock;
+    private final long lastUsed;
+
+    public IdentityMetadata(String contentHash, int hintLength, int logNFactor, int iterationCount,
+                            int optionFlags, int idleTimeoutInMinutes, int previousKeyCount,
+                            boolean hasRescueBlock, long lastUsed) {
+        this.contentHash = contentHash;
+        this.hintLength = hintLength;
+        this.logNFactor = logNFactor;
+        this.iterationCount = iterationCount;
+        this.optionFlags = optionFlags;
+        this.idleTimeoutInMinutes = idleTimeoutInMinutes;
+        this.previousKeyCount = previousKeyCount;
+        this.hasRescueBlock = hasRescueBlock;
+        this.lastUsed = lastUsed;
+    }
+
+    /**
+     * Reads the plaintext parts of the type 1, 2 and 3 blocks of a binary "sqrldata"
+     * identity. Fields of blocks that are missing, or of data in another format, are 0.
+     *
+     * @param data  The identity as stored in the database.
+     * @return  The extracted metadata, never null.
+     */
+    public static IdentityMetadata fromIdentityData(byte[] data) {
+        int hintLength = 0;
+        int logNFactor = 0;
+        int iterationCount = 0;
+        int optionFlags = 0;
+        int idleTimeoutInMinutes = 0;
+        int previousKeyCount = 0;
+        boolean hasRescueBlock = false;
+
+        if (data != null && data.length > STORAGE_HEADER.length() &&
+                STORAGE_HEADER.equals(new String(Arrays.copyOfRange(data, 0, 8), StandardCharsets.US_ASCII))) {
+            int offset = 8;
+            while (offset + 4 <= data.length) {
+                int len = getIntFromTwoBytes(data, offset);
+                int type = getIntFromTwoBytes(data, offset + 2);
+                if (len < 4 || offset + len > data.length) break;
+
+                switch (type) {
+                    case PASSWORD_PBKDF:
+                        if (len < 45) break;
+                        logNFactor = data[offset + 34] & 0xff;
+                        iterationCount = getIntFromFourBytes(data, offset + 35);
+                        optionFlags = getIntFromTwoBytes(data, offset + 39);
+                        hintLength = data[offset + 41] & 0xff;
+                        idleTimeoutInMinutes = getIntFromTwoBytes(data, offset + 43);
+                        break;
+                    case RESCUECODE_PBKDF:
+                        hasRescueBlock = true;
+                        break;
+                    case PREVIOUS_IDENTITY_KEYS:
+                        if (len < 6) break;
+                        previousKeyCount = getIntFromTwoBytes(data, offset + 4);
+                        break;
+                }
+                offset += len;
+            }
+        }
+
+        return new IdentityMetadata(contentHash(data), hintLength, logNFactor, iterationCount,
+                optionFlags, idleTimeoutInMinutes, previousKeyCount, hasRescueBlock, 0);
+    }
+
+    /**
+     * Hex encoded SHA-256 of the identity data, used to tell whether an identity changed
+     * without comparing the blobs.
+     */
+    public static String contentHash(byte[] data) {
+        if (data == null) return null;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static int getIntFromTwoBytes(byte[] input, int offset) {
+        return (input[offset] & 0xff) | ((input[offset + 1] & 0xff) << 8);
+    }
+
+    private static int getIntFromFourBytes(byte[] input, int offset) {
+        return (input[offset] & 0xff) | ((input[offset + 1] & 0xff) << 8) | (input[offset + 2] & 0xff) << 16 | ((input[offset + 3] & 0xff) << 24);
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getHintLength() {
+        return hintLength;
+    }
+
+    public int getLogNFactor() {
+        return logNFactor;
+    }
+
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    public int getOptionFlags() {
+        return optionFlags;
+    }
+
+    public int getIdleTimeoutInMinutes() {
+        return idleTimeoutInMinutes;
+    }
+
+    public int getPreviousKeyCount() {
+        return previousKeyCount;
+    }
+
+    public boolean hasRescueBlock() {
+        return hasRescueBlock;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+}
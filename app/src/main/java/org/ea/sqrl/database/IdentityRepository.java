@@ -0,0 +1,102 @@
+package org.ea.sqrl.database;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous access to the identity database. All queries run one after another on a
+ * single database thread, results are handed back as futures and, if a callback is given,
+ * delivered on the main thread.
+ *
+ * @author Daniel Persson
+ */
+public class IdentityRepository {
+    private static final String TAG = "IdentityRepository";
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static IdentityRepository mInstance = null;
+
+    private final IdentityDBHelper mDbHelper;
+    private final ExecutorService mDbExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "IdentityDB");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private IdentityRepository(Context context) {
+        mDbHelper = IdentityDBHelper.getInstance(context);
+    }
+
+    public static synchronized IdentityRepository getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new IdentityRepository(context);
+        }
+        return mInstance;
+    }
+
+    private <T> Future<T> submit(Callable<T> query, Callback<T> callback) {
+        return mDbExecutor.submit(() -> {
+            T result = query.call();
+            if (callback != null) {
+                mMainHandler.post(() -> callback.onResult(result));
+            }
+            return result;
+        });
+    }
+
+    private Future<Void> submit(Runnable update) {
+        return mDbExecutor.submit(() -> {
+            try {
+                update.run();
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+                throw e;
+            }
+            return null;
+        });
+    }
+
+    public Future<Map<Long, String>> getIdentities(Callback<Map<Long, String>> callback) {
+        return submit(mDbHelper::getIdentities, callback);
+    }
+
+    public Future<String> getIdentityName(long id, Callback<String> callback) {
+        return submit(() -> mDbHelper.getIdentityName(id), callback);
+    }
+
+    public Future<Boolean> hasIdentities(Callback<Boolean> callback) {
+        return submit(mDbHelper::hasIdentities, callback);
+    }
+
+    public Future<byte[]> getIdentityData(long id, Callback<byte[]> callback) {
+        return submit(() -> mDbHelper.getIdentityData(id), callback);
+    }
+
+    public Future<IdentityMetadata> getIdentityMetadata(long id, Callback<IdentityMetadata> callback) {
+        return submit(() -> mDbHelper.getIdentityMetadata(id), callback);
+    }
+
+    public Future<Void> updateIdentityData(long id, byte[] data) {
+        return submit(() -> mDbHelper.updateIdentityData(id, data));
+    }
+
+    public Future<Void> touchIdentity(long id) {
+        return submit(() -> mDbHelper.touchIdentity(id));
+    }
+
+    public Future<Void> deleteIdentity(long id) {
+        return submit(() -> mDbHelper.deleteIdentity(id));
+    }
+}
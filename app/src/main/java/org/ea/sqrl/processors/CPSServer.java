@@ -7,198 +7,544 @@ import org.ea.sqrl.R;
 import org.ea.sqrl.utils.EncryptionUtils;
 import org.ea.sqrl.utils.Utils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a minimalistic "web server" on port 25519 to support
  * SQRL's "Client Provided Session (CPS)" authentication protection mechanism.
  *
+ * The listener is a single selector thread that stays bound while the app is in the
+ * foreground. Every connection is read incrementally, so a slow or speculative browser
+ * connection never blocks the gif probe or the redirect of another connection. Each
+ * login registers a {@link Transaction} and CPS requests are routed to it by their nut.
  */
 public class CPSServer {
     private static final String TAG = "CPSServer";
     private static final int CPS_SERVER_PORT = 25519;
+    private static final long CPS_WAIT_TIMEOUT_MS = 5000;
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final String DUMMY_GIF = "R0lGODlhAQABAAAAACH5BAEKAAEALAAAAAABAAEAAAICTAEAOw==";
+
+    /*
+     * Responses that never change are encoded once and handed out as read only duplicates,
+     * so answering the browser's probe is a single gathering write without any allocation
+     * beyond the buffer views.
+     */
+    private static final ByteBuffer[] GIF_RESPONSE = createDummyGifImage();
+    private volatile ByteBuffer[] mAbortedResponse = null;
 
     private static CPSServer mInstance = null;
-    private static CommunicationFlowHandler mCommFlowHandler = null;
-    private static Context mContext;
-    private ServerSocket mServerSocket;
-    private boolean mSentImage = false;
-    private Thread mCpsThread;
-    private boolean mCancelCPS = false;
-
-    private CPSServer() {}
-
-    public static CPSServer getInstance(Context context, CommunicationFlowHandler communicationFlowHandler) {
-        mContext = context;
-        mCommFlowHandler = communicationFlowHandler;
+    private final Context mContext;
+
+    private final List<Transaction> mTransactions = new CopyOnWriteArrayList<>();
+    private final ExecutorService mControlExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "CPSControl");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Listener mListener;
+    private volatile long mLastProbeTime = 0;
+
+    private CPSServer(Context context) {
+        mContext = context.getApplicationContext();
+    }
 
+    public static synchronized CPSServer getInstance(Context context) {
         if(mInstance == null) {
-            mInstance = new CPSServer();
+            mInstance = new CPSServer(context);
         }
 
         return mInstance;
     }
 
-    public boolean start(Runnable doneAction) {
-        mCpsThread = new Thread(() -> {
+    /**
+     * Binds the listener if it isn't running yet. Called when the app comes to the foreground,
+     * the binding happens on the control thread so the caller never waits for a stopping
+     * listener to let go of the port.
+     */
+    public void startListener() {
+        mControlExecutor.execute(this::bindListener);
+    }
 
-            mSentImage = false;
-            boolean done = false;
+    /**
+     * Binds the listener like {@link #startListener()} and waits for the result, used when a
+     * login needs the server. Never called on the main thread.
+     *
+     * @return  True if the listener is bound to the CPS port.
+     */
+    private boolean awaitListener() {
+        try {
+            return mControlExecutor.submit(this::bindListener).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return false;
+        }
+    }
 
-            try {
-                mServerSocket = new ServerSocket(CPS_SERVER_PORT);
+    private boolean bindListener() {
+        // A listener that died on an error has already closed its channels
+        Listener current = mListener;
+        if (current != null && current.mThread.isAlive()) return true;
 
-                while (!mServerSocket.isClosed() && !done) {
-                    Socket socket = mServerSocket.accept();
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        mAbortedResponse = createConnectionAbortedPage();
 
-                    String requestLine = in.readLine();
-                    Log.i(TAG, requestLine);
+        Selector selector = null;
+        ServerSocketChannel serverChannel = null;
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(CPS_SERVER_PORT));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to bind CPS listener", e);
+            closeQuietly(selector, serverChannel);
+            return false;
+        }
 
-                    Map<String, String> headers = parseHeaders(in);
-                    if (headers.containsKey("origin")) {
-                        sendConnectionAbortedPage(socket);
-                        done = true;
-                        break;
-                    }
+        Listener listener = new Listener(selector, serverChannel);
+        mListener = listener;
+        listener.mThread.start();
+        return true;
+    }
 
-                    if(requestLine.contains("gif HTTP/1.1")) {
-                        sendDummyGifImage(socket);
-                        mSentImage = true;
-                    } else {
-                        String[] requestTokens = requestLine.split(" ");
-                        if (requestTokens.length < 2 || requestTokens[1].length() < 2) break;
-                        String data = requestTokens[1].substring(1);
-                        Map<String, String> params = getQueryParams(data);
-
-                        waitForTransactionDone();
-
-                        if (mCancelCPS) {
-                            if (params.containsKey("can")) {
-                                send302Redirect(socket, params.get("can"));
-                            } else {
-                                sendConnectionAbortedPage(socket);
-                            }
-                        } else {
-                            send302Redirect(socket, mCommFlowHandler.getCommHandler().getCPSUrl());
-                        }
-                        done = true;
-                    }
+    /**
+     * Unbinds the listener when the app leaves the foreground. Browser connections still
+     * waiting for a redirect are closed, registered logins are kept.
+     *
+     * The selector and its channels belong to the listener thread, so it is only woken up
+     * and closes them itself on the way out. The control thread waits for that before it
+     * binds again, the caller doesn't.
+     */
+    public void stopListener() {
+        mControlExecutor.execute(() -> {
+            Listener listener = mListener;
+            if (listener == null) return;
+            mListener = null;
+            listener.mThread.interrupt();
+            listener.mSelector.wakeup();
+            try {
+                listener.mThread.join(CPS_WAIT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
 
-                    in.close();
-                    socket.close();
+    private static void closeQuietly(Selector selector, ServerSocketChannel serverChannel) {
+        if (selector != null && selector.isOpen()) {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
                 }
+            }
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+        try {
+            if (selector != null) selector.close();
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Registers a new login with the listener.
+     *
+     * @param sqrlLink      The sqrl:// link of the login, used to route browser requests.
+     * @param doneAction    Run after the browser has been redirected.
+     * @return  The transaction the flow handler uses to signal and wait for the login.
+     */
+    public Transaction start(String sqrlLink, Runnable doneAction) {
+        Transaction transaction = new Transaction(getNut(sqrlLink), doneAction, awaitListener());
+        if (System.nanoTime() - mLastProbeTime < TimeUnit.MILLISECONDS.toNanos(CPS_WAIT_TIMEOUT_MS)) {
+            transaction.mBrowserSignal.countDown();
+        }
+        mTransactions.add(transaction);
+        return transaction;
+    }
+
+    /**
+     * The state of one login using CPS. Signals are fired from the flow handler's thread,
+     * all socket work happens on the listener thread.
+     */
+    public class Transaction {
+        private final String mNut;
+        private final Runnable mDoneAction;
+        private final boolean mListening;
+        private final List<SelectionKey> mWaitingRequests = new ArrayList<>();
+        private final CountDownLatch mBrowserSignal = new CountDownLatch(1);
+        private final CountDownLatch mRedirectSignal = new CountDownLatch(1);
+        private volatile String mCpsUrl = null;
+        private volatile boolean mCancelled = false;
+
+        private Transaction(String nut, Runnable doneAction, boolean listening) {
+            this.mNut = nut;
+            this.mDoneAction = doneAction;
+            this.mListening = listening;
+        }
+
+        /**
+         * Waits for the browser's "is the app there?" gif probe.
+         *
+         * @return False if the listener runs but no browser probed it in time.
+         */
+        public boolean waitForBrowser() {
+            if (!mListening) return true;
+            try {
+                return mBrowserSignal.await(CPS_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
-                mSentImage = false;
-                return;
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage(), e);
+                Thread.currentThread().interrupt();
+                return false;
             }
+        }
 
-            if(done) {
-                mSentImage = false;
-                doneAction.run();
+        /**
+         * Waits until the browser has been sent on its way, at most a few seconds.
+         */
+        public void waitForRedirect() {
+            if (!mListening) return;
+            try {
+                mRedirectSignal.await(CPS_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        });
-        mCpsThread.start();
+        }
 
-        waitForCPS(false);
+        /**
+         * Called by the flow handler as soon as the server response carries the CPS url, so
+         * a waiting browser request can be redirected right away.
+         */
+        public void signalTransactionDone(String cpsUrl) {
+            mCpsUrl = cpsUrl;
+            postToListener(this::answerWaitingRequests);
+        }
 
-        if(mCpsThread.isAlive() && !mSentImage) {
-            return false;
+        public void setCancelCPS(boolean cancelCPS) {
+            mCancelled = cancelCPS;
+            if (cancelCPS) {
+                postToListener(this::answerWaitingRequests);
+            }
+        }
+
+        /**
+         * Drops the login without answering the browser, used when the login screen goes away.
+         */
+        public void close() {
+            mTransactions.remove(this);
+            postToListener(() -> {
+                for (SelectionKey key : mWaitingRequests) {
+                    closeConnection(key);
+                }
+                mWaitingRequests.clear();
+            });
+            mBrowserSignal.countDown();
+            mRedirectSignal.countDown();
+        }
+
+        private boolean isAnswerable() {
+            return mCancelled || mCpsUrl != null;
+        }
+
+        private void answerWaitingRequests() {
+            if (!isAnswerable() || mWaitingRequests.isEmpty()) return;
+            for (SelectionKey key : mWaitingRequests) {
+                answer(key);
+            }
+            mWaitingRequests.clear();
+            finish();
+        }
+
+        private void answer(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            if (mCancelled) {
+                if (connection.mCancelUrl != null) {
+                    respond(key, create302Redirect(connection.mCancelUrl));
+                } else {
+                    respond(key, mAbortedResponse);
+                }
+            } else {
+                respond(key, create302Redirect(mCpsUrl));
+            }
+        }
+
+        private void finish() {
+            mTransactions.remove(this);
+            mRedirectSignal.countDown();
+            if (mDoneAction != null) {
+                mDoneAction.run();
+            }
         }
-        return true;
     }
 
-    public void close() {
-        if (mCpsThread != null) mCpsThread.interrupt();
+    private static class Connection {
+        private final ByteBuffer mRequest = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private final long mAcceptTime = System.nanoTime();
+        private ByteBuffer[] mResponse;
+        private String mCancelUrl;
+        private boolean mIsProbe = false;
+    }
 
-        if (mServerSocket != null) {
-            try {
-                mServerSocket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * One bound listener, its selector and the tasks posted to it. A listener that is stopping
+     * only drains and drops its own tasks, never those of the one bound after it.
+     */
+    private class Listener {
+        private final Selector mSelector;
+        private final ServerSocketChannel mServerChannel;
+        private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final Thread mThread;
+
+        private Listener(Selector selector, ServerSocketChannel serverChannel) {
+            mSelector = selector;
+            mServerChannel = serverChannel;
+            mThread = new Thread(() -> runListener(this), "CPSListener");
+        }
+    }
+
+    private void postToListener(Runnable task) {
+        Listener listener = mListener;
+        if (listener == null) return;
+        listener.mTasks.add(task);
+        listener.mSelector.wakeup();
+    }
+
+    private void runListener(Listener listener) {
+        Selector selector = listener.mSelector;
+        ServerSocketChannel serverChannel = listener.mServerChannel;
+        try {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                selector.select();
+
+                Runnable task;
+                while ((task = listener.mTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(selector, serverChannel);
+                        } else {
+                            if (key.isReadable()) read(key);
+                            if (key.isValid() && key.isWritable()) write(key);
+                        }
+                    } catch (IOException e) {
+                        closeConnection(key);
+                    }
+                }
             }
+        } catch (ClosedSelectorException e) {
+            Log.i(TAG, "CPS listener stopped");
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
         }
+        listener.mTasks.clear();
+        closeQuietly(selector, serverChannel);
     }
 
-    public void interruptServerThread() {
-        mCpsThread.interrupt();
+    private void accept(Selector selector, ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
     }
 
-    public void waitForTransactionDone() {
-        while (mCpsThread.isAlive() && !mCommFlowHandler.getCommHandler().hasCPSUrl()) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {}
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (channel.read(connection.mRequest) == -1) {
+            closeConnection(key);
+            return;
         }
+
+        int headerEnd = findHeaderEnd(connection.mRequest);
+        if (headerEnd == -1) {
+            if (!connection.mRequest.hasRemaining()) closeConnection(key);
+            return;
+        }
+
+        key.interestOps(0);
+        String request = new String(connection.mRequest.array(), 0, headerEnd, StandardCharsets.ISO_8859_1);
+        handleRequest(key, connection, request);
     }
 
-    public void waitForCPS(boolean afterConversation) {
-        int time = 0;
-        while (mCpsThread.isAlive() && time < 10 && (!mSentImage || afterConversation)) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {}
-            time++;
+    private int findHeaderEnd(ByteBuffer buffer) {
+        byte[] data = buffer.array();
+        for (int i = 3; i < buffer.position(); i++) {
+            if (data[i - 3] == '\r' && data[i - 2] == '\n' && data[i - 1] == '\r' && data[i] == '\n') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private void handleRequest(SelectionKey key, Connection connection, String request) {
+        String[] lines = request.split("\r\n");
+        String requestLine = lines[0];
+        Log.i(TAG, requestLine);
+
+        Map<String, String> headers = parseHeaders(lines);
+        if (headers.containsKey("origin")) {
+            respond(key, mAbortedResponse);
+            return;
+        }
+
+        if (requestLine.contains("gif HTTP/1.1")) {
+            connection.mIsProbe = true;
+            respond(key, GIF_RESPONSE);
+            onProbeAnswered();
+            return;
+        }
+
+        String[] requestTokens = requestLine.split(" ");
+        if (requestTokens.length < 2 || requestTokens[1].length() < 2) {
+            closeConnection(key);
+            return;
+        }
+
+        Map<String, String> params;
+        try {
+            params = getQueryParams(requestTokens[1].substring(1));
+        } catch (Exception e) {
+            closeConnection(key);
+            return;
+        }
+
+        Transaction transaction = findTransaction(params.get("nut"));
+        if (transaction == null) {
+            respond(key, mAbortedResponse);
+            return;
+        }
+
+        connection.mCancelUrl = params.get("can");
+        if (transaction.isAnswerable()) {
+            transaction.answer(key);
+            transaction.finish();
+        } else {
+            transaction.mWaitingRequests.add(key);
         }
     }
 
-    public void setCancelCPS(boolean cancelCPS) {
-        mCancelCPS = cancelCPS;
+    private void onProbeAnswered() {
+        mLastProbeTime = System.nanoTime();
+        for (Transaction transaction : mTransactions) {
+            transaction.mBrowserSignal.countDown();
+        }
+    }
+
+    private Transaction findTransaction(String nut) {
+        for (Transaction transaction : mTransactions) {
+            if (transaction.mNut != null && transaction.mNut.equals(nut)) {
+                return transaction;
+            }
+        }
+        return null;
     }
 
-    private Map<String, String> parseHeaders(BufferedReader reader) {
+    private void respond(SelectionKey key, ByteBuffer[] response) {
+        Connection connection = (Connection) key.attachment();
+        connection.mResponse = new ByteBuffer[response.length];
+        for (int i = 0; i < response.length; i++) {
+            connection.mResponse[i] = response[i].duplicate();
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+        try {
+            write(key);
+        } catch (IOException e) {
+            closeConnection(key);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.mResponse == null) return;
+
+        ((SocketChannel) key.channel()).write(connection.mResponse);
+        if (!connection.mResponse[0].hasRemaining() && !connection.mResponse[1].hasRemaining()) {
+            if (connection.mIsProbe) {
+                Log.d(TAG, "CPS probe answered in " +
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - connection.mAcceptTime) + " us");
+            }
+            closeConnection(key);
+        }
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {}
+    }
+
+    private Map<String, String> parseHeaders(String[] lines) {
         Map<String, String> headers = new HashMap<>();
-        String line;
         int idx;
 
-        try {
-            line = reader.readLine();
-            while (line != null && !line.equals("")) {
-                idx = line.indexOf(':');
-                if (idx < 0) {
-                    break;
-                }
-                else {
-                    headers.put(line.substring(0, idx).toLowerCase(), line.substring(idx+1).trim());
-                }
-                line = reader.readLine();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            idx = line.indexOf(':');
+            if (idx < 0) {
+                break;
             }
-        } catch (IOException e) { }
+            headers.put(line.substring(0, idx).toLowerCase(), line.substring(idx+1).trim());
+        }
 
         return headers;
     }
 
-    private void sendDummyGifImage(Socket socket) {
+    private static ByteBuffer[] createDummyGifImage() {
         try {
-            byte[] content = EncryptionUtils.decodeUrlSafe(
-                    "R0lGODlhAQABAAAAACH5BAEKAAEALAAAAAABAAEAAAICTAEAOw=="
-            );
-            OutputStream os = socket.getOutputStream();
+            byte[] content = EncryptionUtils.decodeUrlSafe(DUMMY_GIF);
             StringBuilder out = new StringBuilder();
 
             out.append("HTTP/1.0 200 OK\r\n");
             out.append("Content-Type: image/gif\r\n");
             out.append("Content-Length: ").append(content.length).append("\r\n\r\n");
-            Log.i(TAG, out.toString());
-            os.write(out.toString().getBytes("UTF-8"));
-            os.write(content);
-            os.flush();
-            os.close();
+            return createResponse(out.toString(), content);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return createResponse("HTTP/1.0 500 Internal Server Error\r\n\r\n", new byte[0]);
     }
 
-    private void sendConnectionAbortedPage(Socket socket) {
+    private ByteBuffer[] createConnectionAbortedPage() {
         try {
             byte[] htmlBytes = Utils.getAssetContent(mContext, "cps_cancelled.html");
             String html = new String(htmlBytes);
@@ -206,37 +552,40 @@ public class CPSServer {
             html = html.replace("{{1}}", mContext.getResources().getString(R.string.cps_auth_aborted_description));
             html = html.replace("{{2}}", mContext.getResources().getString(R.string.cps_auth_aborted_go_back_now));
             htmlBytes = html.getBytes();
-            OutputStream os = socket.getOutputStream();
             StringBuilder out = new StringBuilder();
 
             out.append("HTTP/1.0 200 OK\r\n");
             out.append("Content-Type: text/html\r\n");
             out.append("Content-Length: ").append(htmlBytes.length).append("\r\n\r\n");
-            Log.i(TAG, out.toString());
-            os.write(out.toString().getBytes("UTF-8"));
-            os.write(htmlBytes);
-            os.flush();
-            os.close();
+            return createResponse(out.toString(), htmlBytes);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return createResponse("HTTP/1.0 500 Internal Server Error\r\n\r\n", new byte[0]);
     }
 
-    private void send302Redirect(Socket socket, String redirectUrl) {
-        try {
-            OutputStream os = socket.getOutputStream();
-            StringBuilder out = new StringBuilder();
+    private ByteBuffer[] create302Redirect(String redirectUrl) {
+        Log.i(TAG, "Redirecting to " + redirectUrl);
+        return createResponse("HTTP/1.0 302 Found\r\nLocation: " + redirectUrl + "\r\n\r\n", new byte[0]);
+    }
 
-            out.append("HTTP/1.0 302 Found\r\n");
-            out.append("Location: ").append(redirectUrl).append("\r\n\r\n");
-            Log.i(TAG, out.toString());
-            os.write(out.toString().getBytes("UTF-8"));
-            os.flush();
-            os.close();
+    private static ByteBuffer[] createResponse(String header, byte[] content) {
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer(),
+                ByteBuffer.wrap(content).asReadOnlyBuffer()
+        };
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static String getNut(String sqrlLink) {
+        if (sqrlLink == null) return null;
+        int queryStart = sqrlLink.indexOf('?');
+        if (queryStart == -1) return null;
+        for (String param : sqrlLink.substring(queryStart + 1).split("&")) {
+            if (param.startsWith("nut=")) {
+                return param.substring(4);
+            }
         }
+        return null;
     }
 
     private Map<String, String> getQueryParams(String data) throws Exception {
@@ -0,0 +1,114 @@
+package org.ea.sqrl.processors;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves camera preview frames off the preview callback and into the entropy harvester on a
+ * worker thread. Frames are passed through a small single producer, single consumer ring so
+ * the callback never takes a lock, and a frame that arrives while the ring is full is handed
+ * straight back instead of queueing up behind the worker. Frames the worker is done with are
+ * handed back on the camera thread, since the camera's buffer queue isn't safe to touch
+ * from the worker.
+ *
+ * @author Daniel Persson
+ */
+public class CameraEntropyPipeline {
+    private static final String TAG = "CameraEntropyPipeline";
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    public interface FrameRecycler {
+        void recycle(byte[] frame);
+    }
+
+    private final EntropyHarvester mEntropyHarvester;
+    private final FrameRecycler mRecycler;
+    private final Executor mCameraThread;
+    private final int mSampledLength;
+    private final AtomicReferenceArray<byte[]> mRing;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final Thread mWorker;
+    private volatile boolean mRunning = true;
+    private long mDroppedFrames = 0;
+
+    /**
+     * @param entropyHarvester  Harvester to feed.
+     * @param capacity          Number of frames that may wait for the worker.
+     * @param sampledLength     Number of leading bytes of each frame to sample, for NV21 the
+     *                          size of the luma plane.
+     * @param cameraThread      Runs tasks on the thread the camera delivers frames on.
+     * @param recycler          Gets every frame back on the camera thread once it has been
+     *                          used or dropped, except those finished after stop().
+     */
+    public CameraEntropyPipeline(EntropyHarvester entropyHarvester, int capacity, int sampledLength, Executor cameraThread, FrameRecycler recycler) {
+        mEntropyHarvester = entropyHarvester;
+        mRecycler = recycler;
+        mCameraThread = cameraThread;
+        mSampledLength = sampledLength;
+        mRing = new AtomicReferenceArray<>(capacity);
+        mWorker = new Thread(this::run, "EntropyGather");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Hands a frame to the worker, only to be called from the single thread delivering frames.
+     *
+     * @return  false if the worker is behind and the frame was dropped.
+     */
+    public boolean offer(byte[] frame) {
+        long tail = mTail.get();
+        if (!mRunning || tail - mHead.get() >= mRing.length()) {
+            mDroppedFrames++;
+            mRecycler.recycle(frame);
+            return false;
+        }
+        mRing.set((int) (tail % mRing.length()), frame);
+        mTail.lazySet(tail + 1);
+        LockSupport.unpark(mWorker);
+        return true;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Stops the worker and waits for the frame it is hashing. Called on the camera thread, so
+     * no frame is recycled after this returns.
+     */
+    public void stop() {
+        mRunning = false;
+        LockSupport.unpark(mWorker);
+        try {
+            mWorker.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(TAG, "Dropped " + mDroppedFrames + " frames");
+    }
+
+    private void run() {
+        while (mRunning) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            int index = (int) (head % mRing.length());
+            byte[] frame = mRing.getAndSet(index, null);
+            mHead.lazySet(head + 1);
+
+            mEntropyHarvester.addEntropy(frame, Math.min(mSampledLength, frame.length));
+            mCameraThread.execute(() -> {
+                if (mRunning) mRecycler.recycle(frame);
+            });
+        }
+    }
+}
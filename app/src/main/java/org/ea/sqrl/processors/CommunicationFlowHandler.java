@@ -1,6 +1,7 @@
 package org.ea.sqrl.processors;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.util.Log;
@@ -16,11 +17,23 @@ import android.widget.TextView;
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.CPSMissingActivity;
 import org.ea.sqrl.activites.identity.SupersededIdentityActivity;
+import org.ea.sqrl.database.IdentityRepository;
 import org.ea.sqrl.services.AskDialogService;
+import org.ea.sqrl.utils.SqrlApplication;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
 import java.util.Deque;
-
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the steps of a login on the flow executor. The handler outlives the screens showing it,
+ * a flow keeps going through rotations and hand overs between screens, so it only holds the
+ * application context and is attached to the current screen through a weak binding that the
+ * screen drops again when it is destroyed. A finished screen is therefore never kept alive by
+ * a flow, a session or the shared handler.
+ */
 public class CommunicationFlowHandler {
     private static final String TAG = "CommFlowHandler";
     private int lastTIF = 0;
@@ -42,47 +55,147 @@ public class CommunicationFlowHandler {
         UNLOCK_ACCOUNT_CPS
     }
 
-    private PopupWindow askPopupWindow;
+    /**
+     * The states a flow moves through. A flow is started from IDLE, or resumed from
+     * WAITING_FOR_USER, and ends in one of DONE, FAILED or CANCELLED.
+     */
+    public enum State {
+        IDLE,
+        RUNNING,
+        WAITING_FOR_USER,
+        DONE,
+        FAILED,
+        CANCELLED
+    }
+
+    /**
+     * Lets a screen follow the flow without polling it. Callbacks arrive on a flow thread.
+     */
+    public interface FlowListener {
+        void onStateChanged(State state);
+        void onStepFinished(Action action, long durationInMilliSeconds);
+    }
+
+    /**
+     * Run on a flow thread when the flow is done or has failed. The action gets the screen
+     * attached when it runs, or null if there is none, so a flow started by a screen that has
+     * been recreated since still reaches the new one. Actions must not hold on to a screen.
+     */
+    public interface FlowAction {
+        void run(Activity screen);
+    }
+
+    private WeakReference<Activity> boundActivity = new WeakReference<>(null);
+    private Handler handler;
+    private final AskDialogService askDialogService;
     private PopupWindow errorPopupWindow;
     private TextView txtErrorMessage;
+    private volatile String errorMessage = null;
 
     private Deque<Action> actionStack = new ArrayDeque<>();
-    private Runnable doneAction;
-    private Runnable errorAction;
-    private Handler handler;
+    private volatile FlowAction doneAction;
+    private volatile FlowAction errorAction;
     private boolean hasRetried = false;
 
     private static CommunicationFlowHandler instance = null;
     private CPSServer cpsServer = null;
+    private CPSServer.Transaction cpsTransaction = null;
     private EntropyHarvester entropyHarvester;
     private final CommunicationHandler commHandler;
     private String serverData = null;
     private String queryLink = null;
     private boolean shouldRunServer = false;
     private boolean cpsServerStarted = false;
-    private Activity currentActivity;
+    private final Context context;
+    private final FlowExecutor flowExecutor = FlowExecutor.getInstance();
+    private volatile State state = State.IDLE;
+    private volatile Future<?> currentStep = null;
+    private FlowListener flowListener = null;
+
+    private final long sessionId;
+
+    private CommunicationFlowHandler(Context context) {
+        this(context, CommunicationHandler.getInstance(context), 0);
+    }
 
-    private CommunicationFlowHandler(Activity currentActivity, Handler handler) {
+    CommunicationFlowHandler(Context context, CommunicationHandler commHandler, long sessionId) {
         try {
             this.entropyHarvester = EntropyHarvester.getInstance();
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
         }
-        this.commHandler = CommunicationHandler.getInstance(currentActivity);
-        this.cpsServer = CPSServer.getInstance(currentActivity, this);
-        this.currentActivity = currentActivity;
-        this.handler = handler;
+        this.context = context.getApplicationContext();
+        this.commHandler = commHandler;
+        this.sessionId = sessionId;
+        this.cpsServer = CPSServer.getInstance(this.context);
         this.lastTIF = 0;
+        // Lives as long as the flow, so a question asked while no screen is attached waits
+        this.askDialogService = new AskDialogService(null, null, null, null, null);
+        this.commHandler.setAskDialogService(askDialogService);
     }
 
-    public static CommunicationFlowHandler getInstance(Activity currentActivity, Handler handler) {
+    public static synchronized CommunicationFlowHandler getInstance(Activity currentActivity, Handler handler) {
         if(instance == null) {
-            instance = new CommunicationFlowHandler(currentActivity, handler);
+            instance = new CommunicationFlowHandler(currentActivity);
         }
+        instance.attach(currentActivity, handler);
 
         return instance;
     }
 
+    /**
+     * Makes the given screen the one the flow shows its dialogs on and starts activities from.
+     */
+    public synchronized void attach(Activity activity, Handler handler) {
+        if (boundActivity.get() != activity) {
+            releaseUi();
+        }
+        this.boundActivity = new WeakReference<>(activity);
+        this.handler = handler;
+    }
+
+    public synchronized boolean isAttachedTo(Activity activity) {
+        return boundActivity.get() == activity;
+    }
+
+    /**
+     * Drops everything tied to the given screen, if it is still the attached one. The done and
+     * error actions are kept, they find the screen through the binding when they run.
+     */
+    public synchronized void detach(Activity activity) {
+        if (boundActivity.get() != activity) return;
+        releaseUi();
+        boundActivity = new WeakReference<>(null);
+        handler = null;
+    }
+
+    private synchronized Activity getBoundActivity() {
+        return boundActivity.get();
+    }
+
+    private void releaseUi() {
+        askDialogService.detach();
+        errorPopupWindow = null;
+        txtErrorMessage = null;
+    }
+
+    /**
+     * Starts an activity from the attached screen, or as a new task when no screen is attached.
+     */
+    private void startActivity(Class<?> activityClass, long sessionId) {
+        Activity activity = boundActivity.get();
+        Intent intent = new Intent(activity != null ? activity : context, activityClass);
+        if (sessionId != 0) {
+            intent.putExtra(SQRLSession.EXTRA_SESSION_ID, sessionId);
+        }
+        if (activity != null) {
+            activity.startActivity(intent);
+        } else {
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            context.startActivity(intent);
+        }
+    }
+
     public void setUrlBasedLogin(boolean urlBasedLogin) {
         commHandler.setUrlBasedLogin(urlBasedLogin);
     }
@@ -115,33 +228,140 @@ public class CommunicationFlowHandler {
         return this.commHandler;
     }
 
-    public void handleNextAction() {
+    public State getState() {
+        return state;
+    }
+
+    public void setFlowListener(FlowListener flowListener) {
+        this.flowListener = flowListener;
+    }
+
+    /**
+     * Starts the queued actions, or resumes a flow waiting for the user, on the shared
+     * flow executor. Does nothing if the flow is already running.
+     */
+    public synchronized void start() {
+        if (state == State.RUNNING) {
+            Log.w(TAG, "Flow already running");
+            return;
+        }
+        setState(State.RUNNING);
+        scheduleNextAction();
+    }
+
+    /**
+     * Stops the flow after the current step. A browser waiting on CPS is sent to the
+     * site's cancel url and the error action is run without showing the error popup.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (isFinished()) return;
+            setState(State.CANCELLED);
+            actionStack.clear();
+        }
+        Future<?> step = currentStep;
+        if (step != null) {
+            step.cancel(true);
+        }
+        if (cpsTransaction != null) {
+            cpsTransaction.setCancelCPS(true);
+        }
+        resetFlow();
+        commHandler.clearLastResponse();
+        runAction("errorAction", errorAction);
+    }
+
+    private synchronized boolean isFinished() {
+        return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    /**
+     * Moves the flow into a final state, returns false if it has already ended.
+     */
+    private synchronized boolean finish(State finalState) {
+        if (isFinished()) return false;
+        setState(finalState);
+        return true;
+    }
+
+    private void setState(State newState) {
+        state = newState;
+        FlowListener listener = flowListener;
+        if (listener != null) {
+            listener.onStateChanged(newState);
+        }
+    }
+
+    private void scheduleNextAction() {
+        currentStep = flowExecutor.submit("handleNextAction", this::handleNextAction);
+        if (currentStep == null) {
+            errorMessage = context.getString(R.string.connection_error);
+            error();
+        }
+    }
+
+    /**
+     * Moves the flow into RUNNING for the next step, returns false if it has already ended.
+     * Checked and set under one lock so a step can't start after the flow was cancelled.
+     */
+    private synchronized boolean startStep() {
+        if (isFinished()) return false;
+        setState(State.RUNNING);
+        return true;
+    }
+
+    /**
+     * The action stack is shared with cancel and addAction on other threads, it is only
+     * touched under the flow lock.
+     */
+    private synchronized Action nextAction() {
+        return actionStack.isEmpty() ? null : actionStack.pop();
+    }
+
+    private synchronized void clearActions() {
+        actionStack.clear();
+    }
+
+    private void handleNextAction() {
+        if (Thread.currentThread().isInterrupted() || !startStep()) return;
+
         // Bail out and inform the user if the identity has been superseded
         if (commHandler.isIdentitySuperseded()) {
-            this.actionStack.clear();
-            currentActivity.startActivity(new Intent(currentActivity, SupersededIdentityActivity.class));
+            clearActions();
+            finish(State.FAILED);
+            startActivity(SupersededIdentityActivity.class, 0);
             return;
         }
 
         if(commHandler.hasErrorMessage(shouldRunServer)) {
-            txtErrorMessage.setText(commHandler.getErrorMessage(this.currentActivity, shouldRunServer));
+            errorMessage = commHandler.getErrorMessage(context, shouldRunServer);
             error();
             return;
         }
         try {
             if (shouldRunServer && !cpsServerStarted) {
-                cpsServerStarted = cpsServer.start(() -> done());
+                cpsTransaction = cpsServer.start(queryLink, () -> done());
+                cpsServerStarted = cpsTransaction.waitForBrowser();
                 if(!cpsServerStarted) {
-                    cpsServer.interruptServerThread();
-                    currentActivity.startActivity(new Intent(currentActivity, CPSMissingActivity.class));
+                    cpsTransaction.close();
+                    cpsTransaction = null;
+                    setState(State.WAITING_FOR_USER);
+                    startActivity(CPSMissingActivity.class, sessionId);
                     return;
                 }
             }
-            if (!actionStack.isEmpty()) {
-                runAction(actionStack.pop());
+            Action action = nextAction();
+            if (action != null) {
+                long start = System.nanoTime();
+                runAction(action);
+                FlowListener listener = flowListener;
+                if (listener != null) {
+                    listener.onStepFinished(action,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
             } else {
-                if (shouldRunServer) {
-                    cpsServer.waitForCPS(true);
+                if (shouldRunServer && cpsTransaction != null) {
+                    cpsTransaction.waitForRedirect();
                 }
                 done();
             }
@@ -149,9 +369,9 @@ public class CommunicationFlowHandler {
             Log.e(TAG, e.getMessage(), e);
             if(e.getMessage() != null) {
                 if("CONN_ERROR".equalsIgnoreCase(e.getMessage())) {
-                    txtErrorMessage.setText(currentActivity.getString(R.string.connection_error));
+                    errorMessage = context.getString(R.string.connection_error);
                 } else {
-                    txtErrorMessage.setText(e.getMessage());
+                    errorMessage = e.getMessage();
                 }
             }
             error();
@@ -163,19 +383,19 @@ public class CommunicationFlowHandler {
             case LOGIN:
             case LOGIN_CPS:
                 if(commHandler.isTIFBitSet(CommunicationHandler.TIF_SQRL_DISABLED))
-                    throw new Exception(currentActivity.getString(R.string.communication_sqrl_disabled));
+                    throw new Exception(context.getString(R.string.communication_sqrl_disabled));
                 break;
             case LOCK_ACCOUNT:
             case LOCK_ACCOUNT_CPS:
                 if(commHandler.isTIFBitSet(CommunicationHandler.TIF_SQRL_DISABLED))
-                    throw new Exception(currentActivity.getString(R.string.communication_sqrl_disabled));
+                    throw new Exception(context.getString(R.string.communication_sqrl_disabled));
                 if(!commHandler.isIdentityKnown(false))
-                    throw new Exception(currentActivity.getString(R.string.account_missing));
+                    throw new Exception(context.getString(R.string.account_missing));
                 break;
             case UNLOCK_ACCOUNT:
             case UNLOCK_ACCOUNT_CPS:
                 if(!commHandler.isIdentityKnown(true))
-                    throw new Exception(currentActivity.getString(R.string.account_missing));
+                    throw new Exception(context.getString(R.string.account_missing));
                 break;
         }
 
@@ -226,6 +446,10 @@ public class CommunicationFlowHandler {
                 break;
         }
 
+        if(shouldRunServer && cpsTransaction != null && commHandler.hasCPSUrl()) {
+            cpsTransaction.signalTransactionDone(commHandler.getCPSUrl());
+        }
+
         /*
          * If an error occurs try again if we have a different error code than last time.
          */
@@ -239,44 +463,91 @@ public class CommunicationFlowHandler {
             commHandler.getTif() != lastTIF &&
             !commHandler.getQueryLink().isEmpty()
         ) {
-            actionStack.push(a);
+            synchronized (this) {
+                actionStack.push(a);
+            }
             lastTIF = commHandler.getTif();
             commHandler.clearLastResponse();
         } else if(commHandler.isPreviousKeyValid()) {
             commHandler.loginWithPreviousKey();
         }
 
-        if(commHandler.hasAskQuestion() && this.actionStack.isEmpty()) {
-            this.actionStack.add(Action.QUERY_WITHOUT_SUK);
-        }
+        synchronized (this) {
+            if(commHandler.hasAskQuestion() && this.actionStack.isEmpty()) {
+                this.actionStack.add(Action.QUERY_WITHOUT_SUK);
+            }
 
-        if(commHandler.getQueryLink().isEmpty()) {
-            this.actionStack.clear();
+            if(commHandler.getQueryLink().isEmpty()) {
+                this.actionStack.clear();
+            }
         }
 
-        commHandler.setAskAction(this::handleNextAction);
+        if (commHandler.hasAskQuestion()) {
+            setState(State.WAITING_FOR_USER);
+        }
+        commHandler.setAskAction(this::scheduleNextAction);
         commHandler.showAskDialog();
     }
 
-    private void done() {
+    private void resetFlow() {
+        commHandler.resetPreviousKeys();
         shouldRunServer = false;
         hasRetried = false;
         cpsServerStarted = false;
-        new Thread(doneAction).start();
+        cpsTransaction = null;
+    }
+
+    private void done() {
+        if (!finish(State.DONE)) return;
+        resetFlow();
+        touchCurrentIdentity();
+        runAction("doneAction", doneAction);
+    }
+
+    /**
+     * Marks the identity as used, for the last used ordering of the identity list.
+     */
+    void touchCurrentIdentity() {
+        IdentityRepository.getInstance(context).touchIdentity(
+                SqrlApplication.getCurrentId(context));
     }
 
     private void error() {
-        if(shouldRunServer && cpsServerStarted) {
-            cpsServer.setCancelCPS(true);
+        if (!finish(State.FAILED)) return;
+        if(shouldRunServer && cpsServerStarted && cpsTransaction != null) {
+            cpsTransaction.setCancelCPS(true);
         }
-        shouldRunServer = false;
-        hasRetried = false;
-        cpsServerStarted = false;
+        resetFlow();
         commHandler.clearLastResponse();
-        handler.post(() ->
-            errorPopupWindow.showAtLocation(errorPopupWindow.getContentView(), Gravity.CENTER, 0, 0)
-        );
-        new Thread(errorAction).start();
+        showErrorPopup();
+        runAction("errorAction", errorAction);
+    }
+
+    private void runAction(String name, FlowAction action) {
+        if (action != null) {
+            flowExecutor.submit(name, () -> action.run(getBoundActivity()));
+        }
+    }
+
+    /**
+     * Shows the last error message on the attached screen, if there is one.
+     */
+    private void showErrorPopup() {
+        final Handler uiHandler;
+        final PopupWindow popupWindow;
+        final TextView txtMessage;
+        synchronized (this) {
+            uiHandler = handler;
+            popupWindow = errorPopupWindow;
+            txtMessage = txtErrorMessage;
+        }
+        if (uiHandler == null || popupWindow == null) return;
+
+        final String message = errorMessage;
+        uiHandler.post(() -> {
+            if (message != null) txtMessage.setText(message);
+            popupWindow.showAtLocation(popupWindow.getContentView(), Gravity.CENTER, 0, 0);
+        });
     }
 
     public void addAction(Action a) {
@@ -291,19 +562,19 @@ public class CommunicationFlowHandler {
         }
 
         commHandler.clearLastResponse();
-        this.actionStack.add(a);
+        synchronized (this) {
+            this.actionStack.add(a);
+        }
     }
 
     protected void postQuery(CommunicationHandler commHandler, boolean noiptest, boolean requestServerUnlockKey) throws Exception {
-        SQRLStorage storage = SQRLStorage.getInstance(currentActivity);
-
-        if (!storage.hasMorePreviousKeys()) {
+        if (!commHandler.hasMorePreviousKeys()) {
             postQueryInternal(commHandler, noiptest, requestServerUnlockKey);
             return;
         }
 
-        while (storage.hasMorePreviousKeys()) {
-            storage.increasePreviousKeyIndex();
+        while (commHandler.hasMorePreviousKeys()) {
+            commHandler.increasePreviousKeyIndex();
             if(commHandler.isTIFBitSet(CommunicationHandler.TIF_CURRENT_ID_MATCH)) break;
             if(commHandler.isTIFBitSet(CommunicationHandler.TIF_PREVIOUS_ID_MATCH)) break;
             if(commHandler.isTIFBitSet(CommunicationHandler.TIF_SQRL_DISABLED)) break;
@@ -368,18 +639,18 @@ public class CommunicationFlowHandler {
         commHandler.printParams();
     }
 
-    public void setDoneAction(Runnable doneAction) {
+    public void setDoneAction(FlowAction doneAction) {
         this.doneAction = doneAction;
     }
 
-    public void setErrorAction(Runnable errorAction) {
+    public void setErrorAction(FlowAction errorAction) {
         this.errorAction = errorAction;
     }
 
-    public void setupAskPopupWindow(LayoutInflater layoutInflater, Handler handler) {
+    public synchronized void setupAskPopupWindow(LayoutInflater layoutInflater, Handler handler) {
         View popupView = layoutInflater.inflate(R.layout.fragment_ask_dialog, null);
 
-        askPopupWindow = new PopupWindow(popupView,
+        final PopupWindow askPopupWindow = new PopupWindow(popupView,
                 ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT,
                 false);
 
@@ -402,20 +673,20 @@ public class CommunicationFlowHandler {
             commHandler.setAskButton("3");
         });
 
-        commHandler.setAskDialogService(new AskDialogService(
+        askDialogService.attach(
                 handler,
                 askPopupWindow,
                 txtAskQuestion,
                 btnAskFirstButton,
                 btnAskSecondButton
-        ));
+        );
     }
 
 
-    public void setupErrorPopupWindow(LayoutInflater layoutInflater) {
+    public synchronized void setupErrorPopupWindow(LayoutInflater layoutInflater) {
         View popupView = layoutInflater.inflate(R.layout.fragment_error_dialog, null);
 
-        errorPopupWindow = new PopupWindow(popupView,
+        final PopupWindow popupWindow = new PopupWindow(popupView,
                 ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT,
                 false);
 
@@ -423,11 +694,17 @@ public class CommunicationFlowHandler {
         txtErrorMessage = popupView.findViewById(R.id.txtErrorMessage);
         final Button btnErrorOk = popupView.findViewById(R.id.btnErrorOk);
         btnErrorOk.setOnClickListener(v -> {
-            errorPopupWindow.dismiss();
+            popupWindow.dismiss();
         });
+        errorPopupWindow = popupWindow;
     }
 
-    public void closeCPSServer() { cpsServer.close(); }
+    public void closeCPSServer() {
+        if (cpsTransaction != null) {
+            cpsTransaction.close();
+            cpsTransaction = null;
+        }
+    }
 
     public byte[] getDomain() {
         return commHandler.getDomain();
@@ -1,6 +1,5 @@
 package org.ea.sqrl.processors;
 
-import android.app.Activity;
 import android.content.Context;
 import android.util.Log;
 
@@ -10,14 +9,6 @@ import org.ea.sqrl.utils.EncryptionUtils;
 import org.ea.sqrl.utils.Utils;
 import org.libsodium.jni.Sodium;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
@@ -55,6 +46,9 @@ public class CommunicationHandler {
     private String response;
     private boolean useSSL;
     private boolean urlBasedLogin = false;
+    private int previousKeyIndex = 0;
+    private boolean loginWithPreviousKey = false;
+    private SQRLTransport transport = new HttpTransport();
 
     public static final int TIF_CURRENT_ID_MATCH = 0;
     public static final int TIF_PREVIOUS_ID_MATCH = 1;
@@ -67,15 +61,28 @@ public class CommunicationHandler {
     public static final int TIF_BAD_ID_ASSOCIATION = 8;
     public static final int TIF_SUPERSEDED_IDENTITY = 9;
 
-    private CommunicationHandler(Context context) {
-        this.context = context;
+    CommunicationHandler(Context context) {
+        this.context = context != null ? context.getApplicationContext() : null;
     }
 
-    public static CommunicationHandler getInstance(Context context) {
+    public static synchronized CommunicationHandler getInstance(Context context) {
         if(instance == null) {
             instance = new CommunicationHandler(context);
         }
 
+        trustAllCertificates();
+        return instance;
+    }
+
+    /**
+     * Creates a handler owning the protocol state of a single login, see {@link SQRLSession}.
+     */
+    static CommunicationHandler newSessionHandler(Context context) {
+        trustAllCertificates();
+        return new CommunicationHandler(context);
+    }
+
+    private static void trustAllCertificates() {
         try {
             TrustManager[] victimizedManager = new TrustManager[]{
 
@@ -110,8 +117,20 @@ public class CommunicationHandler {
         } catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        return instance;
+    /**
+     * Replaces the transport used to talk to the SQRL server, for instance with a
+     * {@link RecordingTransport} or {@link ReplayTransport}.
+     *
+     * @param transport    The transport used for all following requests.
+     */
+    public void setTransport(SQRLTransport transport) {
+        this.transport = transport;
+    }
+
+    public SQRLTransport getTransport() {
+        return this.transport;
     }
 
     public void setUrlBasedLogin(boolean urlBasedLogin) {
@@ -178,11 +197,11 @@ public class CommunicationHandler {
         sb.append("cmd=query\r\n");
         sb.append(getAskButtonAnswer());
         sb.append(storage.getOptions(noiptest, requestServerUnlockKey, false));
-        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin")));
+        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin"), previousKeyIndex));
         sb.append("idk=" + EncryptionUtils.encodeUrlSafe(storage.getPublicKey(cryptDomain)));
         sb.append("\r\n");
         if(storage.hasPreviousKeys()) {
-            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain)));
+            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain, previousKeyIndex)));
             sb.append("\r\n");
         }
         return sb.toString();
@@ -195,11 +214,11 @@ public class CommunicationHandler {
         sb.append("cmd=disable\r\n");
         sb.append(getAskButtonAnswer());
         sb.append(storage.getOptions(noiptest, false, clientProvidedSession));
-        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin")));
+        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin"), previousKeyIndex));
         sb.append("idk=" + EncryptionUtils.encodeUrlSafe(storage.getPublicKey(cryptDomain)));
         sb.append("\r\n");
         if(storage.hasPreviousKeys()) {
-            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain)));
+            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain, previousKeyIndex)));
             sb.append("\r\n");
         }
         return sb.toString();
@@ -212,11 +231,11 @@ public class CommunicationHandler {
         sb.append("cmd=enable\r\n");
         sb.append(getAskButtonAnswer());
         sb.append(storage.getOptions(noiptest, false, clientProvidedSession));
-        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin")));
+        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin"), previousKeyIndex));
         sb.append("idk=" + EncryptionUtils.encodeUrlSafe(storage.getPublicKey(cryptDomain)));
         sb.append("\r\n");
         if(storage.hasPreviousKeys()) {
-            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain)));
+            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain, previousKeyIndex)));
             sb.append("\r\n");
         }
         return sb.toString();
@@ -229,11 +248,11 @@ public class CommunicationHandler {
         sb.append("cmd=remove\r\n");
         sb.append(getAskButtonAnswer());
         sb.append(storage.getOptions(noiptest, false, clientProvidedSession));
-        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin")));
+        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin"), previousKeyIndex));
         sb.append("idk=" + EncryptionUtils.encodeUrlSafe(storage.getPublicKey(cryptDomain)));
         sb.append("\r\n");
         if(storage.hasPreviousKeys()) {
-            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain)));
+            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain, previousKeyIndex)));
             sb.append("\r\n");
         }
         return sb.toString();
@@ -247,12 +266,12 @@ public class CommunicationHandler {
         sb.append("cmd=ident\r\n");
         sb.append(getAskButtonAnswer());
         sb.append(storage.getOptions(noiptest, false, clientProvidedSession));
-        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin")));
+        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin"), previousKeyIndex));
         sb.append(storage.getServerUnlockKey(entropyHarvester));
         sb.append("idk=" + EncryptionUtils.encodeUrlSafe(storage.getPublicKey(cryptDomain)));
         sb.append("\r\n");
         if(storage.hasPreviousKeys()) {
-            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain)));
+            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain, previousKeyIndex)));
             sb.append("\r\n");
         }
         return sb.toString();
@@ -265,11 +284,11 @@ public class CommunicationHandler {
         sb.append("cmd=ident\r\n");
         sb.append(getAskButtonAnswer());
         sb.append(storage.getOptions(noiptest, false, clientProvidedSession));
-        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin")));
+        sb.append(storage.getSecretIndex(cryptDomain, lastResponse.get("sin"), previousKeyIndex));
         sb.append("idk=" + EncryptionUtils.encodeUrlSafe(storage.getPublicKey(cryptDomain)));
         sb.append("\r\n");
-        if(storage.willLoginWithPreviousKey()) {
-            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain)));
+        if(loginWithPreviousKey) {
+            sb.append("pidk=" + EncryptionUtils.encodeUrlSafe(storage.getPreviousPublicKey(cryptDomain, previousKeyIndex)));
             sb.append("\r\n");
             sb.append(storage.getServerUnlockKey(entropyHarvester));
         }
@@ -282,7 +301,7 @@ public class CommunicationHandler {
 
     public String createPostParams(String client, String server, boolean unlockServerKey) throws Exception {
         SQRLStorage storage = SQRLStorage.getInstance(context);
-        storage.setProgressState(R.string.progress_state_prepare_query);
+        setProgressState(R.string.progress_state_prepare_query);
 
         StringBuilder sb = new StringBuilder();
         sb.append("client=");
@@ -315,7 +334,7 @@ public class CommunicationHandler {
                     signed_message_len,
                     message,
                     message.length,
-                    storage.getPreviousPrivateKey(cryptDomain)
+                    storage.getPreviousPrivateKey(cryptDomain, previousKeyIndex)
             );
             sb.append("&pids=");
             sb.append(EncryptionUtils.encodeUrlSafe(Arrays.copyOfRange(signed_message, 0, Sodium.crypto_sign_bytes())));
@@ -327,7 +346,7 @@ public class CommunicationHandler {
                     signed_message_len,
                     message,
                     message.length,
-                    storage.getUnlockRequestSigningKey(getServerUnlockKey(), this.isPreviousKeyValid())
+                    storage.getUnlockRequestSigningKey(getServerUnlockKey(), this.isPreviousKeyValid(), previousKeyIndex)
             );
             sb.append("&urs=");
             sb.append(EncryptionUtils.encodeUrlSafe(Arrays.copyOfRange(signed_message, 0, Sodium.crypto_sign_bytes())));
@@ -336,68 +355,22 @@ public class CommunicationHandler {
     }
 
     public void postRequest(String link, String data) throws Exception {
-        StringBuilder result = new StringBuilder();
-
-        SQRLStorage storage = SQRLStorage.getInstance(context);
-        storage.setProgressState(R.string.progresstate_contact_server);
+        setProgressState(R.string.progresstate_contact_server);
 
         String loginURL = (useSSL ? "https://" : "http://") + communicationDomain + link;
 
-        HttpURLConnection con = null;
-        DataOutputStream output = null;
-        DataInputStream input = null;
-        try {
-            URL myurl = new URL(loginURL);
-            con = (HttpURLConnection) myurl.openConnection();
-
-            con.setRequestMethod("POST");
-
-            con.setRequestProperty("Content-Length", String.valueOf(data.length()));
-            con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            con.setDoOutput(true);
-            con.setDoInput(true);
-
-            output = new DataOutputStream(con.getOutputStream());
-            output.writeBytes(data);
-            output.close();
-
-            if(con.getResponseCode() != 200) {
-                throw new Exception("CONN_ERROR");
-            }
-
-            input = new DataInputStream(con.getInputStream());
-
-            String newLine = System.getProperty("line.separator");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-            String line;
-            boolean flag = false;
-            while ((line = reader.readLine()) != null) {
-                result.append(flag ? newLine : "").append(line);
-                flag = true;
-            }
-            input.close();
+        setResponseData(transport.post(loginURL, data));
 
-            setResponseData(result.toString());
-
-            if(!lastResponse.containsKey("tif")) {
-                throw new Exception("CONN_ERROR");
-            }
-
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            closeQuietly(output);
-            closeQuietly(input);
-            if(con != null) con.disconnect();
+        if(!lastResponse.containsKey("tif")) {
+            throw new Exception("CONN_ERROR");
         }
     }
 
-    private void closeQuietly(Closeable c) {
-        try {
-            if(c != null) {
-                c.close();
-            }
-        } catch (IOException ioe) {}
+    /**
+     * Shows the step on the progress popup of the identity in use.
+     */
+    void setProgressState(int progressState) {
+        SQRLStorage.getInstance(context).setProgressState(progressState);
     }
 
     public static void debugPostData(String data) throws Exception{
@@ -467,7 +440,7 @@ public class CommunicationHandler {
             );
     }
 
-    public String getErrorMessage(Activity a, boolean shouldUseCPSServer) {
+    public String getErrorMessage(Context a, boolean shouldUseCPSServer) {
         StringBuilder sb = new StringBuilder();
         if(!lastResponse.containsKey("tif")) {
             return a.getString(R.string.communication_incorrect_response);
@@ -623,8 +596,23 @@ public class CommunicationHandler {
         );
     }
 
+    public boolean hasMorePreviousKeys() {
+        return previousKeyIndex < SQRLStorage.getInstance(context).getPreviousKeyCount();
+    }
+
+    public void increasePreviousKeyIndex() {
+        previousKeyIndex++;
+    }
+
     public void loginWithPreviousKey() {
-        SQRLStorage storage = SQRLStorage.getInstance(context);
-        storage.loginWithPreviousKey();
+        this.loginWithPreviousKey = true;
+    }
+
+    /**
+     * Forgets which previous identity key this login settled on.
+     */
+    public void resetPreviousKeys() {
+        this.previousKeyIndex = 0;
+        this.loginWithPreviousKey = false;
     }
 }
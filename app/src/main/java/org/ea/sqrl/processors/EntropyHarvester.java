@@ -1,11 +1,14 @@
 package org.ea.sqrl.processors;
 
 import android.os.Build;
-import android.widget.ProgressBar;
+import android.util.Log;
 
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The point of this class is to be the one and only place to fetch your entropy from. It will
@@ -16,13 +19,36 @@ import java.security.SecureRandom;
  */
 public class EntropyHarvester {
     private static final String TAG = "EntropyHarvester";
+    private static final int SEED_LENGTH = 48;
+    private static final int POOL_SIZE = 1024;
+    private static final int RESEED_INTERVAL = 256;
+    private static final int SAMPLE_STRIDE = 4;
+    private static final int BYTES_PER_PROGRESS_STEP = 1_000_000;
 
-    private final SecureRandom sr;
+    private SecureRandom sr = null;
     private final MessageDigest md;
     private static EntropyHarvester instance;
-    private BigInteger numberOfBytesGathered;
+    private final byte[] sampleBuffer = new byte[4096];
+    private volatile long numberOfBytesGathered = 0;
 
-    public static EntropyHarvester getInstance() throws Exception {
+    /*
+     * Random bytes are served from a DRBG seeded without blocking and reseeded from the
+     * strong source in the background. A small pool of output is kept ready so salts,
+     * IVs and keys on the login path are a copy rather than a computation.
+     */
+    private final HmacDrbg drbg;
+    private final byte[] pool = new byte[POOL_SIZE];
+    private int poolAvailable = 0;
+    private int requestsSinceReseed = 0;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean reseedScheduled = new AtomicBoolean(false);
+    private final ExecutorService poolExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "EntropyPool");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static synchronized EntropyHarvester getInstance() throws Exception {
         if(instance == null) {
             instance = new EntropyHarvester();
         }
@@ -30,34 +56,149 @@ public class EntropyHarvester {
     }
 
     private EntropyHarvester() throws Exception {
-        if(Build.DEVICE != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            sr = SecureRandom.getInstanceStrong();
-        } else {
-            sr = SecureRandom.getInstance("SHA1PRNG");
+        md = MessageDigest.getInstance("SHA-512");
+
+        byte[] seed = new byte[SEED_LENGTH];
+        new SecureRandom().nextBytes(seed);
+        drbg = new HmacDrbg(seed, longToBytes(System.nanoTime()), TAG.getBytes());
+        Arrays.fill(seed, (byte) 0);
+
+        scheduleReseed();
+        scheduleRefill();
+    }
+
+    /**
+     * The strong source can block while it is set up, so it is only ever used from the
+     * pool thread.
+     */
+    private synchronized SecureRandom getSecureRandom() throws Exception {
+        if(sr == null) {
+            if(Build.DEVICE != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                sr = SecureRandom.getInstanceStrong();
+            } else {
+                sr = SecureRandom.getInstance("SHA1PRNG");
+            }
         }
+        return sr;
+    }
 
-        md = MessageDigest.getInstance("SHA-512");
-        this.numberOfBytesGathered = BigInteger.ZERO;
+    /**
+     * Waits until the generator has been reseeded from the strong source, meant to be
+     * called off the main thread.
+     */
+    public void warmUp() throws Exception {
+        scheduleReseed();
+        poolExecutor.submit(() -> {}).get();
     }
 
     public void fetchRandom(byte[] buffer) {
-        sr.nextBytes(buffer);
+        boolean needsReseed;
+        boolean needsRefill;
+
+        synchronized (pool) {
+            if (buffer.length <= poolAvailable) {
+                int start = POOL_SIZE - poolAvailable;
+                System.arraycopy(pool, start, buffer, 0, buffer.length);
+                Arrays.fill(pool, start, start + buffer.length, (byte) 0);
+                poolAvailable -= buffer.length;
+            } else {
+                drbg.generate(buffer, null);
+            }
+            needsReseed = ++requestsSinceReseed >= RESEED_INTERVAL;
+            needsRefill = poolAvailable < POOL_SIZE / 2;
+        }
+
+        if (needsReseed) scheduleReseed();
+        if (needsRefill) scheduleRefill();
+    }
+
+    private void scheduleRefill() {
+        if (!refillScheduled.compareAndSet(false, true)) return;
+        poolExecutor.execute(() -> {
+            refillScheduled.set(false);
+            byte[] fresh = new byte[POOL_SIZE];
+            drbg.generate(fresh, null);
+            synchronized (pool) {
+                System.arraycopy(fresh, 0, pool, 0, POOL_SIZE);
+                poolAvailable = POOL_SIZE;
+            }
+            Arrays.fill(fresh, (byte) 0);
+        });
+    }
+
+    private void scheduleReseed() {
+        if (!reseedScheduled.compareAndSet(false, true)) return;
+        poolExecutor.execute(() -> {
+            reseedScheduled.set(false);
+            try {
+                byte[] seed = new byte[SEED_LENGTH];
+                getSecureRandom().nextBytes(seed);
+                drbg.reseed(seed, longToBytes(System.nanoTime()));
+                Arrays.fill(seed, (byte) 0);
+                synchronized (pool) {
+                    requestsSinceReseed = 0;
+                    poolAvailable = 0;
+                }
+                scheduleRefill();
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to reseed from the strong random source", e);
+            }
+        });
+    }
+
+    private static byte[] longToBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (8 * i));
+        }
+        return bytes;
     }
 
     public void startGather() {
-        this.numberOfBytesGathered = BigInteger.ZERO;
+        this.numberOfBytesGathered = 0;
     }
 
-    public void addEntropy(ProgressBar progressBar, byte[] bytes) {
-        md.update(bytes);
-        numberOfBytesGathered = numberOfBytesGathered.add(BigInteger.valueOf(bytes.length));
-        if(progressBar != null) {
-            progressBar.setProgress(Math.round(numberOfBytesGathered.longValue() / 1_000_000));
+    /**
+     * Mixes a camera frame into the entropy digest. Only the sensor noise in the low bits is
+     * worth anything, so the low four bits of every fourth byte are packed in pairs and hashed,
+     * a fraction of the work of hashing the whole frame.
+     *
+     * @param frame     Frame data, for NV21 the luma plane comes first.
+     * @param length    Number of leading bytes to sample.
+     */
+    public void addEntropy(byte[] frame, int length) {
+        synchronized (md) {
+            int n = 0;
+            for (int i = 0; i + SAMPLE_STRIDE < length; i += 2 * SAMPLE_STRIDE) {
+                sampleBuffer[n++] = (byte) ((frame[i] & 0x0f) << 4 | (frame[i + SAMPLE_STRIDE] & 0x0f));
+                if (n == sampleBuffer.length) {
+                    md.update(sampleBuffer, 0, n);
+                    n = 0;
+                }
+            }
+            md.update(sampleBuffer, 0, n);
+            numberOfBytesGathered += length;
         }
     }
 
+    public int getProgress() {
+        return (int) (numberOfBytesGathered / BYTES_PER_PROGRESS_STEP);
+    }
+
+    /**
+     * Mixes the gathered camera entropy into the generator, followed by a reseed from the
+     * strong source in the background.
+     */
     public void digestEntropy() {
-        byte[] entropyBytes = md.digest();
-        sr.setSeed(entropyBytes);
+        byte[] entropyBytes;
+        synchronized (md) {
+            entropyBytes = md.digest();
+        }
+        drbg.reseed(entropyBytes, null);
+        Arrays.fill(entropyBytes, (byte) 0);
+        synchronized (pool) {
+            poolAvailable = 0;
+        }
+        scheduleReseed();
     }
 }
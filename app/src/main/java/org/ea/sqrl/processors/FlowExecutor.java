@@ -0,0 +1,76 @@
+package org.ea.sqrl.processors;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared, bounded pool that runs the steps of the login flows, their ask dialog
+ * continuations and their done and error callbacks, so none of them need a thread
+ * of their own.
+ *
+ * @author Daniel Persson
+ */
+public class FlowExecutor {
+    private static final String TAG = "FlowExecutor";
+    private static final int MAX_THREADS = 4;
+    private static final int MAX_QUEUED_TASKS = 32;
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+
+    private static FlowExecutor instance = null;
+    private final ThreadPoolExecutor executor;
+
+    private FlowExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "SQRLFlow-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+
+        executor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS,
+                IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_TASKS),
+                threadFactory
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized FlowExecutor getInstance() {
+        if(instance == null) {
+            instance = new FlowExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a task on the shared pool.
+     *
+     * @param name  Name used when logging the time the task took.
+     * @param task  The task to run.
+     * @return  The future of the task, or null if the pool is saturated.
+     */
+    public Future<?> submit(String name, Runnable task) {
+        try {
+            return executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    Log.d(TAG, name + " took " +
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Unable to queue " + name, e);
+            return null;
+        }
+    }
+}
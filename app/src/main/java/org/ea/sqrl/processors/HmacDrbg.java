@@ -0,0 +1,110 @@
+package org.ea.sqrl.processors;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC_DRBG with SHA-256 as described in NIST SP 800-90A. The internal key and value are
+ * replaced after every request, so output that has been handed out can't be recomputed from
+ * a later state.
+ *
+ * @author Daniel Persson
+ */
+public class HmacDrbg {
+    private static final int OUT_LEN = 32;
+
+    private final Mac mac;
+    private final byte[] key = new byte[OUT_LEN];
+    private final byte[] value = new byte[OUT_LEN];
+    private long reseedCounter;
+
+    public HmacDrbg(byte[] entropy, byte[] nonce, byte[] personalization) throws GeneralSecurityException {
+        mac = Mac.getInstance("HmacSHA256");
+        Arrays.fill(key, (byte) 0x00);
+        Arrays.fill(value, (byte) 0x01);
+        update(entropy, nonce, personalization);
+        reseedCounter = 1;
+    }
+
+    /**
+     * Mixes fresh entropy into the state.
+     *
+     * @param entropy       New entropy input.
+     * @param additional    Optional additional input, may be null.
+     */
+    public synchronized void reseed(byte[] entropy, byte[] additional) {
+        update(entropy, additional);
+        reseedCounter = 1;
+    }
+
+    /**
+     * Fills the buffer with pseudo random bytes.
+     *
+     * @param out           The buffer to fill.
+     * @param additional    Optional additional input, may be null.
+     */
+    public synchronized void generate(byte[] out, byte[] additional) {
+        boolean hasAdditional = additional != null && additional.length > 0;
+        if (hasAdditional) {
+            update(additional);
+        }
+
+        int offset = 0;
+        while (offset < out.length) {
+            hmac(value, value);
+            int len = Math.min(OUT_LEN, out.length - offset);
+            System.arraycopy(value, 0, out, offset, len);
+            offset += len;
+        }
+
+        update(hasAdditional ? additional : null);
+        reseedCounter++;
+    }
+
+    /**
+     * Number of requests served since the last (re)seed.
+     */
+    public synchronized long getReseedCounter() {
+        return reseedCounter;
+    }
+
+    private void update(byte[]... providedData) {
+        boolean hasData = false;
+        for (byte[] data : providedData) {
+            if (data != null && data.length > 0) hasData = true;
+        }
+
+        updateRound((byte) 0x00, providedData);
+        if (hasData) {
+            updateRound((byte) 0x01, providedData);
+        }
+    }
+
+    private void updateRound(byte separator, byte[]... providedData) {
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(value);
+            mac.update(separator);
+            for (byte[] data : providedData) {
+                if (data != null) mac.update(data);
+            }
+            mac.doFinal(key, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        hmac(value, value);
+    }
+
+    private void hmac(byte[] input, byte[] output) {
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(input);
+            mac.doFinal(output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.ea.sqrl.processors;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Default transport talking to the SQRL server over a plain HttpURLConnection.
+ *
+ * @author Daniel Persson
+ */
+public class HttpTransport implements SQRLTransport {
+    private static final String TAG = "HttpTransport";
+
+    @Override
+    public String post(String url, String data) throws Exception {
+        StringBuilder result = new StringBuilder();
+
+        HttpURLConnection con = null;
+        DataOutputStream output = null;
+        DataInputStream input = null;
+        try {
+            URL myurl = new URL(url);
+            con = (HttpURLConnection) myurl.openConnection();
+
+            con.setRequestMethod("POST");
+
+            con.setRequestProperty("Content-Length", String.valueOf(data.length()));
+            con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            con.setDoOutput(true);
+            con.setDoInput(true);
+
+            output = new DataOutputStream(con.getOutputStream());
+            output.writeBytes(data);
+            output.close();
+
+            if(con.getResponseCode() != 200) {
+                throw new Exception("CONN_ERROR");
+            }
+
+            input = new DataInputStream(con.getInputStream());
+
+            String newLine = System.getProperty("line.separator");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            String line;
+            boolean flag = false;
+            while ((line = reader.readLine()) != null) {
+                result.append(flag ? newLine : "").append(line);
+                flag = true;
+            }
+            input.close();
+        } finally {
+            closeQuietly(output);
+            closeQuietly(input);
+            if(con != null) con.disconnect();
+        }
+        return result.toString();
+    }
+
+    private void closeQuietly(Closeable c) {
+        try {
+            if(c != null) {
+                c.close();
+            }
+        } catch (IOException ioe) {}
+    }
+}
@@ -2,35 +2,47 @@ package org.ea.sqrl.processors;
 
 import android.graphics.Color;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import org.ea.sqrl.R;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Small class to handle the progression of a decryption process. We show the time and
  * progress bar to the user so they know the application are working on their identity.
  *
+ * The KDF thread reports every iteration, far more often than the screen can show. Progress is
+ * only added up as it comes in and the screen is updated at most once a frame, so the KDF
+ * thread never waits on the main thread and never fills its queue.
+ *
  * @author Daniel Persson
  */
 public class ProgressionUpdater {
     private static final String TAG = "ProgressionUpdater";
+    private static final long UPDATE_INTERVAL_MS = 16;
 
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss", Locale.US);
     private Handler handler;
     private ProgressBar progressBar;
     private TextView progressTitle;
     private TextView progressText;
-    private int max;
-    private long startTime;
-    private long endTime;
+    private volatile int max;
+    private volatile long startTime;
+    private volatile long endTime;
     private boolean dummy = false;
 
+    private final AtomicInteger pendingProgress = new AtomicInteger();
+    private final AtomicLong pendingTimeDone = new AtomicLong(-1);
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private final Runnable updateRunnable = this::update;
+    private volatile long lastUpdate = 0;
+    private TimeText timeLeftText;
+    private TimeText timeElapsedText;
+
     public ProgressionUpdater() {
         dummy = true;
     }
@@ -44,9 +56,12 @@ public class ProgressionUpdater {
     }
 
     public String getTimeLeft() {
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        long timeLeftInMilliSeconds = (endTime - startTime) * (max - progressBar.getProgress());
-        return sdf.format(new Date(timeLeftInMilliSeconds));
+        char[] buffer = new char[24];
+        return new String(buffer, 0, formatTime(getTimeLeftInMilliSeconds(), buffer, 0));
+    }
+
+    private long getTimeLeftInMilliSeconds() {
+        return (endTime - startTime) * (max - progressBar.getProgress());
     }
 
     public String getString(int res, String s) {
@@ -56,13 +71,8 @@ public class ProgressionUpdater {
     public void setTimeDone(long timeInMilliSeconds) {
         if(dummy) return;
 
-        int timeInSeconds = Math.round(timeInMilliSeconds / 1000f);
-        handler.post(() -> {
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            progressText.setTextColor(Color.GRAY);
-            progressText.setText(getString(R.string.progress_time_elapsed, sdf.format(new Date(timeInMilliSeconds))));
-            progressBar.setProgress(timeInSeconds);
-        });
+        pendingTimeDone.set(timeInMilliSeconds);
+        scheduleUpdate();
     }
 
     public void setState(int state) {
@@ -73,11 +83,9 @@ public class ProgressionUpdater {
 
     public void incrementProgress() {
         if(dummy) return;
-        handler.post(() -> {
-            progressBar.incrementProgressBy(1);
-            progressText.setTextColor(Color.GRAY);
-            progressText.setText(getString(R.string.progress_time_left, getTimeLeft()));
-        });
+
+        pendingProgress.incrementAndGet();
+        scheduleUpdate();
     }
 
     public void startTimer() {
@@ -91,12 +99,35 @@ public class ProgressionUpdater {
     public void setMax(int max) {
         if(dummy) return;
         this.max = max;
+        dropPendingProgress();
 
         handler.post(() -> {
             progressBar.setMax(max);
             progressBar.setProgress(0);
-            progressText.setTextColor(Color.GRAY);
-            progressText.setText(getString(R.string.progress_time_left, getTimeLeft()));
+            showTimeLeft();
+        });
+    }
+
+    /**
+     * Brings a freshly attached screen up to the state of a job that is already running.
+     *
+     * @param state                 String resource of the current step, 0 if none.
+     * @param max                   Number of iterations of the current step.
+     * @param progress              Number of iterations done.
+     * @param iterationInMilliSeconds   Time one iteration takes, used for the time left.
+     */
+    public void restore(int state, int max, int progress, long iterationInMilliSeconds) {
+        if(dummy) return;
+        this.max = max;
+        this.startTime = 0;
+        this.endTime = iterationInMilliSeconds;
+        dropPendingProgress();
+
+        if (state != 0) setState(state);
+        handler.post(() -> {
+            progressBar.setMax(max);
+            progressBar.setProgress(progress);
+            showTimeLeft();
         });
     }
 
@@ -104,6 +135,7 @@ public class ProgressionUpdater {
         if(dummy) return;
 
         this.max = 1;
+        dropPendingProgress();
 
         handler.post(() -> {
             progressBar.setMax(1);
@@ -112,4 +144,104 @@ public class ProgressionUpdater {
             progressText.setText("");
         });
     }
+
+    /**
+     * Progress not yet shown belongs to the step being replaced, the new one starts from its own
+     * values.
+     */
+    private void dropPendingProgress() {
+        pendingProgress.set(0);
+        pendingTimeDone.set(-1);
+    }
+
+    private void scheduleUpdate() {
+        if (!updateScheduled.compareAndSet(false, true)) return;
+        long now = SystemClock.uptimeMillis();
+        handler.postAtTime(updateRunnable, Math.max(now, lastUpdate + UPDATE_INTERVAL_MS));
+    }
+
+    /**
+     * Runs on the main thread and shows everything reported since the last update.
+     */
+    private void update() {
+        updateScheduled.set(false);
+        lastUpdate = SystemClock.uptimeMillis();
+
+        long timeDone = pendingTimeDone.getAndSet(-1);
+        if (timeDone >= 0) {
+            if (timeElapsedText == null) {
+                timeElapsedText = new TimeText(progressText, R.string.progress_time_elapsed);
+            }
+            timeElapsedText.show(progressText, timeDone);
+            progressBar.setProgress(Math.round(timeDone / 1000f));
+        }
+
+        int progress = pendingProgress.getAndSet(0);
+        if (progress > 0) {
+            progressBar.incrementProgressBy(progress);
+            showTimeLeft();
+        }
+    }
+
+    private void showTimeLeft() {
+        if (timeLeftText == null) {
+            timeLeftText = new TimeText(progressText, R.string.progress_time_left);
+        }
+        timeLeftText.show(progressText, getTimeLeftInMilliSeconds());
+    }
+
+    /**
+     * Writes a time as HH:mm:ss, hours get more digits when needed.
+     *
+     * @return  Offset after the last character written.
+     */
+    static int formatTime(long timeInMilliSeconds, char[] buffer, int offset) {
+        long seconds = Math.max(0, timeInMilliSeconds) / 1000;
+        long hours = seconds / 3600;
+        if (hours >= 100) {
+            String h = Long.toString(hours);
+            h.getChars(0, h.length(), buffer, offset);
+            offset += h.length();
+        } else {
+            offset = formatTwoDigits((int) hours, buffer, offset);
+        }
+        buffer[offset++] = ':';
+        offset = formatTwoDigits((int) (seconds / 60 % 60), buffer, offset);
+        buffer[offset++] = ':';
+        return formatTwoDigits((int) (seconds % 60), buffer, offset);
+    }
+
+    private static int formatTwoDigits(int value, char[] buffer, int offset) {
+        buffer[offset] = (char) ('0' + value / 10);
+        buffer[offset + 1] = (char) ('0' + value % 10);
+        return offset + 2;
+    }
+
+    /**
+     * A translated "... %s ..." text with a time in it, kept as the parts around the time so
+     * showing a new time only fills in a reused buffer.
+     */
+    private static class TimeText {
+        private final char[] buffer;
+        private final int prefixLength;
+        private final String suffix;
+
+        TimeText(TextView textView, int res) {
+            String marker = "\u0000";
+            String text = textView.getContext().getString(res, marker);
+            int markerIndex = text.indexOf(marker);
+            if (markerIndex < 0) markerIndex = text.length();
+            prefixLength = markerIndex;
+            suffix = markerIndex < text.length() ? text.substring(markerIndex + 1) : "";
+            buffer = new char[prefixLength + 24 + suffix.length()];
+            text.getChars(0, prefixLength, buffer, 0);
+        }
+
+        void show(TextView textView, long timeInMilliSeconds) {
+            int end = formatTime(timeInMilliSeconds, buffer, prefixLength);
+            suffix.getChars(0, suffix.length(), buffer, end);
+            textView.setTextColor(Color.GRAY);
+            textView.setText(buffer, 0, end + suffix.length());
+        }
+    }
 }
@@ -0,0 +1,139 @@
+package org.ea.sqrl.processors;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.FormatException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.DecoderResult;
+import com.google.zxing.common.DetectorResult;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.decoder.Decoder;
+import com.google.zxing.qrcode.decoder.Version;
+import com.google.zxing.qrcode.detector.Detector;
+
+import org.ea.sqrl.utils.FountainCode;
+import org.ea.sqrl.utils.QRCodeDecodeHelper;
+
+import java.util.Map;
+
+/**
+ * Finds and decodes a QR code in the luminance plane of a camera frame. Only the centre of the
+ * frame, where the user aims, is looked at, and it's copied into one buffer that is reused for
+ * every frame. Free of Android classes so it can be tested on the JVM.
+ *
+ * Not thread safe, each scanning thread needs its own.
+ *
+ * @author Daniel Persson
+ */
+public class QRCodeFrameDecoder {
+    public static final int TYPE_OTHER = 0;
+    public static final int TYPE_SQRL_URL = 1;
+    public static final int TYPE_IDENTITY = 2;
+    public static final int TYPE_IDENTITY_FRAME = 3;
+
+    private static final byte[] IDENTITY_HEADER = "sqrldata".getBytes();
+    private static final float REGION_OF_INTEREST = 0.75f;
+    // zxing turns a hint on by its mere presence, so no hints keeps try harder off
+    private static final Map<DecodeHintType, ?> HINTS = null;
+
+    public static class Result {
+        public final int type;
+        public final byte[] data;
+        public final int version;
+
+        Result(int type, byte[] data, int version) {
+            this.type = type;
+            this.data = data;
+            this.version = version;
+        }
+    }
+
+    private final Decoder mDecoder = new Decoder();
+    private byte[] mLuminance = new byte[0];
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Copies the centre square of a frame into the luminance buffer.
+     *
+     * @param frame     Frame with the luminance plane first, as NV21 and other YUV formats have it.
+     * @param width     Width of the frame.
+     * @param height    Height of the frame.
+     */
+    public void setFrame(byte[] frame, int width, int height) {
+        int size = (int) (Math.min(width, height) * REGION_OF_INTEREST);
+        int left = (width - size) / 2;
+        int top = (height - size) / 2;
+
+        if (mLuminance.length < size * size) {
+            mLuminance = new byte[size * size];
+        }
+        for (int y = 0; y < size; y++) {
+            System.arraycopy(frame, (top + y) * width + left, mLuminance, y * size, size);
+        }
+        mWidth = size;
+        mHeight = size;
+    }
+
+    /**
+     * Decodes the frame last given to {@link #setFrame(byte[], int, int)}.
+     *
+     * @return  The QR code found, or null if there was none that could be read.
+     */
+    public Result decode() {
+        if (mWidth == 0) return null;
+        try {
+            PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(
+                    mLuminance, mWidth, mHeight, 0, 0, mWidth, mHeight, false);
+            BitMatrix image = new BinaryBitmap(new HybridBinarizer(source)).getBlackMatrix();
+            DetectorResult detected = new Detector(image).detect(HINTS);
+            BitMatrix bits = detected.getBits();
+            DecoderResult decoded = mDecoder.decode(bits, HINTS);
+            Version version = Version.getProvisionalVersionForDimension(bits.getHeight());
+            return classify(decoded, version);
+        } catch (ReaderException e) {
+            return null;
+        }
+    }
+
+    public Result decode(byte[] frame, int width, int height) {
+        setFrame(frame, width, height);
+        return decode();
+    }
+
+    /**
+     * Site codes are plain URLs and are taken from the decoded text as is. Identities go
+     * through our own segment parser, which keeps binary data intact and gives up on anything
+     * not starting like SQRL data after its first bytes.
+     */
+    private static Result classify(DecoderResult decoded, Version version) throws FormatException {
+        int versionNumber = version.getVersionNumber();
+        String text = decoded.getText();
+        if (text != null && (text.regionMatches(true, 0, "sqrl://", 0, 7) ||
+                text.regionMatches(true, 0, "qrl://", 0, 6))) {
+            return new Result(TYPE_SQRL_URL, text.getBytes(), versionNumber);
+        }
+
+        byte[] data = QRCodeDecodeHelper.decodeSqrlData(decoded.getRawBytes(), version);
+        if (data == null) {
+            return new Result(TYPE_OTHER, text != null ? text.getBytes() : new byte[0], versionNumber);
+        }
+        if (startsWith(data, IDENTITY_HEADER)) {
+            return new Result(TYPE_IDENTITY, data, versionNumber);
+        }
+        if (FountainCode.isFrame(data)) {
+            return new Result(TYPE_IDENTITY_FRAME, data, versionNumber);
+        }
+        return new Result(TYPE_OTHER, data, versionNumber);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toLowerCase(data[i]) != prefix[i]) return false;
+        }
+        return true;
+    }
+}
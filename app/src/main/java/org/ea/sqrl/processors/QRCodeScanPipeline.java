@@ -0,0 +1,132 @@
+package org.ea.sqrl.processors;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes camera preview frames on a worker thread. Only one frame is ever in flight: its
+ * centre is copied out and the frame handed straight back to the camera, and every frame that
+ * arrives while the worker is still decoding is given back unused, so what gets decoded next is
+ * always a fresh frame rather than one that queued up while the user moved the phone. The
+ * copied frame goes back on the camera thread, since the camera's buffer queue isn't safe to
+ * touch from the worker.
+ *
+ * @author Daniel Persson
+ */
+public class QRCodeScanPipeline {
+    private static final String TAG = "QRCodeScanPipeline";
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    public interface Listener {
+        /**
+         * Called on the worker thread for every QR code read.
+         *
+         * @return  true to stop scanning.
+         */
+        boolean onResult(QRCodeFrameDecoder.Result result);
+    }
+
+    private final QRCodeFrameDecoder mDecoder = new QRCodeFrameDecoder();
+    private final CameraEntropyPipeline.FrameRecycler mRecycler;
+    private final Executor mCameraThread;
+    private final Listener mListener;
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private final AtomicReference<byte[]> mPending = new AtomicReference<>();
+    private final Thread mWorker;
+    private volatile boolean mRunning = true;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private long mDroppedFrames = 0;
+    private volatile long mDecodedFrames = 0;
+    private volatile long mDecodeNanos = 0;
+
+    /**
+     * @param cameraThread  Runs tasks on the thread the camera delivers frames on.
+     * @param recycler      Gets every frame back on the camera thread once it has been copied
+     *                      or dropped, except those copied after stop().
+     * @param listener      Gets the QR codes read.
+     */
+    public QRCodeScanPipeline(Executor cameraThread, CameraEntropyPipeline.FrameRecycler recycler, Listener listener) {
+        mCameraThread = cameraThread;
+        mRecycler = recycler;
+        mListener = listener;
+        mWorker = new Thread(this::run, "QRCodeScan");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Hands a frame to the worker, only to be called from the single thread delivering frames.
+     *
+     * @return  false if the worker is busy and the frame was dropped.
+     */
+    public boolean offer(byte[] frame, int width, int height) {
+        if (!mRunning || !mBusy.compareAndSet(false, true)) {
+            mDroppedFrames++;
+            mRecycler.recycle(frame);
+            return false;
+        }
+        mWidth = width;
+        mHeight = height;
+        mPending.set(frame);
+        LockSupport.unpark(mWorker);
+        return true;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public long getDecodedFrames() {
+        return mDecodedFrames;
+    }
+
+    public long getAverageDecodeMillis() {
+        long frames = mDecodedFrames;
+        return frames == 0 ? 0 : mDecodeNanos / frames / 1000000;
+    }
+
+    /**
+     * Stops the worker and waits for the frame it is copying. Called on the camera thread, so
+     * no frame is recycled after this returns.
+     */
+    public void stop() {
+        mRunning = false;
+        LockSupport.unpark(mWorker);
+        try {
+            mWorker.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(TAG, "Decoded " + mDecodedFrames + " frames in " + getAverageDecodeMillis() +
+                " ms each, dropped " + mDroppedFrames);
+    }
+
+    private void run() {
+        while (mRunning) {
+            byte[] frame = mPending.getAndSet(null);
+            if (frame == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            mDecoder.setFrame(frame, mWidth, mHeight);
+            mCameraThread.execute(() -> {
+                if (mRunning) mRecycler.recycle(frame);
+            });
+            QRCodeFrameDecoder.Result result = mDecoder.decode();
+            mDecodeNanos += System.nanoTime() - start;
+            mDecodedFrames++;
+
+            if (result != null && mListener.onResult(result)) {
+                mRunning = false;
+            }
+            mBusy.set(false);
+        }
+    }
+}
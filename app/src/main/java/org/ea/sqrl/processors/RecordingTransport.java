@@ -0,0 +1,59 @@
+package org.ea.sqrl.processors;
+
+import org.ea.sqrl.utils.EncryptionUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wraps another transport and appends every request/response exchange to a fixture file
+ * which can later be served back by the {@link ReplayTransport}.
+ *
+ * The fixture has one exchange per line, url, request and response, each base64url encoded and
+ * separated by commas so no recorded value can break the layout.
+ *
+ * @author Daniel Persson
+ */
+public class RecordingTransport implements SQRLTransport {
+    private static final String TAG = "RecordingTransport";
+    public static final String FIXTURE_HEADER = "url,request,response";
+
+    private final SQRLTransport transport;
+    private final File fixtureFile;
+
+    public RecordingTransport(SQRLTransport transport, File fixtureFile) {
+        this.transport = transport;
+        this.fixtureFile = fixtureFile;
+    }
+
+    @Override
+    public String post(String url, String data) throws Exception {
+        String response = transport.post(url, data);
+        record(url, data, response);
+        return response;
+    }
+
+    private synchronized void record(String url, String data, String response) throws IOException {
+        boolean writeHeader = !fixtureFile.exists() || fixtureFile.length() == 0;
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(fixtureFile, true), StandardCharsets.UTF_8)) {
+            if(writeHeader) {
+                writer.write(FIXTURE_HEADER);
+                writer.write("\n");
+            }
+            writer.write(encodeField(url) + "," + encodeField(data) + "," + encodeField(response) + "\n");
+        }
+    }
+
+    private static String encodeField(String value) throws IOException {
+        try {
+            return EncryptionUtils.encodeUrlSafe(value.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
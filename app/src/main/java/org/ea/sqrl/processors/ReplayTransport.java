@@ -0,0 +1,79 @@
+package org.ea.sqrl.processors;
+
+import org.ea.sqrl.utils.EncryptionUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves back exchanges saved by the {@link RecordingTransport}, in the order they were
+ * recorded, after an optional artificial latency. This makes it possible to run and profile
+ * complete login flows deterministically on a machine without network access.
+ *
+ * @author Daniel Persson
+ */
+public class ReplayTransport implements SQRLTransport {
+    private static final String TAG = "ReplayTransport";
+
+    private final List<String[]> exchanges;
+    private final long latencyInMilliSeconds;
+    private int nextExchange = 0;
+
+    public ReplayTransport(List<String[]> exchanges, long latencyInMilliSeconds) {
+        this.exchanges = exchanges;
+        this.latencyInMilliSeconds = latencyInMilliSeconds;
+    }
+
+    public static ReplayTransport fromFixture(InputStream fixture, long latencyInMilliSeconds) throws IOException {
+        List<String[]> exchanges = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fixture, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if(line.isEmpty() || line.equals(RecordingTransport.FIXTURE_HEADER)) continue;
+            String[] fields = line.split(",", -1);
+            if(fields.length != 3) {
+                throw new IOException("Incorrect fixture line " + line);
+            }
+            for(int i = 0; i < fields.length; i++) {
+                try {
+                    fields[i] = new String(EncryptionUtils.decodeUrlSafe(fields[i]), StandardCharsets.UTF_8);
+                } catch (Exception e) {
+                    throw new IOException("Incorrect fixture line " + line, e);
+                }
+            }
+            exchanges.add(fields);
+        }
+        reader.close();
+        return new ReplayTransport(exchanges, latencyInMilliSeconds);
+    }
+
+    @Override
+    public synchronized String post(String url, String data) throws Exception {
+        if(nextExchange >= exchanges.size()) {
+            throw new Exception("CONN_ERROR");
+        }
+
+        String[] exchange = exchanges.get(nextExchange++);
+        if(!exchange[0].equals(url)) {
+            throw new Exception("Unexpected request to " + url + ", recorded " + exchange[0]);
+        }
+
+        if(latencyInMilliSeconds > 0) {
+            Thread.sleep(latencyInMilliSeconds);
+        }
+        return exchange[2];
+    }
+
+    public synchronized int getRemainingExchanges() {
+        return exchanges.size() - nextExchange;
+    }
+
+    public synchronized void rewind() {
+        nextExchange = 0;
+    }
+}
@@ -0,0 +1,112 @@
+package org.ea.sqrl.processors;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Handler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One login against one site. The session owns the protocol state of that login, the
+ * last server response, the domain keys are derived for, pending ask answers and which
+ * previous identity key is in use, while the unlocked identity in {@link SQRLStorage}
+ * is only read from. Logins opened back to back from different browser tabs therefore
+ * no longer overwrite each other. The unlocked identity is shared between them and only
+ * cleared when the last session using it lets go.
+ *
+ * @author Daniel Persson
+ */
+public class SQRLSession {
+    public static final String EXTRA_SESSION_ID = "sqrl_session_id";
+
+    private static final Map<Long, SQRLSession> sessions = new ConcurrentHashMap<>();
+    private static final AtomicLong nextSessionId = new AtomicLong(1);
+
+    private final long id;
+    private final CommunicationHandler commHandler;
+    private final CommunicationFlowHandler flowHandler;
+    private final SQRLStorage storage;
+    private final AtomicBoolean holdsIdentity = new AtomicBoolean(false);
+
+    private SQRLSession(long id, Activity activity, Handler handler) {
+        this.id = id;
+        this.storage = SQRLStorage.getInstance(activity.getApplicationContext());
+        this.commHandler = CommunicationHandler.newSessionHandler(activity.getApplicationContext());
+        this.flowHandler = new CommunicationFlowHandler(activity, commHandler, id);
+        this.flowHandler.attach(activity, handler);
+    }
+
+    /**
+     * Opens a new session for a login started from the given activity.
+     */
+    public static SQRLSession open(Activity activity, Handler handler) {
+        SQRLSession session = new SQRLSession(nextSessionId.getAndIncrement(), activity, handler);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * Finds the session an activity was started for.
+     *
+     * @param intent    The intent carrying {@link #EXTRA_SESSION_ID}.
+     * @return  The open session, or null if it has been closed or was never passed along.
+     */
+    public static SQRLSession fromIntent(Intent intent) {
+        return fromId(intent.getLongExtra(EXTRA_SESSION_ID, 0));
+    }
+
+    /**
+     * Finds a session by its id, used by screens recreated after a configuration change.
+     *
+     * @return  The open session, or null if it has been closed in the meantime.
+     */
+    public static SQRLSession fromId(long id) {
+        return sessions.get(id);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public CommunicationHandler getCommHandler() {
+        return commHandler;
+    }
+
+    public CommunicationFlowHandler getFlowHandler() {
+        return flowHandler;
+    }
+
+    /**
+     * Marks the unlocked identity as used by this session, to be called before unlocking it
+     * for the login. Calling it again before {@link #releaseIdentity()} does nothing.
+     */
+    public void acquireIdentity() {
+        if (holdsIdentity.compareAndSet(false, true)) {
+            storage.acquireUnlocked();
+        }
+    }
+
+    /**
+     * Lets go of the unlocked identity when the login has ended, it is cleared unless another
+     * session is still using it.
+     */
+    public void releaseIdentity() {
+        if (holdsIdentity.compareAndSet(true, false)) {
+            storage.releaseUnlocked();
+        }
+    }
+
+    /**
+     * Ends the session, releasing any browser still waiting on it and the unlocked identity.
+     */
+    public void close() {
+        releaseIdentity();
+        if (sessions.remove(id) == null) return;
+        flowHandler.closeCPSServer();
+        commHandler.clearLastResponse();
+        commHandler.resetPreviousKeys();
+    }
+}
@@ -12,7 +12,9 @@ import android.util.Log;
 
 import org.ea.sqrl.R;
 import org.ea.sqrl.activites.base.BaseActivity;
+import org.ea.sqrl.database.IdentityMetadata;
 import org.ea.sqrl.jni.Grc_aesgcm;
+import org.ea.sqrl.processors.SecretArena.Secret;
 import org.ea.sqrl.utils.EncryptionUtils;
 import org.ea.sqrl.utils.SqrlApplication;
 import org.libsodium.jni.NaCl;
@@ -61,16 +63,16 @@ public class SQRLStorage {
     private static final int BLOCK_LENGTH_SIZE = 2;
     private final Context context;
     private ProgressionUpdater progressionUpdater;
+    private boolean progressionUpdaterLocked = false;
     private int passwordBlockLength = 0;
     private static SQRLStorage instance = null;
+    private int unlockedHolders = 0;
 
     private byte[] tempRescueCode;
 
     private boolean hasIdentityBlock = false;
     private boolean hasRescueBlock = false;
     private boolean hasPreviousBlock = false;
-    private int previousKeyIndex = 0;
-    private boolean loginWithPreviousKey = false;
 
     private SQRLStorage(Context context) {
         this.context = context;
@@ -78,27 +80,46 @@ public class SQRLStorage {
         NaCl.sodium();
     }
 
-    public static SQRLStorage getInstance(Context context) {
+    public static synchronized SQRLStorage getInstance(Context context) {
         if(instance == null) {
             instance = new SQRLStorage(context);
         }
         return instance;
     }
 
-    public boolean hasMorePreviousKeys() {
-        return previousKeyIndex < previousCountOfKeys;
+    /**
+     * Marks the unlocked identity as in use by a login. Logins running side by side share the
+     * same unlocked keys, so they are only cleared when the last of them lets go.
+     */
+    public synchronized void acquireUnlocked() {
+        unlockedHolders++;
     }
 
-    public void increasePreviousKeyIndex() {
-        previousKeyIndex++;
+    /**
+     * Lets go of the unlocked identity, clearing it if no other login is still using it.
+     */
+    public synchronized void releaseUnlocked() {
+        if (unlockedHolders == 0) return;
+        if (--unlockedHolders == 0) {
+            clear();
+        }
     }
 
-    public void loginWithPreviousKey() {
-        this.loginWithPreviousKey = true;
+    /**
+     * True when another login than the caller is using the unlocked keys, unlocking again then
+     * only verifies the password and keeps the keys in place, the same identity unlocks to
+     * the same keys.
+     */
+    private synchronized boolean isUnlockedElsewhere() {
+        return unlockedHolders > 1 && identityMasterKey != null;
     }
 
-    public boolean willLoginWithPreviousKey() {
-        return this.loginWithPreviousKey;
+    /**
+     * The number of previous identity unlock keys, which previous key a login tries is
+     * tracked by its {@link CommunicationHandler}.
+     */
+    public int getPreviousKeyCount() {
+        return previousCountOfKeys;
     }
 
     public void newRescueCode(EntropyHarvester entropyHarvester) {
@@ -156,12 +177,19 @@ public class SQRLStorage {
         return result;
     }
 
-    public boolean needsReload(byte[] identityData) {
+    /**
+     * Checks the loaded identity against the content hash stored with an identity, so the
+     * identity data only has to be loaded from the database when it differs.
+     *
+     * @param metadata  The metadata of the identity that should be loaded.
+     */
+    public boolean needsReload(IdentityMetadata metadata) {
         if(!this.hasIdentityBlock && !this.hasPreviousBlock && !this.hasRescueBlock) {
             return true;
         }
-        byte[] oldData = this.createSaveData();
-        return !Arrays.equals(identityData, oldData);
+        String contentHash = metadata.getContentHash();
+        return contentHash == null ||
+                !contentHash.equals(IdentityMetadata.contentHash(this.createSaveData()));
     }
 
     public void read(byte[] input) throws Exception {
@@ -256,8 +284,8 @@ public class SQRLStorage {
     private byte[] identityLockKeyEncrypted;
     private byte[] identityVerificationTag;
 
-    private byte[] identityMasterKey;
-    private byte[] identityLockKey;
+    private Secret identityMasterKey;
+    private Secret identityLockKey;
 
     public void handleIdentityBlock(byte[] input) {
         passwordBlockLength = input.length;
@@ -282,7 +310,7 @@ public class SQRLStorage {
     private byte rescueLogNFactor;
     private int rescueIterationCount;
     private byte[] rescueIdentityUnlockKeyEncrypted;
-    private byte[] rescueIdentityUnlockKey;
+    private Secret rescueIdentityUnlockKey;
     private byte[] rescueVerificationTag;
 
     private String verifyingRecoveryBlock;
@@ -311,10 +339,10 @@ public class SQRLStorage {
     private byte[] previousKey2Encrypted;
     private byte[] previousKey3Encrypted;
     private byte[] previousKey4Encrypted;
-    private byte[] previousKey1;
-    private byte[] previousKey2;
-    private byte[] previousKey3;
-    private byte[] previousKey4;
+    private Secret previousKey1;
+    private Secret previousKey2;
+    private Secret previousKey3;
+    private Secret previousKey4;
     private byte[] previousVerificationTag;
 
     public void handlePreviousIdentityBlock(byte[] input) {
@@ -360,8 +388,6 @@ public class SQRLStorage {
     }
 
     public void cleanIdentity() {
-        this.previousKeyIndex = 0;
-        this.loginWithPreviousKey = false;
         this.identityPlaintextLength = -1;
         this.identityPlaintext = null;
         this.initializationVector = null;
@@ -375,10 +401,8 @@ public class SQRLStorage {
         this.identityMasterKeyEncrypted = null;
         this.identityLockKeyEncrypted = null;
         this.identityVerificationTag = null;
-        if(this.identityMasterKey != null)
-            clearBytes(this.identityMasterKey);
-        if(this.identityLockKey != null)
-            clearBytes(this.identityLockKey);
+        SecretArena.release(this.identityMasterKey);
+        SecretArena.release(this.identityLockKey);
         this.identityMasterKey = null;
         this.identityLockKey = null;
 
@@ -387,8 +411,7 @@ public class SQRLStorage {
         this.rescueLogNFactor = -1;
         this.rescueIterationCount = -1;
         this.rescueIdentityUnlockKeyEncrypted = null;
-        if(this.rescueIdentityUnlockKey != null)
-            clearBytes(this.rescueIdentityUnlockKey);
+        SecretArena.release(this.rescueIdentityUnlockKey);
         this.rescueIdentityUnlockKey = null;
         this.rescueVerificationTag = null;
         this.verifyingRecoveryBlock = null;
@@ -400,19 +423,7 @@ public class SQRLStorage {
         this.previousKey3Encrypted = null;
         this.previousKey4Encrypted = null;
 
-        if(this.previousKey1 != null)
-            clearBytes(this.previousKey1);
-        if(this.previousKey2 != null)
-            clearBytes(this.previousKey2);
-        if(this.previousKey3 != null)
-            clearBytes(this.previousKey3);
-        if(this.previousKey4 != null)
-            clearBytes(this.previousKey4);
-
-        this.previousKey1 = null;
-        this.previousKey2 = null;
-        this.previousKey3 = null;
-        this.previousKey4 = null;
+        releasePreviousKeys();
         this.previousVerificationTag = null;
         this.hasIdentityBlock = false;
         this.hasRescueBlock = false;
@@ -531,8 +542,16 @@ public class SQRLStorage {
             if (res == 0x55555555) return false;
         }
 
-        identityMasterKey = Arrays.copyOfRange(decryptionResult, 0, 32);
-        identityLockKey = Arrays.copyOfRange(decryptionResult, 32, 64);
+        if (isUnlockedElsewhere()) {
+            Arrays.fill(decryptionResult, (byte) 0);
+            return true;
+        }
+
+        SecretArena.release(identityMasterKey);
+        SecretArena.release(identityLockKey);
+        identityMasterKey = SecretArena.getInstance().wrap(decryptionResult, 0, 32);
+        identityLockKey = SecretArena.getInstance().wrap(decryptionResult, 32, 32);
+        Arrays.fill(decryptionResult, (byte) 0);
 
         if(hasPreviousBlock) {
             return decryptPreviousBlock();
@@ -553,6 +572,12 @@ public class SQRLStorage {
         try {
             byte[] key = null;
             if(quickPass) {
+                byte[] cachedKey = UnlockedKeyCache.getInstance().get(getUnlockedKeyBinding(password));
+                if(cachedKey != null) {
+                    boolean unlocked = decryptIdentityKeyInternal(cachedKey);
+                    clearBytes(cachedKey);
+                    if(unlocked) return true;
+                }
                 key = this.decryptIdentityKeyQuickPass(password);
             }
             if(key == null) {
@@ -561,18 +586,34 @@ public class SQRLStorage {
                 this.encryptIdentityKeyBiometric(key);
             }
 
-            return decryptIdentityKeyInternal(key);
+            boolean unlocked = decryptIdentityKeyInternal(key);
+            if(unlocked && UnlockedKeyCache.isEnabled(context)) {
+                UnlockedKeyCache.getInstance().put(key, getUnlockedKeyBinding(password), idleTimoutInMinutes * 60000L);
+            }
+            return unlocked;
         } catch (Exception e) {
             Log.e(SQRLStorage.TAG, e.getMessage(), e);
             return false;
         }
     }
 
+    /**
+     * The cached unlock key is bound to this identity's password salt and to the QuickPass, so
+     * it can only be unwrapped by the same QuickPass for the same identity.
+     */
+    private byte[] getUnlockedKeyBinding(String password) {
+        String quickPass = password.length() > this.getHintLength() ?
+                password.substring(0, this.getHintLength()) : password;
+        return EncryptionUtils.combine(randomSalt, quickPass.getBytes());
+    }
+
     private boolean decryptPreviousBlock() {
         this.progressionUpdater.setState(R.string.progress_state_descrypting_previous_identity);
-        byte[] masterKey = this.identityMasterKey;
+        byte[] masterKey = new byte[32];
 
         try {
+            this.identityMasterKey.copyTo(masterKey, 0);
+
             byte[] identityKeys = previousKey1Encrypted;
             if(previousCountOfKeys > 1) {
                 identityKeys = EncryptionUtils.combine(identityKeys, previousKey2Encrypted);
@@ -614,23 +655,39 @@ public class SQRLStorage {
                 if (res == 0x55555555) return false;
             }
 
-            previousKey1 = Arrays.copyOfRange(decryptionResult, 0, 32);
+            SecretArena arena = SecretArena.getInstance();
+            releasePreviousKeys();
+            previousKey1 = arena.wrap(decryptionResult, 0, 32);
             if(previousCountOfKeys > 1) {
-                previousKey2 = Arrays.copyOfRange(decryptionResult, 32, 64);
+                previousKey2 = arena.wrap(decryptionResult, 32, 32);
             }
             if(previousCountOfKeys > 2) {
-                previousKey3 = Arrays.copyOfRange(decryptionResult, 64, 96);
+                previousKey3 = arena.wrap(decryptionResult, 64, 32);
             }
             if(previousCountOfKeys > 3) {
-                previousKey4 = Arrays.copyOfRange(decryptionResult, 96, 128);
+                previousKey4 = arena.wrap(decryptionResult, 96, 32);
             }
+            Arrays.fill(decryptionResult, (byte) 0);
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
             return false;
+        } finally {
+            Arrays.fill(masterKey, (byte) 0);
         }
         return true;
     }
 
+    private void releasePreviousKeys() {
+        SecretArena.release(this.previousKey1);
+        SecretArena.release(this.previousKey2);
+        SecretArena.release(this.previousKey3);
+        SecretArena.release(this.previousKey4);
+        this.previousKey1 = null;
+        this.previousKey2 = null;
+        this.previousKey3 = null;
+        this.previousKey4 = null;
+    }
+
     /**
      * This unlocks the unlock key used to recover your identity if your master key gets comprimised
      * this key should NEVER be saved in the device. It's just used to create a new identity.
@@ -656,24 +713,28 @@ public class SQRLStorage {
                 cipher.updateAAD(rescuePlaintext);
                 cipher.update(rescueIdentityUnlockKeyEncrypted);
                 try {
-                    rescueIdentityUnlockKey = cipher.doFinal(rescueVerificationTag);
+                    setRescueIdentityUnlockKey(cipher.doFinal(rescueVerificationTag));
                 } catch (AEADBadTagException badTag) {
                     return false;
                 }
             } else {
-                rescueIdentityUnlockKey = new byte[rescueIdentityUnlockKeyEncrypted.length];
+                byte[] unlockKey = new byte[rescueIdentityUnlockKeyEncrypted.length];
 
                 Grc_aesgcm.gcm_setkey(key, key.length);
                 int res = Grc_aesgcm.gcm_auth_decrypt(
                         nullBytes, nullBytes.length,
                         rescuePlaintext, rescuePlaintext.length,
-                        rescueIdentityUnlockKeyEncrypted, rescueIdentityUnlockKey,
+                        rescueIdentityUnlockKeyEncrypted, unlockKey,
                         rescueIdentityUnlockKeyEncrypted.length,
                         rescueVerificationTag, rescueVerificationTag.length
                 );
                 Grc_aesgcm.gcm_zero_ctx();
 
-                if (res == 0x55555555) return false;
+                if (res == 0x55555555) {
+                    Arrays.fill(unlockKey, (byte) 0);
+                    return false;
+                }
+                setRescueIdentityUnlockKey(unlockKey);
             }
         } catch (Exception e) {
             Log.e(SQRLStorage.TAG, e.getMessage(), e);
@@ -682,21 +743,39 @@ public class SQRLStorage {
         return true;
     }
 
+    private void setRescueIdentityUnlockKey(byte[] unlockKey) {
+        SecretArena.release(this.rescueIdentityUnlockKey);
+        this.rescueIdentityUnlockKey = SecretArena.getInstance().wrap(unlockKey);
+    }
+
     @Override
     public String toString() {
         return STORAGE_HEADER;
     }
 
-    public void setProgressionUpdater(ProgressionUpdater progressionUpdater) {
+    public synchronized void setProgressionUpdater(ProgressionUpdater progressionUpdater) {
+        if(progressionUpdaterLocked) return;
         this.progressionUpdater = progressionUpdater;
     }
 
+    /**
+     * Reports all progress to the given updater until unlocked, screens created in the
+     * meantime don't take it over.
+     */
+    public synchronized void lockProgressionUpdater(ProgressionUpdater progressionUpdater) {
+        this.progressionUpdater = progressionUpdater;
+        this.progressionUpdaterLocked = true;
+    }
+
+    public synchronized void unlockProgressionUpdater(ProgressionUpdater progressionUpdater) {
+        this.progressionUpdaterLocked = false;
+        if(progressionUpdater != null) {
+            this.progressionUpdater = progressionUpdater;
+        }
+    }
+
     public byte[] getKeySeed(byte[] domain) throws Exception {
-        byte[] masterKey = this.identityMasterKey;
-        final Mac HMacSha256 = Mac.getInstance("HmacSHA256");
-        final SecretKeySpec key = new SecretKeySpec(masterKey, "HmacSHA256");
-        HMacSha256.init(key);
-        return HMacSha256.doFinal(domain);
+        return this.identityMasterKey.hmacSha256(domain);
     }
 
     public byte[] getPrivateKey(byte[] domain) throws Exception {
@@ -715,38 +794,35 @@ public class SQRLStorage {
         return publicKey;
     }
 
-    public byte[] getPreviousKeySeed(byte[] domain) throws Exception {
-        byte[] currentPreviousUnlockKey;
-
-        switch (this.previousKeyIndex) {
-            case 1:
-                currentPreviousUnlockKey = this.previousKey1;
-                break;
+    private Secret getPreviousUnlockKey(int previousKeyIndex) {
+        switch (previousKeyIndex) {
             case 2:
-                currentPreviousUnlockKey = this.previousKey2;
-                break;
+                return this.previousKey2;
             case 3:
-                currentPreviousUnlockKey = this.previousKey3;
-                break;
+                return this.previousKey3;
             case 4:
-                currentPreviousUnlockKey = this.previousKey4;
-                break;
+                return this.previousKey4;
+            case 1:
             default:
-                currentPreviousUnlockKey = this.previousKey1;
+                return this.previousKey1;
         }
+    }
 
-        byte[] currentPreviousKey = EncryptionUtils.enHash(currentPreviousUnlockKey);
-        final Mac HMacSha256 = Mac.getInstance("HmacSHA256");
-        final SecretKeySpec key = new SecretKeySpec(currentPreviousKey, "HmacSHA256");
-        HMacSha256.init(key);
-        return HMacSha256.doFinal(domain);
+    public byte[] getPreviousKeySeed(byte[] domain, int previousKeyIndex) throws Exception {
+        Secret currentPreviousKey = SecretArena.getInstance().wrap(
+                getPreviousUnlockKey(previousKeyIndex).use(EncryptionUtils::enHash));
+        try {
+            return currentPreviousKey.hmacSha256(domain);
+        } finally {
+            currentPreviousKey.release();
+        }
     }
 
-    public byte[] getPreviousPublicKey(byte[] domain) throws Exception {
+    public byte[] getPreviousPublicKey(byte[] domain, int previousKeyIndex) throws Exception {
         byte[] publicKey = new byte[32];
         byte[] privateKey = new byte[64];
 
-        Sodium.crypto_sign_seed_keypair(publicKey, privateKey, getPreviousKeySeed(domain));
+        Sodium.crypto_sign_seed_keypair(publicKey, privateKey, getPreviousKeySeed(domain, previousKeyIndex));
         return publicKey;
     }
 
@@ -754,11 +830,11 @@ public class SQRLStorage {
         return hasPreviousBlock;
     }
 
-    public byte[] getPreviousPrivateKey(byte[] domain) throws Exception {
+    public byte[] getPreviousPrivateKey(byte[] domain, int previousKeyIndex) throws Exception {
         byte[] publicKey = new byte[32];
         byte[] privateKey = new byte[64];
 
-        Sodium.crypto_sign_seed_keypair(publicKey, privateKey, getPreviousKeySeed(domain));
+        Sodium.crypto_sign_seed_keypair(publicKey, privateKey, getPreviousKeySeed(domain, previousKeyIndex));
         return privateKey;
     }
 
@@ -783,8 +859,7 @@ public class SQRLStorage {
     }
 
     public void clearQuickPass() {
-        this.previousKeyIndex = 0;
-        this.loginWithPreviousKey = false;
+        UnlockedKeyCache.getInstance().wipe();
 
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         SharedPreferences.Editor editor = sharedPreferences.edit();
@@ -811,34 +886,14 @@ public class SQRLStorage {
     }
 
     public void clear() {
-        this.previousKeyIndex = 0;
-        this.loginWithPreviousKey = false;
-
         try {
-            if(this.identityLockKey != null) {
-                clearBytes(this.identityLockKey);
-            }
-            if(this.identityMasterKey != null) {
-                clearBytes(this.identityMasterKey);
-            }
-            if(this.rescueIdentityUnlockKey != null) {
-                clearBytes(this.rescueIdentityUnlockKey);
-            }
+            SecretArena.release(this.identityLockKey);
+            SecretArena.release(this.identityMasterKey);
+            SecretArena.release(this.rescueIdentityUnlockKey);
             if(this.tempRescueCode != null) {
                 clearBytes(this.tempRescueCode);
             }
-            if(this.previousKey1 != null) {
-                clearBytes(this.previousKey1);
-            }
-            if(this.previousKey2 != null) {
-                clearBytes(this.previousKey2);
-            }
-            if(this.previousKey3 != null) {
-                clearBytes(this.previousKey3);
-            }
-            if(this.previousKey4 != null) {
-                clearBytes(this.previousKey4);
-            }
+            releasePreviousKeys();
         } finally {
             this.identityLockKey = null;
             this.identityMasterKey = null;
@@ -1001,7 +1056,9 @@ public class SQRLStorage {
             this.iterationCount = getIntFromFourBytes(encResult, 0);
             byte[] key = Arrays.copyOfRange(encResult, 4, 36);
 
-            byte[] identityKeys = EncryptionUtils.combine(identityMasterKey, identityLockKey);
+            byte[] identityKeys = new byte[64];
+            identityMasterKey.copyTo(identityKeys, 0);
+            identityLockKey.copyTo(identityKeys, 32);
 
             entropyHarvester.fetchRandom(this.initializationVector);
 
@@ -1014,6 +1071,7 @@ public class SQRLStorage {
                 cipher.init(Cipher.ENCRYPT_MODE, keySpec, params);
                 cipher.updateAAD(identityPlaintext);
                 cipher.update(identityKeys);
+                Arrays.fill(identityKeys, (byte) 0);
                 byte[] encryptionResult = cipher.doFinal();
 
                 this.identityMasterKeyEncrypted = Arrays.copyOfRange(encryptionResult, 0, 32);
@@ -1031,6 +1089,7 @@ public class SQRLStorage {
                         resultVerificationTag, resultVerificationTag.length
                 );
                 Grc_aesgcm.gcm_zero_ctx();
+                Arrays.fill(identityKeys, (byte) 0);
 
                 if (res == 0x55555555) return false;
 
@@ -1051,17 +1110,20 @@ public class SQRLStorage {
 
 
     private boolean encryptPreviousBlock() {
+        byte[] identityKeys = new byte[32 * previousCountOfKeys];
+        byte[] masterKey = new byte[32];
         try {
-            byte[] identityKeys = previousKey1;
+            previousKey1.copyTo(identityKeys, 0);
             if(previousCountOfKeys > 1) {
-                identityKeys = EncryptionUtils.combine(identityKeys, previousKey2);
+                previousKey2.copyTo(identityKeys, 32);
             }
             if(previousCountOfKeys > 2) {
-                identityKeys = EncryptionUtils.combine(identityKeys, previousKey3);
+                previousKey3.copyTo(identityKeys, 64);
             }
             if(previousCountOfKeys > 3) {
-                identityKeys = EncryptionUtils.combine(identityKeys, previousKey4);
+                previousKey4.copyTo(identityKeys, 96);
             }
+            identityMasterKey.copyTo(masterKey, 0);
 
             byte[] nullBytes = new byte[12];
             Arrays.fill(nullBytes, (byte)0);
@@ -1069,7 +1131,7 @@ public class SQRLStorage {
             this.progressionUpdater.setState(R.string.progress_state_encrypting_previous_identity);
 
             if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                Key keySpec = new SecretKeySpec(this.identityMasterKey, "AES");
+                Key keySpec = new SecretKeySpec(masterKey, "AES");
                 Cipher cipher = Cipher.getInstance("AES_256/GCM/NoPadding");
                 GCMParameterSpec params = new GCMParameterSpec(128, nullBytes);
                 cipher.init(Cipher.ENCRYPT_MODE, keySpec, params);
@@ -1097,7 +1159,7 @@ public class SQRLStorage {
                 byte[] resultVerificationTag = new byte[16];
                 byte[] encryptionResult = new byte[identityKeys.length];
 
-                Grc_aesgcm.gcm_setkey(this.identityMasterKey, this.identityMasterKey.length);
+                Grc_aesgcm.gcm_setkey(masterKey, masterKey.length);
                 int res = Grc_aesgcm.gcm_encrypt_and_tag(
                         nullBytes, nullBytes.length,
                         previousPlaintext, previousPlaintext.length,
@@ -1127,17 +1189,25 @@ public class SQRLStorage {
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
             return false;
+        } finally {
+            Arrays.fill(identityKeys, (byte) 0);
+            Arrays.fill(masterKey, (byte) 0);
         }
         return true;
     }
 
-    private void addPreviousKey(byte[] identityUnlockKey) {
+    /**
+     * Pushes the key onto the previous keys, which take ownership of it.
+     */
+    private void addPreviousKey(Secret identityUnlockKey) {
         if(hasPreviousBlock) {
             this.reInitializeMasterKeyIdentity();
         }
         if(!hasPreviousBlock || previousCountOfKeys == 0 || this.decryptPreviousBlock()) {
             if (this.previousCountOfKeys < 4) {
                 this.previousCountOfKeys++;
+            } else {
+                SecretArena.release(this.previousKey4);
             }
             if (previousCountOfKeys > 3) {
                 this.previousKey4 = this.previousKey3;
@@ -1151,6 +1221,8 @@ public class SQRLStorage {
             this.previousKey1 = identityUnlockKey;
             this.hasPreviousBlock = true;
             this.updatePreviousPlaintext();
+        } else {
+            SecretArena.release(identityUnlockKey);
         }
     }
 
@@ -1166,12 +1238,15 @@ public class SQRLStorage {
 
         if(this.hasRescueBlock && this.rescueIdentityUnlockKey != null) {
             addPreviousKey(this.rescueIdentityUnlockKey);
+        } else {
+            SecretArena.release(this.rescueIdentityUnlockKey);
         }
+        this.rescueIdentityUnlockKey = null;
         this.progressionUpdater.setState(R.string.progress_state_encrypting_rescue_code_identity);
 
         this.rescueRandomSalt = new byte[16];
         this.rescueLogNFactor = 9;
-        this.rescueIdentityUnlockKey = new byte[32];
+        byte[] unlockKey = new byte[32];
         this.rescueIdentityUnlockKeyEncrypted = new byte[32];
         this.rescueVerificationTag = new byte[16];
         this.hasRescueBlock = true;
@@ -1179,7 +1254,7 @@ public class SQRLStorage {
         byte rescueCodeEncryptionTime = (byte)60; // 1 min
         try {
             entropyHarvester.fetchRandom(this.rescueRandomSalt);
-            entropyHarvester.fetchRandom(this.rescueIdentityUnlockKey);
+            entropyHarvester.fetchRandom(unlockKey);
 
             byte[] encResult = EncryptionUtils.enSCryptTime(getTempRescueCode(), rescueRandomSalt, rescueLogNFactor, 32, rescueCodeEncryptionTime, this.progressionUpdater);
             this.rescueIterationCount = getIntFromFourBytes(encResult, 0);
@@ -1196,20 +1271,20 @@ public class SQRLStorage {
                 GCMParameterSpec params = new GCMParameterSpec(128, nullBytes);
                 cipher.init(Cipher.ENCRYPT_MODE, keySpec, params);
                 cipher.updateAAD(rescuePlaintext);
-                cipher.update(rescueIdentityUnlockKey);
+                cipher.update(unlockKey);
                 byte[] encryptionResult = cipher.doFinal();
 
                 this.rescueIdentityUnlockKeyEncrypted = Arrays.copyOfRange(encryptionResult, 0, 32);
                 this.rescueVerificationTag = Arrays.copyOfRange(encryptionResult, 32, 48);
             } else {
                 byte[] resultVerificationTag = new byte[16];
-                byte[] encryptionResult = new byte[rescueIdentityUnlockKey.length];
+                byte[] encryptionResult = new byte[unlockKey.length];
 
                 Grc_aesgcm.gcm_setkey(key, key.length);
                 int res = Grc_aesgcm.gcm_encrypt_and_tag(
                         nullBytes, nullBytes.length,
                         rescuePlaintext, rescuePlaintext.length,
-                        rescueIdentityUnlockKey, encryptionResult, rescueIdentityUnlockKey.length,
+                        unlockKey, encryptionResult, unlockKey.length,
                         resultVerificationTag, resultVerificationTag.length
                 );
                 Grc_aesgcm.gcm_zero_ctx();
@@ -1222,6 +1297,8 @@ public class SQRLStorage {
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
             return false;
+        } finally {
+            setRescueIdentityUnlockKey(unlockKey);
         }
         return true;
     }
@@ -1397,10 +1474,22 @@ public class SQRLStorage {
     }
 
     public void reInitializeMasterKeyIdentity() {
+        if (isUnlockedElsewhere()) return;
+
         if(this.rescueIdentityUnlockKey != null) {
-            this.identityMasterKey = EncryptionUtils.enHash(this.rescueIdentityUnlockKey);
-            this.identityLockKey = new byte[this.identityMasterKey.length];
-            Sodium.crypto_scalarmult_base(this.identityLockKey, this.rescueIdentityUnlockKey);
+            SecretArena arena = SecretArena.getInstance();
+            SecretArena.release(this.identityMasterKey);
+            SecretArena.release(this.identityLockKey);
+            try {
+                this.identityMasterKey = arena.wrap(this.rescueIdentityUnlockKey.use(EncryptionUtils::enHash));
+                this.identityLockKey = arena.wrap(this.rescueIdentityUnlockKey.use(unlockKey -> {
+                    byte[] lockKey = new byte[32];
+                    Sodium.crypto_scalarmult_base(lockKey, unlockKey);
+                    return lockKey;
+                }));
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
         }
 
         if(hasPreviousBlock) {
@@ -1408,7 +1497,7 @@ public class SQRLStorage {
         }
     }
 
-    public byte[] getUnlockRequestSigningKey(byte[] serverUnlock, boolean usePreviousKey) {
+    public byte[] getUnlockRequestSigningKey(byte[] serverUnlock, boolean usePreviousKey, int previousKeyIndex) {
         /*
         UnlockRequestSigning := SignPrivate( DHKA( ServerUnlock, IdentityUnlock ))
         */
@@ -1417,30 +1506,14 @@ public class SQRLStorage {
         byte[] notImportant = new byte[32];
         byte[] unlockRequestSign = new byte[64];
 
-        if(usePreviousKey) {
-            byte[] currentPreviousUnlockKey;
-
-            switch (this.previousKeyIndex) {
-                case 1:
-                    currentPreviousUnlockKey = this.previousKey1;
-                    break;
-                case 2:
-                    currentPreviousUnlockKey = this.previousKey2;
-                    break;
-                case 3:
-                    currentPreviousUnlockKey = this.previousKey3;
-                    break;
-                case 4:
-                    currentPreviousUnlockKey = this.previousKey4;
-                    break;
-                default:
-                    currentPreviousUnlockKey = this.previousKey1;
-            }
-            Sodium.crypto_scalarmult(bytesToSign, currentPreviousUnlockKey, serverUnlock);
-        } else {
-            Sodium.crypto_scalarmult(bytesToSign, this.rescueIdentityUnlockKey, serverUnlock);
+        Secret unlockKey = usePreviousKey ? getPreviousUnlockKey(previousKeyIndex) : this.rescueIdentityUnlockKey;
+        try {
+            unlockKey.use(key -> Sodium.crypto_scalarmult(bytesToSign, key, serverUnlock));
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
         }
         Sodium.crypto_sign_seed_keypair(notImportant, unlockRequestSign, bytesToSign);
+        Arrays.fill(bytesToSign, (byte) 0);
         return unlockRequestSign;
     }
 
@@ -1472,7 +1545,7 @@ public class SQRLStorage {
             byte[] verifyUnlock = new byte[32];
 
             Sodium.crypto_scalarmult_base(serverUnlock, randomLock);
-            Sodium.crypto_scalarmult(bytesToSign, randomLock, this.identityLockKey);
+            this.identityLockKey.use(lockKey -> Sodium.crypto_scalarmult(bytesToSign, randomLock, lockKey));
             Sodium.crypto_sign_seed_keypair(verifyUnlock, notImportant, bytesToSign);
 
             StringBuilder sb = new StringBuilder();
@@ -1497,7 +1570,7 @@ public class SQRLStorage {
         return HMacSha256.doFinal(secretIndex);
     }
 
-    public String getSecretIndex(byte[] domain, String secretIndex) throws Exception {
+    public String getSecretIndex(byte[] domain, String secretIndex, int previousKeyIndex) throws Exception {
         if(secretIndex == null) return "";
         StringBuilder sb = new StringBuilder();
         byte[] secIndexKey = EncryptionUtils.enHash(this.getKeySeed(domain));
@@ -1507,7 +1580,7 @@ public class SQRLStorage {
         ));
         sb.append("\r\n");
         if(this.hasPreviousKeys()) {
-            byte[] previousSecIndexKey = EncryptionUtils.enHash(this.getPreviousKeySeed(domain));
+            byte[] previousSecIndexKey = EncryptionUtils.enHash(this.getPreviousKeySeed(domain, previousKeyIndex));
             sb.append("pins=");
             sb.append(EncryptionUtils.encodeUrlSafe(
                     encodeSecretIndex(secretIndex.getBytes(), previousSecIndexKey)
@@ -0,0 +1,21 @@
+package org.ea.sqrl.processors;
+
+/**
+ * The transport is the only part of the protocol handling that actually talks to a SQRL
+ * server. Keeping it behind this interface lets us swap the real HTTP connection for a
+ * recorded conversation so login flows can be tested and timed without a network.
+ *
+ * @author Daniel Persson
+ */
+public interface SQRLTransport {
+
+    /**
+     * Posts the form encoded data to the given url and returns the body of the response.
+     *
+     * @param url   Full url including scheme, domain and query link.
+     * @param data  Form encoded client, server and signature parameters.
+     * @return      The raw (base64url encoded) response from the server.
+     * @throws Exception "CONN_ERROR" if the server could not be reached or answered with an error.
+     */
+    String post(String url, String data) throws Exception;
+}
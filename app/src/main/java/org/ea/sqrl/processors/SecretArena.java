@@ -0,0 +1,202 @@
+package org.ea.sqrl.processors;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small block of native memory that holds the identity's secret keys, outside the Java heap
+ * where the garbage collector would otherwise move and duplicate them. Keys are handed out as
+ * {@link Secret} slices and zeroed when released.
+ *
+ * Whenever a key has to leave the arena as a heap array, because the crypto library only takes
+ * arrays, it goes through {@link Secret#use(Operation)} which wipes the array again right after,
+ * and the copy is counted so it's visible how often key material reaches the heap.
+ *
+ * @author Daniel Persson
+ */
+public class SecretArena {
+    private static final String TAG = "SecretArena";
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_COUNT = 32;
+    private static final int HMAC_BLOCK_SIZE = 64;
+
+    public interface Operation<T> {
+        T apply(byte[] secret) throws Exception;
+    }
+
+    private static SecretArena instance = null;
+
+    private final ByteBuffer memory = ByteBuffer.allocateDirect(SLOT_SIZE * SLOT_COUNT);
+    private final boolean[] usedSlots = new boolean[SLOT_COUNT];
+    private final AtomicLong copyCount = new AtomicLong();
+
+    public static synchronized SecretArena getInstance() {
+        if (instance == null) {
+            instance = new SecretArena();
+        }
+        return instance;
+    }
+
+    /**
+     * Reserves zeroed space for a secret.
+     */
+    public synchronized Secret allocate(int length) {
+        int slots = (length + SLOT_SIZE - 1) / SLOT_SIZE;
+        for (int first = 0; first + slots <= SLOT_COUNT; first++) {
+            int run = 0;
+            while (run < slots && !usedSlots[first + run]) run++;
+            if (run == slots) {
+                Arrays.fill(usedSlots, first, first + slots, true);
+                ByteBuffer view = memory.duplicate();
+                view.position(first * SLOT_SIZE);
+                view.limit(first * SLOT_SIZE + length);
+                return new Secret(view.slice(), first, slots);
+            }
+            first += run;
+        }
+
+        Log.w(TAG, "Arena full, secret of " + length + " bytes allocated on its own");
+        return new Secret(ByteBuffer.allocateDirect(length), -1, 0);
+    }
+
+    /**
+     * Moves a range of an array into the arena. The array is left alone, the caller wipes it.
+     */
+    public Secret wrap(byte[] source, int offset, int length) {
+        Secret secret = allocate(length);
+        secret.buffer.put(source, offset, length);
+        secret.buffer.clear();
+        return secret;
+    }
+
+    /**
+     * Moves an array into the arena and zeroes the array.
+     */
+    public Secret wrap(byte[] source) {
+        Secret secret = wrap(source, 0, source.length);
+        Arrays.fill(source, (byte) 0);
+        return secret;
+    }
+
+    /**
+     * Number of times key material has been copied out to the heap.
+     */
+    public long getCopyCount() {
+        return copyCount.get();
+    }
+
+    public synchronized int getFreeSlots() {
+        int free = 0;
+        for (boolean used : usedSlots) {
+            if (!used) free++;
+        }
+        return free;
+    }
+
+    private synchronized void free(int firstSlot, int slots) {
+        if (firstSlot >= 0) Arrays.fill(usedSlots, firstSlot, firstSlot + slots, false);
+    }
+
+    public static void release(Secret secret) {
+        if (secret != null) secret.release();
+    }
+
+    public class Secret {
+        private final ByteBuffer buffer;
+        private final int firstSlot;
+        private final int slots;
+        private boolean released = false;
+
+        private Secret(ByteBuffer buffer, int firstSlot, int slots) {
+            this.buffer = buffer;
+            this.firstSlot = firstSlot;
+            this.slots = slots;
+        }
+
+        public int length() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Copies the secret into the given array at the given offset, the caller wipes it.
+         */
+        public synchronized void copyTo(byte[] destination, int offset) {
+            checkNotReleased();
+            copyCount.incrementAndGet();
+            buffer.duplicate().get(destination, offset, buffer.capacity());
+        }
+
+        /**
+         * Runs an operation that needs the secret as an array, the array only lives for the
+         * duration of the call.
+         */
+        public <T> T use(Operation<T> operation) throws Exception {
+            byte[] copy = new byte[length()];
+            try {
+                copyTo(copy, 0);
+                return operation.apply(copy);
+            } finally {
+                Arrays.fill(copy, (byte) 0);
+            }
+        }
+
+        /**
+         * HMAC-SHA256 keyed with this secret, as in RFC 2104. The key only exists on the heap
+         * in its padded form, which is wiped before returning.
+         */
+        public synchronized byte[] hmacSha256(byte[] data) throws Exception {
+            checkNotReleased();
+            if (buffer.capacity() > HMAC_BLOCK_SIZE) {
+                throw new IllegalStateException("Key longer than the HMAC block size");
+            }
+
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] pad = new byte[HMAC_BLOCK_SIZE];
+            byte[] inner = null;
+            try {
+                copyCount.incrementAndGet();
+                for (int i = 0; i < HMAC_BLOCK_SIZE; i++) {
+                    byte k = i < buffer.capacity() ? buffer.get(i) : 0;
+                    pad[i] = (byte) (k ^ 0x36);
+                }
+                sha256.update(pad);
+                sha256.update(data);
+                inner = sha256.digest();
+
+                for (int i = 0; i < HMAC_BLOCK_SIZE; i++) {
+                    pad[i] ^= 0x36 ^ 0x5c;
+                }
+                sha256.update(pad);
+                sha256.update(inner);
+                return sha256.digest();
+            } finally {
+                Arrays.fill(pad, (byte) 0);
+                if (inner != null) Arrays.fill(inner, (byte) 0);
+            }
+        }
+
+        /**
+         * Zeroes the secret and gives its space back to the arena.
+         */
+        public synchronized void release() {
+            if (released) return;
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            released = true;
+            free(firstSlot, slots);
+        }
+
+        public synchronized boolean isReleased() {
+            return released;
+        }
+
+        private void checkNotReleased() {
+            if (released) throw new IllegalStateException("Secret already released");
+        }
+    }
+}
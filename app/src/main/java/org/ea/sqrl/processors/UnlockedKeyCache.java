@@ -0,0 +1,235 @@
+package org.ea.sqrl.processors;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps the key that unlocks the identity for the length of the identity's idle timeout, so a
+ * repeated QuickPass login in that window is a single AES-GCM unwrap instead of an EnScrypt
+ * run. The key is only ever held wrapped, with the QuickPass as associated data, so a wrong
+ * QuickPass can't unwrap it. Any failed unwrap, the timeout or the screen turning off wipes it.
+ *
+ * This is opt in, see {@link #isEnabled(Context)}.
+ *
+ * @author Daniel Persson
+ */
+public class UnlockedKeyCache {
+    private static final String TAG = "UnlockedKeyCache";
+    private static final String PREFERENCE_KEY = "keepIdentityUnlocked";
+    private static final String KEYSTORE_ALIAS = "unlockedKeyCache";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    /**
+     * Wraps and unwraps the cached key, the wrapped form is the IV followed by the
+     * ciphertext and tag.
+     */
+    public interface KeyWrapper {
+        byte[] wrap(byte[] plaintext, byte[] aad) throws GeneralSecurityException;
+        byte[] unwrap(byte[] wrapped, byte[] aad) throws GeneralSecurityException;
+        void destroy();
+    }
+
+    private static UnlockedKeyCache instance = null;
+
+    private final KeyWrapper mWrapper;
+    private byte[] mWrapped = null;
+    private long mExpiresAtNanos = 0;
+
+    public UnlockedKeyCache(KeyWrapper wrapper) {
+        mWrapper = wrapper;
+    }
+
+    public static synchronized UnlockedKeyCache getInstance() {
+        if (instance == null) {
+            instance = new UnlockedKeyCache(
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? new KeyStoreKeyWrapper() : null);
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled(Context context) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPreferences.getBoolean(PREFERENCE_KEY, false);
+    }
+
+    public static void setEnabled(Context context, boolean enabled) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        sharedPreferences.edit().putBoolean(PREFERENCE_KEY, enabled).apply();
+        if (!enabled) getInstance().wipe();
+    }
+
+    /**
+     * Wraps and keeps the key, replacing whatever was cached before.
+     *
+     * @param key           Key to keep, the caller still owns this array.
+     * @param aad           Data the key is bound to, the same has to be given to get it back.
+     * @param ttlMillis     How long the key may be used.
+     */
+    public synchronized void put(byte[] key, byte[] aad, long ttlMillis) {
+        wipe();
+        if (mWrapper == null || ttlMillis <= 0) return;
+        try {
+            mWrapped = mWrapper.wrap(key, aad);
+            mExpiresAtNanos = System.nanoTime() + ttlMillis * 1_000_000L;
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, e.getMessage(), e);
+            wipe();
+        }
+    }
+
+    /**
+     * @param aad   Data given when the key was cached.
+     * @return  A copy of the key the caller should clear after use, or null if nothing usable
+     *          is cached.
+     */
+    public synchronized byte[] get(byte[] aad) {
+        if (mWrapped == null) return null;
+        if (System.nanoTime() - mExpiresAtNanos >= 0) {
+            wipe();
+            return null;
+        }
+        try {
+            return mWrapper.unwrap(mWrapped, aad);
+        } catch (GeneralSecurityException e) {
+            wipe();
+            return null;
+        }
+    }
+
+    public synchronized boolean hasKey() {
+        return mWrapped != null && System.nanoTime() - mExpiresAtNanos < 0;
+    }
+
+    public synchronized void wipe() {
+        if (mWrapped != null) {
+            Arrays.fill(mWrapped, (byte) 0);
+            mWrapped = null;
+        }
+        mExpiresAtNanos = 0;
+        if (mWrapper != null) mWrapper.destroy();
+    }
+
+    private static byte[] wrap(Cipher cipher, byte[] plaintext, byte[] aad) throws GeneralSecurityException {
+        cipher.updateAAD(aad);
+        byte[] iv = cipher.getIV();
+        byte[] ciphertext = cipher.doFinal(plaintext);
+        byte[] wrapped = new byte[iv.length + ciphertext.length];
+        System.arraycopy(iv, 0, wrapped, 0, iv.length);
+        System.arraycopy(ciphertext, 0, wrapped, iv.length, ciphertext.length);
+        return wrapped;
+    }
+
+    private static byte[] unwrap(Cipher cipher, byte[] wrapped, byte[] aad) throws GeneralSecurityException {
+        cipher.updateAAD(aad);
+        return cipher.doFinal(wrapped, IV_LENGTH, wrapped.length - IV_LENGTH);
+    }
+
+    /**
+     * Wraps with a non-exportable AES key in the AndroidKeyStore, created for each cached key
+     * and deleted with it.
+     */
+    @TargetApi(23)
+    public static class KeyStoreKeyWrapper implements KeyWrapper {
+        @Override
+        public byte[] wrap(byte[] plaintext, byte[] aad) throws GeneralSecurityException {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            keyGenerator.init(new KeyGenParameterSpec.Builder(
+                    KEYSTORE_ALIAS,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setKeySize(256)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .build());
+            SecretKey key = keyGenerator.generateKey();
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return UnlockedKeyCache.wrap(cipher, plaintext, aad);
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrapped, byte[] aad) throws GeneralSecurityException {
+            try {
+                KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+                keyStore.load(null);
+                SecretKey key = (SecretKey) keyStore.getKey(KEYSTORE_ALIAS, null);
+                if (key == null) throw new GeneralSecurityException("Cache key missing");
+
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, wrapped, 0, IV_LENGTH));
+                return UnlockedKeyCache.unwrap(cipher, wrapped, aad);
+            } catch (GeneralSecurityException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new GeneralSecurityException(e);
+            }
+        }
+
+        @Override
+        public void destroy() {
+            try {
+                KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+                keyStore.load(null);
+                keyStore.deleteEntry(KEYSTORE_ALIAS);
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Wraps with an AES key that only lives in this process, standing in for the key store
+     * where there is none, like in unit tests.
+     */
+    public static class SoftwareKeyWrapper implements KeyWrapper {
+        private final SecureRandom random = new SecureRandom();
+        private byte[] mKey = null;
+
+        @Override
+        public byte[] wrap(byte[] plaintext, byte[] aad) throws GeneralSecurityException {
+            mKey = new byte[32];
+            random.nextBytes(mKey);
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mKey, "AES"), new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            return UnlockedKeyCache.wrap(cipher, plaintext, aad);
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrapped, byte[] aad) throws GeneralSecurityException {
+            if (mKey == null) throw new GeneralSecurityException("Cache key missing");
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(mKey, "AES"),
+                    new GCMParameterSpec(TAG_LENGTH_BITS, wrapped, 0, IV_LENGTH));
+            return UnlockedKeyCache.unwrap(cipher, wrapped, aad);
+        }
+
+        @Override
+        public void destroy() {
+            if (mKey != null) {
+                Arrays.fill(mKey, (byte) 0);
+                mKey = null;
+            }
+        }
+    }
+}
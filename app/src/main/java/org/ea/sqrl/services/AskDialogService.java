@@ -21,7 +21,8 @@ public class AskDialogService {
     private TextView txtAskQuestion;
     private Button btnAskFirstButton;
     private Button btnAskSecondButton;
-    private Runnable askAction;
+    private volatile Runnable askAction;
+    private String pendingQuestion = null;
 
     public AskDialogService(Handler handler, PopupWindow askPopupWindow, TextView txtAskQuestion, Button btnAskFirstButton, Button btnAskSecondButton) {
         this.handler = handler;
@@ -31,7 +32,37 @@ public class AskDialogService {
         this.btnAskSecondButton = btnAskSecondButton;
     }
 
-    public void showDialog(String askString) {
+    /**
+     * Shows the dialog on the given screen, along with a question that is still waiting for
+     * an answer.
+     */
+    public synchronized void attach(Handler handler, PopupWindow askPopupWindow, TextView txtAskQuestion, Button btnAskFirstButton, Button btnAskSecondButton) {
+        this.handler = handler;
+        this.askPopupWindow = askPopupWindow;
+        this.txtAskQuestion = txtAskQuestion;
+        this.btnAskFirstButton = btnAskFirstButton;
+        this.btnAskSecondButton = btnAskSecondButton;
+        if (pendingQuestion != null) {
+            show(pendingQuestion);
+        }
+    }
+
+    /**
+     * Shows the question, or keeps it until a screen is attached. It stays pending until
+     * it has been answered.
+     */
+    public synchronized void showDialog(String askString) {
+        pendingQuestion = askString;
+        if (handler == null) return;
+        show(askString);
+    }
+
+    private void show(String askString) {
+        final PopupWindow askPopupWindow = this.askPopupWindow;
+        final TextView txtAskQuestion = this.txtAskQuestion;
+        final Button btnAskFirstButton = this.btnAskFirstButton;
+        final Button btnAskSecondButton = this.btnAskSecondButton;
+
         String[] askArray = askString.split("~");
         handler.post(() -> {
             try {
@@ -57,10 +88,33 @@ public class AskDialogService {
     }
 
     public void activateAskButton() {
-        handler.post(() -> {
-            askPopupWindow.dismiss();
-        });
-        new Thread(askAction).start();
+        final Handler handler;
+        final PopupWindow askPopupWindow;
+        synchronized (this) {
+            handler = this.handler;
+            askPopupWindow = this.askPopupWindow;
+            pendingQuestion = null;
+        }
+        if (handler != null) {
+            handler.post(askPopupWindow::dismiss);
+        }
+        // The flow schedules its own next step, so it can still be cancelled
+        Runnable askAction = this.askAction;
+        if (askAction != null) {
+            askAction.run();
+        }
+    }
+
+    /**
+     * Lets go of the screen the dialog was shown on. Questions asked after this are kept for
+     * the next screen attached, a pending answer is still passed on.
+     */
+    public synchronized void detach() {
+        handler = null;
+        askPopupWindow = null;
+        txtAskQuestion = null;
+        btnAskFirstButton = null;
+        btnAskSecondButton = null;
     }
 
     public void setAskAction(Runnable askAction) {
@@ -1,20 +1,12 @@
 package org.ea.sqrl.services;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
-import android.graphics.pdf.PdfDocument;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.CancellationSignal;
-import android.os.ParcelFileDescriptor;
-import android.print.PageRange;
-import android.print.PrintAttributes;
-import android.print.PrintDocumentAdapter;
-import android.print.PrintDocumentInfo;
-import android.print.pdf.PrintedPdfDocument;
 import android.support.annotation.RequiresApi;
 import android.text.Layout;
 import android.text.TextPaint;
@@ -23,10 +15,9 @@ import android.util.Log;
 import org.ea.sqrl.R;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.utils.DocumentPrintUtils;
+import org.ea.sqrl.utils.QrCodeCache;
 import org.ea.sqrl.utils.Utils;
 
-import java.io.FileOutputStream;
-import java.io.IOException;
 
 import io.nayuki.qrcodegen.QrCode;
 
@@ -35,157 +26,117 @@ import io.nayuki.qrcodegen.QrCode;
  * @author Daniel Persson
  */
 @RequiresApi(Build.VERSION_CODES.KITKAT)
-public class IdentityPrintDocumentAdapter extends PrintDocumentAdapter {
+public class IdentityPrintDocumentAdapter extends PdfPrintDocumentAdapter {
     private static final String TAG = "IdentityPrint";
-    private final Activity activity;
+    private static final int QR_MODULE_SIZE = 3;
+
+    private static final TextPaint HEADLINE_TEXT_PAINT = new TextPaint();
+    private static final TextPaint BODY_TEXT_PAINT = new TextPaint();
+    private static final TextPaint IDENTITY_TEXT_PAINT;
+    private static final Paint QR_CODE_PAINT = new Paint();
+    static {
+        HEADLINE_TEXT_PAINT.setTextSize(16);
+        HEADLINE_TEXT_PAINT.setFakeBoldText(true);
+
+        BODY_TEXT_PAINT.setTextSize(12);
+
+        IDENTITY_TEXT_PAINT = new TextPaint(BODY_TEXT_PAINT);
+        IDENTITY_TEXT_PAINT.setTypeface(Typeface.MONOSPACE);
+        IDENTITY_TEXT_PAINT.setFakeBoldText(true);
+
+        QR_CODE_PAINT.setColor(Color.BLACK);
+        QR_CODE_PAINT.setStyle(Paint.Style.FILL);
+    }
+
     private final String identityName;
     private final boolean withoutPassword;
-    private PrintedPdfDocument mPdfDocument;
+    private volatile byte[] saveData;
+    private volatile String recoveryBlock;
 
     public IdentityPrintDocumentAdapter(Activity activity, String identityName, boolean withoutPassword) {
-        this.activity = activity;
+        super(activity, "Identity.pdf");
         this.identityName = identityName;
         this.withoutPassword = withoutPassword;
     }
 
     @Override
-    public void onLayout(
-            PrintAttributes oldAttributes,
-            PrintAttributes newAttributes,
-            CancellationSignal cancellationSignal,
-            LayoutResultCallback callback,
-            Bundle metadata
-    ) {
-        mPdfDocument = new PrintedPdfDocument(activity, newAttributes);
-        if (cancellationSignal.isCanceled() ) {
-            callback.onLayoutCancelled();
-            return;
-        }
-
-        PrintDocumentInfo info = new PrintDocumentInfo
-                .Builder("Identity.pdf")
-                .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
-                .setPageCount(1)
-                .build();
-        callback.onLayoutFinished(info, true);
-    }
-
-    @Override
-    public void onWrite(
-            final PageRange[] pageRanges,
-            final ParcelFileDescriptor destination,
-            final CancellationSignal cancellationSignal,
-            final WriteResultCallback callback
-    ) {
-        PdfDocument.Page page = mPdfDocument.startPage(0);
-
-        if (cancellationSignal.isCanceled()) {
-            callback.onWriteCancelled();
-            mPdfDocument.close();
-            mPdfDocument = null;
-            return;
+    protected void preparePage() {
+        SQRLStorage storage = SQRLStorage.getInstance(activity);
+        if(this.withoutPassword) {
+            saveData = storage.createSaveDataWithoutPassword();
+        } else {
+            saveData = storage.createSaveData();
         }
 
-        drawPage(page);
-
-        mPdfDocument.finishPage(page);
         try {
-            mPdfDocument.writeTo(new FileOutputStream(
-                    destination.getFileDescriptor()));
-        } catch (IOException e) {
-            callback.onWriteFailed(e.toString());
-            return;
-        } finally {
-            mPdfDocument.close();
-            mPdfDocument = null;
+            Utils.refreshStorageFromDb(activity);
+            recoveryBlock = storage.getVerifyingRecoveryBlock();
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+            recoveryBlock = null;
         }
-        callback.onWriteFinished(pageRanges);
     }
 
-    private void drawPage(PdfDocument.Page page) {
-        SQRLStorage storage = SQRLStorage.getInstance(activity);
-        Canvas canvas = page.getCanvas();
+    @Override
+    protected void drawPage(Canvas canvas, CancellationSignal cancellationSignal) {
         int marginLeftRight = 35;
         int marginTop = 65;
         int lastBlockY = marginTop;
 
-        TextPaint headlineTextPaint = new TextPaint();
-        headlineTextPaint.setTextSize(16);
-        headlineTextPaint.setFakeBoldText(true);
-
-        TextPaint bodyTextPaint = new TextPaint();
-        bodyTextPaint.setTextSize(12);
-
-        TextPaint identityTextTextPaint = new TextPaint(bodyTextPaint);
-        identityTextTextPaint.setTypeface(Typeface.MONOSPACE);
-        identityTextTextPaint.setFakeBoldText(true);
-
         String identityTitle = "\"" + identityName + "\" SQRL Identity";
 
         lastBlockY += DocumentPrintUtils.drawTextBlock(
                 canvas,
                 identityTitle,
                 Layout.Alignment.ALIGN_CENTER,
-                headlineTextPaint,
+                HEADLINE_TEXT_PAINT,
                 marginTop,
                 marginLeftRight);
 
-        lastBlockY += DocumentPrintUtils.drawTextBlock(
+        lastBlockY += DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 activity.getString(R.string.print_identity_desc1),
                 Layout.Alignment.ALIGN_NORMAL,
-                bodyTextPaint,
+                BODY_TEXT_PAINT,
                 lastBlockY + 20,
                 marginLeftRight) + 20;
-
-        byte[] saveData;
-        if(this.withoutPassword) {
-            saveData = storage.createSaveDataWithoutPassword();
-        } else {
-            saveData = storage.createSaveData();
-        }
+        throwIfCanceled(cancellationSignal);
 
         int canvasMiddle = canvas.getWidth() / 2;
-        QrCode qrCode = QrCode.encodeBinary(saveData, QrCode.Ecc.MEDIUM);
-        Bitmap bitmap = qrCode.toImage(3, 0);
-
-        int bitmapWidth = bitmap.getScaledWidth(canvas);
+        QrCode qrCode = QrCodeCache.getInstance().getQrCode(saveData);
+        int qrCodeWidth = qrCode.size * QR_MODULE_SIZE;
 
-        canvas.drawBitmap(bitmap, canvasMiddle - (bitmapWidth / 2), lastBlockY + 20, new Paint());
+        qrCode.draw(canvas, canvasMiddle - (qrCodeWidth / 2), lastBlockY + 20, QR_MODULE_SIZE, QR_CODE_PAINT);
 
-        lastBlockY += bitmap.getScaledHeight(canvas) + 20;
+        lastBlockY += qrCodeWidth + 20;
+        throwIfCanceled(cancellationSignal);
 
-        lastBlockY += DocumentPrintUtils.drawTextBlock(
+        lastBlockY += DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 activity.getString(R.string.print_identity_desc2),
                 Layout.Alignment.ALIGN_NORMAL,
-                bodyTextPaint,
+                BODY_TEXT_PAINT,
                 lastBlockY + 20,
                 marginLeftRight) + 30;
+        throwIfCanceled(cancellationSignal);
 
-
-        int i = 0;
-        try {
-            Utils.refreshStorageFromDb(activity);
-            for (String identityTextBlock : storage.getVerifyingRecoveryBlock().split("\n")) {
+        if (recoveryBlock != null) {
+            for (String identityTextBlock : recoveryBlock.split("\n")) {
                 lastBlockY += DocumentPrintUtils.drawTextBlock(
                         canvas,
                         identityTextBlock,
                         Layout.Alignment.ALIGN_CENTER,
-                        identityTextTextPaint,
+                        IDENTITY_TEXT_PAINT,
                         lastBlockY + 3,
                         marginLeftRight) + 3;
-                i++;
             }
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage(), e);
         }
 
-        DocumentPrintUtils.drawTextBlock(
+        DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 activity.getString(R.string.print_identity_desc3),
                 Layout.Alignment.ALIGN_NORMAL,
-                bodyTextPaint,
+                BODY_TEXT_PAINT,
                 lastBlockY + 20,
                 marginLeftRight);
 
@@ -0,0 +1,315 @@
+package org.ea.sqrl.services;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import org.ea.sqrl.R;
+import org.ea.sqrl.processors.ProgressionUpdater;
+import org.ea.sqrl.processors.SQRLStorage;
+
+/**
+ * Runs the long EnScrypt jobs, unlocking with the rescue code and rekeying, in a foreground
+ * service so they survive the screen that started them. One job runs at a time. Its progress
+ * is kept here and replayed to whichever screen attaches, and a result that arrives while no
+ * screen is attached is held until one is or the next job is started. Jobs save what they
+ * produce themselves, so a result nobody picks up only loses the screen's follow up.
+ *
+ * @author Daniel Persson
+ */
+public class KdfJobService extends Service {
+    private static final String TAG = "KdfJobService";
+    private static final String CHANNEL_ID = "sqrl_progress_01";
+    private static final int NOTIFICATION_KDF_JOB = 2;
+    private static final long WAKE_LOCK_TIMEOUT_MS = 30 * 60 * 1000;
+    private static final long NOTIFICATION_INTERVAL_MS = 1000;
+
+    public interface Job {
+        /**
+         * Runs on a worker thread and saves whatever it produces before returning, the screen
+         * that started it may be gone by then.
+         *
+         * @return  0 on success, otherwise the string resource of the error to show.
+         */
+        int run();
+    }
+
+    public interface Listener {
+        void onJobFinished(int errorMessage);
+    }
+
+    private static final Object sLock = new Object();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static final JobProgress sProgress = new JobProgress();
+
+    private static String sJobName = null;
+    private static int sJobTitle = 0;
+    private static Job sPendingJob = null;
+    private static Integer sUndeliveredResult = null;
+    private static Listener sListener = null;
+    private static boolean sJobActive = false;
+
+    /**
+     * Starts a job, dropping the result of an earlier one that no screen picked up.
+     *
+     * @return  false if a job is still running.
+     */
+    public static boolean start(Context context, String jobName, int jobTitle, Job job) {
+        synchronized (sLock) {
+            if (sJobActive) return false;
+            sJobActive = true;
+            sJobName = jobName;
+            sJobTitle = jobTitle;
+            sPendingJob = job;
+            sUndeliveredResult = null;
+            sListener = null;
+            sProgress.attach(null);
+            sProgress.reset(jobTitle);
+        }
+        ContextCompat.startForegroundService(context, new Intent(context, KdfJobService.class));
+        return true;
+    }
+
+    /**
+     * Sends the progress of the named job to the given updater and the result to the
+     * listener, replaying what has happened so far.
+     *
+     * @return  true if the job is running or has a result waiting.
+     */
+    public static boolean attach(String jobName, ProgressionUpdater progressionUpdater, Listener listener) {
+        Integer result;
+        synchronized (sLock) {
+            if (!jobName.equals(sJobName)) return false;
+            sListener = listener;
+            sProgress.attach(progressionUpdater);
+            result = sUndeliveredResult;
+        }
+        if (result != null) deliver();
+        return true;
+    }
+
+    public static void detach(Listener listener) {
+        synchronized (sLock) {
+            if (sListener != listener) return;
+            sListener = null;
+            sProgress.attach(null);
+        }
+    }
+
+    /**
+     * @return  true if the named job is running or has a result waiting.
+     */
+    public static boolean isRunning(String jobName) {
+        synchronized (sLock) {
+            return jobName.equals(sJobName);
+        }
+    }
+
+    private static void deliver() {
+        sMainHandler.post(() -> {
+            Listener listener;
+            int result;
+            synchronized (sLock) {
+                if (sListener == null || sUndeliveredResult == null) return;
+                listener = sListener;
+                result = sUndeliveredResult;
+                sJobName = null;
+                sUndeliveredResult = null;
+                sListener = null;
+                sProgress.attach(null);
+            }
+            listener.onJobFinished(result);
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        final Job job;
+        final int title;
+        synchronized (sLock) {
+            job = sPendingJob;
+            title = sJobTitle;
+            sPendingJob = null;
+        }
+
+        startForeground(NOTIFICATION_KDF_JOB, buildNotification(title, 0, 0));
+        if (job == null) {
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        final PowerManager.WakeLock wakeLock = powerManager != null ?
+                powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "sqrl:kdfjob") : null;
+        if (wakeLock != null) wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+
+        sProgress.setService(this);
+        final SQRLStorage storage = SQRLStorage.getInstance(getApplicationContext());
+
+        new Thread(() -> {
+            int result = R.string.decrypt_identity_fail;
+            storage.lockProgressionUpdater(sProgress);
+            try {
+                result = job.run();
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            } finally {
+                ProgressionUpdater attached;
+                synchronized (sLock) {
+                    sJobActive = false;
+                    sUndeliveredResult = result;
+                    attached = sProgress.getAttached();
+                    sProgress.reset(0);
+                    sProgress.setService(null);
+                }
+                storage.unlockProgressionUpdater(attached);
+                if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+                deliver();
+                stopForeground(true);
+                stopSelf(startId);
+            }
+        }, "KdfJob").start();
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private android.app.Notification buildNotification(int title, int max, int progress) {
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && notificationManager != null) {
+            NotificationChannel notificationChannel = new NotificationChannel(
+                    CHANNEL_ID, "SQRL Progress Channel", NotificationManager.IMPORTANCE_LOW);
+            notificationChannel.setSound(null, null);
+            notificationManager.createNotificationChannel(notificationChannel);
+        }
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_sqrl_logo_vector_outline)
+                .setContentTitle(getString(title != 0 ? title : R.string.app_name))
+                .setProgress(max, progress, max == 0)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    private void updateNotification(int title, int max, int progress) {
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (notificationManager != null) {
+            notificationManager.notify(NOTIFICATION_KDF_JOB, buildNotification(title, max, progress));
+        }
+    }
+
+    /**
+     * Checkpoints where the running job is, in memory only and reset when the job ends, and
+     * passes every update on to the attached screen.
+     */
+    private static class JobProgress extends ProgressionUpdater {
+        private volatile ProgressionUpdater attached = null;
+        private volatile KdfJobService service = null;
+        private int state;
+        private int max;
+        private int progress;
+        private long iterationStart;
+        private long iterationInMilliSeconds;
+        private long lastNotification;
+
+        synchronized void reset(int state) {
+            this.state = state;
+            this.max = 0;
+            this.progress = 0;
+            this.iterationInMilliSeconds = 0;
+        }
+
+        synchronized void attach(ProgressionUpdater progressionUpdater) {
+            attached = progressionUpdater;
+            if (progressionUpdater != null) {
+                progressionUpdater.restore(state, max, progress, iterationInMilliSeconds);
+            }
+        }
+
+        ProgressionUpdater getAttached() {
+            return attached;
+        }
+
+        void setService(KdfJobService service) {
+            this.service = service;
+        }
+
+        private void notifyProgress(boolean force) {
+            KdfJobService s = service;
+            long now = System.currentTimeMillis();
+            if (s == null || (!force && now - lastNotification < NOTIFICATION_INTERVAL_MS)) return;
+            lastNotification = now;
+            s.updateNotification(state, max, progress);
+        }
+
+        @Override
+        public synchronized void setState(int state) {
+            this.state = state;
+            ProgressionUpdater a = attached;
+            if (a != null) a.setState(state);
+            notifyProgress(true);
+        }
+
+        @Override
+        public synchronized void setMax(int max) {
+            this.max = max;
+            this.progress = 0;
+            ProgressionUpdater a = attached;
+            if (a != null) a.setMax(max);
+            notifyProgress(true);
+        }
+
+        @Override
+        public synchronized void incrementProgress() {
+            progress++;
+            ProgressionUpdater a = attached;
+            if (a != null) a.incrementProgress();
+            notifyProgress(false);
+        }
+
+        @Override
+        public synchronized void setTimeDone(long timeInMilliSeconds) {
+            progress = Math.round(timeInMilliSeconds / 1000f);
+            ProgressionUpdater a = attached;
+            if (a != null) a.setTimeDone(timeInMilliSeconds);
+            notifyProgress(false);
+        }
+
+        @Override
+        public synchronized void startTimer() {
+            iterationStart = System.currentTimeMillis();
+            ProgressionUpdater a = attached;
+            if (a != null) a.startTimer();
+        }
+
+        @Override
+        public synchronized void endTimer() {
+            iterationInMilliSeconds = System.currentTimeMillis() - iterationStart;
+            ProgressionUpdater a = attached;
+            if (a != null) a.endTimer();
+        }
+
+        @Override
+        public synchronized void clear() {
+            max = 1;
+            progress = 0;
+            ProgressionUpdater a = attached;
+            if (a != null) a.clear();
+        }
+    }
+}
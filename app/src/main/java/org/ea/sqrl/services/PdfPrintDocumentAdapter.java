@@ -0,0 +1,134 @@
+package org.ea.sqrl.services;
+
+import android.app.Activity;
+import android.graphics.Canvas;
+import android.graphics.pdf.PdfDocument;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.print.PageRange;
+import android.print.PrintAttributes;
+import android.print.PrintDocumentAdapter;
+import android.print.PrintDocumentInfo;
+import android.print.pdf.PrintedPdfDocument;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Base for our single page print documents. The page is drawn and written on a print worker
+ * instead of the main thread, the print framework is told when it's done through the callbacks.
+ * Anything read from the shared storage is gathered on the main thread before the hand off, so
+ * the worker only draws.
+ * Drawing checks the cancellation signal between blocks so a cancelled print stops early, and
+ * the PDF is written straight to the destination given by the print framework.
+ *
+ * @author Daniel Persson
+ */
+@RequiresApi(Build.VERSION_CODES.KITKAT)
+public abstract class PdfPrintDocumentAdapter extends PrintDocumentAdapter {
+    private static final String TAG = "PdfPrintDocumentAdapter";
+
+    private static final ExecutorService printExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "PrintDocument");
+        t.setDaemon(true);
+        return t;
+    });
+
+    protected final Activity activity;
+    private final String documentName;
+    private volatile PrintAttributes mAttributes;
+
+    protected PdfPrintDocumentAdapter(Activity activity, String documentName) {
+        this.activity = activity;
+        this.documentName = documentName;
+    }
+
+    /**
+     * Reads what the page shows from the shared storage, called on the main thread before the
+     * page is handed to the print worker.
+     */
+    protected abstract void preparePage();
+
+    /**
+     * Draws the page, called on the print worker.
+     *
+     * @param canvas                The canvas of the only page.
+     * @param cancellationSignal    Signal to pass to {@link #throwIfCanceled} between blocks.
+     */
+    protected abstract void drawPage(Canvas canvas, CancellationSignal cancellationSignal);
+
+    protected static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal.isCanceled()) {
+            throw new OperationCanceledException();
+        }
+    }
+
+    @Override
+    public void onLayout(
+            PrintAttributes oldAttributes,
+            PrintAttributes newAttributes,
+            CancellationSignal cancellationSignal,
+            LayoutResultCallback callback,
+            Bundle metadata
+    ) {
+        if (cancellationSignal.isCanceled() ) {
+            callback.onLayoutCancelled();
+            return;
+        }
+        mAttributes = newAttributes;
+
+        PrintDocumentInfo info = new PrintDocumentInfo
+                .Builder(documentName)
+                .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
+                .setPageCount(1)
+                .build();
+        callback.onLayoutFinished(info, !newAttributes.equals(oldAttributes));
+    }
+
+    @Override
+    public void onWrite(
+            final PageRange[] pageRanges,
+            final ParcelFileDescriptor destination,
+            final CancellationSignal cancellationSignal,
+            final WriteResultCallback callback
+    ) {
+        final PrintAttributes attributes = mAttributes;
+        try {
+            preparePage();
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+            callback.onWriteFailed(e.toString());
+            return;
+        }
+        printExecutor.execute(() -> {
+            PrintedPdfDocument pdfDocument = new PrintedPdfDocument(activity, attributes);
+            try {
+                throwIfCanceled(cancellationSignal);
+                PdfDocument.Page page = pdfDocument.startPage(0);
+                drawPage(page.getCanvas(), cancellationSignal);
+                pdfDocument.finishPage(page);
+
+                throwIfCanceled(cancellationSignal);
+                // The descriptor belongs to the print framework, so the stream is left open
+                OutputStream out = new FileOutputStream(destination.getFileDescriptor());
+                pdfDocument.writeTo(out);
+                out.flush();
+                callback.onWriteFinished(pageRanges);
+            } catch (OperationCanceledException e) {
+                callback.onWriteCancelled();
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+                callback.onWriteFailed(e.toString());
+            } finally {
+                pdfDocument.close();
+            }
+        });
+    }
+}
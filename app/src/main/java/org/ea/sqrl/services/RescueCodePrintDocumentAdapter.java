@@ -3,16 +3,8 @@ package org.ea.sqrl.services;
 import android.app.Activity;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.pdf.PdfDocument;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.CancellationSignal;
-import android.os.ParcelFileDescriptor;
-import android.print.PageRange;
-import android.print.PrintAttributes;
-import android.print.PrintDocumentAdapter;
-import android.print.PrintDocumentInfo;
-import android.print.pdf.PrintedPdfDocument;
 import android.support.annotation.RequiresApi;
 import android.text.Layout;
 import android.text.TextPaint;
@@ -21,8 +13,6 @@ import org.ea.sqrl.R;
 import org.ea.sqrl.processors.SQRLStorage;
 import org.ea.sqrl.utils.DocumentPrintUtils;
 
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.List;
 
 /**
@@ -30,145 +20,98 @@ import java.util.List;
  * @author Daniel Persson
  */
 @RequiresApi(Build.VERSION_CODES.KITKAT)
-public class RescueCodePrintDocumentAdapter extends PrintDocumentAdapter {
+public class RescueCodePrintDocumentAdapter extends PdfPrintDocumentAdapter {
     private static final String TAG = "RescueCodePrintDocumentAdapter";
-    private final Activity activity;
-    private PrintedPdfDocument mPdfDocument;
 
-    public RescueCodePrintDocumentAdapter(Activity activity) {
-        this.activity = activity;
+    private static final TextPaint HEADLINE_TEXT_PAINT = new TextPaint();
+    private static final TextPaint RED_BOLD_TEXT_PAINT = new TextPaint();
+    private static final TextPaint STD_TEXT_PAINT = new TextPaint();
+    static {
+        HEADLINE_TEXT_PAINT.setAntiAlias(true);
+        HEADLINE_TEXT_PAINT.setTextSize(24);
+        HEADLINE_TEXT_PAINT.setFakeBoldText(true);
+
+        RED_BOLD_TEXT_PAINT.setAntiAlias(true);
+        RED_BOLD_TEXT_PAINT.setTextSize(24);
+        RED_BOLD_TEXT_PAINT.setFakeBoldText(true);
+        RED_BOLD_TEXT_PAINT.setColor(Color.RED);
+
+        STD_TEXT_PAINT.setAntiAlias(true);
+        STD_TEXT_PAINT.setTextSize(14);
     }
 
-    @Override
-    public void onLayout(
-            PrintAttributes oldAttributes,
-            PrintAttributes newAttributes,
-            CancellationSignal cancellationSignal,
-            LayoutResultCallback callback,
-            Bundle metadata
-    ) {
-        mPdfDocument = new PrintedPdfDocument(activity, newAttributes);
-        if (cancellationSignal.isCanceled() ) {
-            callback.onLayoutCancelled();
-            return;
-        }
+    private volatile String rescueCodeOutput;
 
-        PrintDocumentInfo info = new PrintDocumentInfo
-                .Builder("RescueCode.pdf")
-                .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
-                .setPageCount(1)
-                .build();
-        callback.onLayoutFinished(info, true);
+    public RescueCodePrintDocumentAdapter(Activity activity) {
+        super(activity, "RescueCode.pdf");
     }
 
     @Override
-    public void onWrite(
-            final PageRange[] pageRanges,
-            final ParcelFileDescriptor destination,
-            final CancellationSignal cancellationSignal,
-            final WriteResultCallback callback
-    ) {
-        PdfDocument.Page page = mPdfDocument.startPage(0);
-
-        if (cancellationSignal.isCanceled()) {
-            callback.onWriteCancelled();
-            mPdfDocument.close();
-            mPdfDocument = null;
-            return;
-        }
-
-        drawPage(page);
-
-        mPdfDocument.finishPage(page);
-        try {
-            mPdfDocument.writeTo(new FileOutputStream(
-                    destination.getFileDescriptor()));
-        } catch (IOException e) {
-            callback.onWriteFailed(e.toString());
-            return;
-        } finally {
-            mPdfDocument.close();
-            mPdfDocument = null;
+    protected void preparePage() {
+        SQRLStorage storage = SQRLStorage.getInstance(activity);
+        List<String> rescueCode = storage.getTempShowableRescueCode();
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (String s : rescueCode) {
+            if (!first) sb.append("-");
+            sb.append(s);
+            first = false;
         }
-        callback.onWriteFinished(pageRanges);
+        rescueCodeOutput = sb.toString();
     }
 
-    private void drawPage(PdfDocument.Page page) {
-        SQRLStorage storage = SQRLStorage.getInstance(activity);
-        Canvas canvas = page.getCanvas();
+    @Override
+    protected void drawPage(Canvas canvas, CancellationSignal cancellationSignal) {
         int marginTop = 65;
         int marginLeft = 35;
         int lastBlockY = marginTop;
 
-        TextPaint headlineText = new TextPaint();
-        headlineText.setAntiAlias(true);
-        headlineText.setTextSize(24);
-        headlineText.setFakeBoldText(true);
-
-        TextPaint redBoldText = new TextPaint();
-        redBoldText.setAntiAlias(true);
-        redBoldText.setTextSize(24);
-        redBoldText.setFakeBoldText(true);
-        redBoldText.setColor(Color.RED);
-
-        TextPaint stdText = new TextPaint();
-        stdText.setAntiAlias(true);
-        stdText.setTextSize(14);
-
         String headline = activity.getResources().getString(R.string.rescue_code_page_headline);
         String warning = "!! " + activity.getResources().getString(R.string.rescue_code_page_warning).toUpperCase() + " !!";
         String description = activity.getResources().getString(R.string.rescue_code_page_description);
 
-        lastBlockY += DocumentPrintUtils.drawTextBlock(
+        lastBlockY += DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 headline,
                 Layout.Alignment.ALIGN_CENTER,
-                headlineText,
+                HEADLINE_TEXT_PAINT,
                 lastBlockY,
                 marginLeft);
 
-        lastBlockY += DocumentPrintUtils.drawTextBlock(
+        lastBlockY += DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 warning,
                 Layout.Alignment.ALIGN_CENTER,
-                redBoldText,
+                RED_BOLD_TEXT_PAINT,
                 lastBlockY + 40,
                 marginLeft) + 40;
 
-        lastBlockY += DocumentPrintUtils.drawTextBlock(
+        lastBlockY += DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 description,
                 Layout.Alignment.ALIGN_NORMAL,
-                stdText,
+                STD_TEXT_PAINT,
                 lastBlockY + 20,
                 marginLeft) + 20;
-
-        List<String> rescueCode = storage.getTempShowableRescueCode();
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for (String s : rescueCode) {
-            if (!first) sb.append("-");
-            sb.append(s);
-            first = false;
-        }
-        String rescueCodeOutput = sb.toString();
+        throwIfCanceled(cancellationSignal);
 
         lastBlockY += DocumentPrintUtils.drawTextBlock(
                 canvas,
                 rescueCodeOutput,
                 Layout.Alignment.ALIGN_CENTER,
-                redBoldText,
+                RED_BOLD_TEXT_PAINT,
                 lastBlockY + 60,
                 marginLeft) + 60;
+        throwIfCanceled(cancellationSignal);
 
         String idName = activity.getResources().getString(R.string.txt_identity_name_hint) +
                 ": __________________________________";
 
-        DocumentPrintUtils.drawTextBlock(
+        DocumentPrintUtils.drawCachedTextBlock(
                 canvas,
                 idName,
                 Layout.Alignment.ALIGN_CENTER,
-                stdText,
+                STD_TEXT_PAINT,
                 lastBlockY + 60,
                 marginLeft);
 
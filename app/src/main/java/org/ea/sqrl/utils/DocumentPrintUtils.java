@@ -1,16 +1,16 @@
 package org.ea.sqrl.utils;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.text.Layout;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.util.Log;
+import android.util.LruCache;
 
 import org.ea.sqrl.R;
 
@@ -24,11 +24,39 @@ import java.util.Date;
  */
 public class DocumentPrintUtils {
     private static final String TAG = "DocumentPrintUtils";
+    private static final int LOGO_SIZE = 40;
+    private static final int MAX_CACHED_LAYOUTS = 32;
+
+    private static final TextPaint FOOTER_TEXT_PAINT = createFooterTextPaint();
+
+    private static Bitmap sPrintLogo = null;
+    private static String sVersionName = null;
+    private static final LruCache<LayoutKey, StaticLayout> sLayoutCache = new LruCache<>(MAX_CACHED_LAYOUTS);
 
     public static int drawTextBlock(Canvas canvas, String text, Layout.Alignment alignment, TextPaint textPaint, int y, int margin) {
         int width = canvas.getWidth() - (margin * 2);
+        return drawLayout(canvas, createLayout(text, textPaint, width, alignment), y, margin);
+    }
+
+    /**
+     * Same as {@link #drawTextBlock} but keeps the layout for the next document. Only use this
+     * for the fixed texts of a page, never for identity data or rescue codes, and keep the paint
+     * unchanged after the first use as the cached layout holds on to it.
+     */
+    public static int drawCachedTextBlock(Canvas canvas, String text, Layout.Alignment alignment, TextPaint textPaint, int y, int margin) {
+        int width = canvas.getWidth() - (margin * 2);
+        LayoutKey key = new LayoutKey(text, textPaint, width, alignment);
 
-        StaticLayout staticLayout = new StaticLayout(
+        StaticLayout staticLayout = sLayoutCache.get(key);
+        if (staticLayout == null) {
+            staticLayout = createLayout(text, textPaint, width, alignment);
+            sLayoutCache.put(key, staticLayout);
+        }
+        return drawLayout(canvas, staticLayout, y, margin);
+    }
+
+    private static StaticLayout createLayout(String text, TextPaint textPaint, int width, Layout.Alignment alignment) {
+        return new StaticLayout(
                 text,
                 textPaint,
                 width,
@@ -36,7 +64,9 @@ public class DocumentPrintUtils {
                 1,
                 0,
                 false);
+    }
 
+    private static int drawLayout(Canvas canvas, StaticLayout staticLayout, int y, int margin) {
         canvas.save();
         canvas.translate(margin, y);
         staticLayout.draw(canvas);
@@ -45,52 +75,99 @@ public class DocumentPrintUtils {
         return staticLayout.getHeight();
     }
 
-    public static void drawPrintPageFooter(Activity activity, Canvas canvas) {
+    public static void drawPrintPageFooter(Context context, Canvas canvas) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
 
         StringBuilder versionString = new StringBuilder();
-        versionString.append(activity.getString(R.string.print_version_string));
+        versionString.append(context.getString(R.string.print_version_string));
         versionString.append(" ");
         versionString.append(sdf.format(new Date()));
         versionString.append(" * ");
         versionString.append("Version: ");
+        versionString.append(getVersionName(context));
 
-        Bitmap loadLogo = BitmapFactory.decodeResource(activity.getResources(), R.drawable.sqrl_print_logo);
-        Bitmap sqrlLogo = Bitmap.createScaledBitmap(loadLogo, 40, 40, false);
-
-        TextPaint textPaint = new TextPaint();
-        textPaint.setAntiAlias(true);
-        textPaint.setTextSize(10);
-        textPaint.setFakeBoldText(false);
-        textPaint.setColor(Color.DKGRAY);
-
+        Bitmap sqrlLogo = getPrintLogo(context);
         canvas.drawBitmap(
                 sqrlLogo,
                 (canvas.getWidth()/2) - (sqrlLogo.getScaledWidth(canvas) / 2),
                 canvas.getHeight() - 140,
-                new Paint()
+                null
         );
 
-        try {
-            PackageInfo pInfo = activity.getPackageManager().getPackageInfo(activity.getPackageName(), 0);
-            versionString.append(pInfo.versionName);
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
-
-        drawTextBlock(
+        drawCachedTextBlock(
                 canvas,
                 versionString.toString(),
                 Layout.Alignment.ALIGN_CENTER,
-                textPaint,
+                FOOTER_TEXT_PAINT,
                 canvas.getHeight() - 80,
                 20);
 
-        drawTextBlock(canvas,
+        drawCachedTextBlock(canvas,
                 "https://github.com/kalaspuffar/secure-quick-reliable-login",
                 Layout.Alignment.ALIGN_CENTER,
-                textPaint,
+                FOOTER_TEXT_PAINT,
                 canvas.getHeight() - 65,
                 20);
     }
+
+    private static TextPaint createFooterTextPaint() {
+        TextPaint textPaint = new TextPaint();
+        textPaint.setAntiAlias(true);
+        textPaint.setTextSize(10);
+        textPaint.setFakeBoldText(false);
+        textPaint.setColor(Color.DKGRAY);
+        return textPaint;
+    }
+
+    /**
+     * The logo is decoded and scaled on the first print only.
+     */
+    private static synchronized Bitmap getPrintLogo(Context context) {
+        if (sPrintLogo == null) {
+            Bitmap loadLogo = BitmapFactory.decodeResource(context.getResources(), R.drawable.sqrl_print_logo);
+            sPrintLogo = Bitmap.createScaledBitmap(loadLogo, LOGO_SIZE, LOGO_SIZE, false);
+            if (sPrintLogo != loadLogo) loadLogo.recycle();
+        }
+        return sPrintLogo;
+    }
+
+    private static synchronized String getVersionName(Context context) {
+        if (sVersionName == null) {
+            try {
+                PackageInfo pInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+                sVersionName = pInfo.versionName;
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+                return "";
+            }
+        }
+        return sVersionName;
+    }
+
+    private static class LayoutKey {
+        private final String text;
+        private final TextPaint textPaint;
+        private final int width;
+        private final Layout.Alignment alignment;
+
+        LayoutKey(String text, TextPaint textPaint, int width, Layout.Alignment alignment) {
+            this.text = text;
+            this.textPaint = textPaint;
+            this.width = width;
+            this.alignment = alignment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LayoutKey)) return false;
+            LayoutKey other = (LayoutKey) o;
+            return textPaint == other.textPaint && width == other.width &&
+                    alignment == other.alignment && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return (text.hashCode() * 31 + System.identityHashCode(textPaint)) * 31 + width;
+        }
+    }
 }
@@ -0,0 +1,285 @@
+package org.ea.sqrl.utils;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Splits data too large for one fast-scanning QR code into a stream of small frames, using a
+ * systematic LT fountain code. The first frames carry the blocks of the data as they are, the
+ * ones after are the XOR of a random set of blocks, so the stream can go on for ever and any
+ * set of frames slightly larger than the number of blocks is enough to get the data back,
+ * whichever frames the camera happened to miss.
+ *
+ * Frame layout, big endian:
+ * <pre>
+ *   "sqrlfc"  6 bytes
+ *   crc32     4 bytes, of the whole data, also tells streams apart
+ *   length    2 bytes, of the whole data
+ *   blockSize 2 bytes
+ *   seed      4 bytes, which blocks are in the frame
+ *   payload   blockSize bytes
+ * </pre>
+ *
+ * @author Daniel Persson
+ */
+public class FountainCode {
+    private static final byte[] FRAME_HEADER = "sqrlfc".getBytes();
+    private static final int HEADER_LENGTH = FRAME_HEADER.length + 12;
+    private static final int MAX_LENGTH = 0xFFFF;
+
+    // Robust soliton parameters
+    private static final double SOLITON_C = 0.1;
+    private static final double SOLITON_DELTA = 0.5;
+
+    public static boolean isFrame(byte[] data) {
+        if (data == null || data.length < HEADER_LENGTH) return false;
+        for (int i = 0; i < FRAME_HEADER.length; i++) {
+            if (data[i] != FRAME_HEADER[i]) return false;
+        }
+        return true;
+    }
+
+    private static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * The blocks XORed together in the frame with the given seed. Frames below the block count
+     * carry just that block.
+     */
+    private static BitSet getBlocks(int seed, long crc, int blockCount, double[] degreeCdf) {
+        BitSet blocks = new BitSet(blockCount);
+        if (seed < blockCount) {
+            blocks.set(seed);
+            return blocks;
+        }
+
+        Random random = new Random(((long) seed << 32) ^ crc);
+        double r = random.nextDouble();
+        int degree = 1;
+        while (degree < blockCount && degreeCdf[degree] < r) degree++;
+
+        // Partial Fisher-Yates to pick distinct blocks
+        int[] indices = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) indices[i] = i;
+        for (int i = 0; i < degree; i++) {
+            int j = i + random.nextInt(blockCount - i);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+            blocks.set(indices[i]);
+        }
+        return blocks;
+    }
+
+    /**
+     * Cumulative robust soliton distribution, entry d is the probability of a degree of at most d.
+     */
+    private static double[] getDegreeCdf(int blockCount) {
+        double[] weights = new double[blockCount + 1];
+        double r = SOLITON_C * Math.log(blockCount / SOLITON_DELTA) * Math.sqrt(blockCount);
+        int spike = Math.max(1, Math.min(blockCount, (int) Math.round(blockCount / r)));
+
+        double total = 0;
+        for (int d = 1; d <= blockCount; d++) {
+            double ideal = d == 1 ? 1.0 / blockCount : 1.0 / (d * (d - 1.0));
+            double robust = 0;
+            if (d < spike) robust = r / (d * (double) blockCount);
+            else if (d == spike) robust = r * Math.log(r / SOLITON_DELTA) / blockCount;
+            weights[d] = ideal + Math.max(0, robust);
+            total += weights[d];
+        }
+
+        double[] cdf = new double[blockCount + 1];
+        double sum = 0;
+        for (int d = 1; d <= blockCount; d++) {
+            sum += weights[d] / total;
+            cdf[d] = sum;
+        }
+        cdf[blockCount] = 1.0;
+        return cdf;
+    }
+
+    private static void xorInto(byte[] target, byte[] source, int sourceOffset) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] ^= source[sourceOffset + i];
+        }
+    }
+
+    public static class Encoder {
+        private final byte[] mData;
+        private final int mLength;
+        private final int mBlockSize;
+        private final int mBlockCount;
+        private final long mCrc;
+        private final double[] mDegreeCdf;
+
+        /**
+         * @param data          Data to send, at most 65535 bytes.
+         * @param blockSize     Payload bytes per frame.
+         */
+        public Encoder(byte[] data, int blockSize) {
+            if (data.length == 0 || data.length > MAX_LENGTH || blockSize <= 0 || blockSize > MAX_LENGTH) {
+                throw new IllegalArgumentException("Data or block size out of range");
+            }
+            mBlockSize = blockSize;
+            mBlockCount = (data.length + blockSize - 1) / blockSize;
+            mData = new byte[mBlockCount * blockSize];
+            System.arraycopy(data, 0, mData, 0, data.length);
+            mCrc = crc32(data);
+            mDegreeCdf = getDegreeCdf(mBlockCount);
+            mLength = data.length;
+        }
+
+        public int getBlockCount() {
+            return mBlockCount;
+        }
+
+        /**
+         * @param seed  Frame number, any number from 0 and up gives a usable frame.
+         */
+        public byte[] getFrame(int seed) {
+            byte[] payload = new byte[mBlockSize];
+            BitSet blocks = getBlocks(seed, mCrc, mBlockCount, mDegreeCdf);
+            for (int i = blocks.nextSetBit(0); i >= 0; i = blocks.nextSetBit(i + 1)) {
+                xorInto(payload, mData, i * mBlockSize);
+            }
+
+            return ByteBuffer.allocate(HEADER_LENGTH + mBlockSize)
+                    .put(FRAME_HEADER)
+                    .putInt((int) mCrc)
+                    .putShort((short) mLength)
+                    .putShort((short) mBlockSize)
+                    .putInt(seed)
+                    .put(payload)
+                    .array();
+        }
+    }
+
+    /**
+     * Collects frames in any order, with repeats, until the data can be solved. A frame from a
+     * different stream starts over with that stream.
+     */
+    public static class Decoder {
+        private long mCrc = -1;
+        private int mLength;
+        private int mBlockSize;
+        private int mBlockCount;
+        private double[] mDegreeCdf;
+        private BitSet[] mRows;
+        private byte[][] mPayloads;
+        private int mRank;
+        private byte[] mData;
+
+        /**
+         * @return  false if this isn't a frame.
+         */
+        public synchronized boolean add(byte[] frame) {
+            if (!isFrame(frame)) return false;
+            ByteBuffer buffer = ByteBuffer.wrap(frame, FRAME_HEADER.length, HEADER_LENGTH - FRAME_HEADER.length);
+            long crc = buffer.getInt() & 0xFFFFFFFFL;
+            int length = buffer.getShort() & 0xFFFF;
+            int blockSize = buffer.getShort() & 0xFFFF;
+            int seed = buffer.getInt();
+            if (length == 0 || blockSize == 0 || seed < 0 || frame.length != HEADER_LENGTH + blockSize) return false;
+
+            if (crc != mCrc || length != mLength || blockSize != mBlockSize) {
+                start(crc, length, blockSize);
+            }
+            if (mData != null) return true;
+
+            byte[] payload = new byte[blockSize];
+            System.arraycopy(frame, HEADER_LENGTH, payload, 0, blockSize);
+            reduce(getBlocks(seed, crc, mBlockCount, mDegreeCdf), payload);
+            if (mRank == mBlockCount) solve();
+            return true;
+        }
+
+        public synchronized boolean isComplete() {
+            return mData != null;
+        }
+
+        /**
+         * @return  The data, or null until enough frames have been added.
+         */
+        public synchronized byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * Blocks solved so far, this reaches the block count when the data is complete.
+         */
+        public synchronized int getRank() {
+            return mRank;
+        }
+
+        public synchronized int getBlockCount() {
+            return mBlockCount;
+        }
+
+        public synchronized void reset() {
+            mCrc = -1;
+            mLength = 0;
+            mBlockSize = 0;
+            mBlockCount = 0;
+            mRows = null;
+            mPayloads = null;
+            mRank = 0;
+            mData = null;
+        }
+
+        private void start(long crc, int length, int blockSize) {
+            mCrc = crc;
+            mLength = length;
+            mBlockSize = blockSize;
+            mBlockCount = (length + blockSize - 1) / blockSize;
+            mDegreeCdf = getDegreeCdf(mBlockCount);
+            mRows = new BitSet[mBlockCount];
+            mPayloads = new byte[mBlockCount][];
+            mRank = 0;
+            mData = null;
+        }
+
+        /**
+         * Gaussian elimination over GF(2), one frame at a time. Each kept row has its lowest
+         * block as pivot, so a new frame is reduced until it either vanishes, when it brought
+         * nothing new, or has a free pivot.
+         */
+        private void reduce(BitSet row, byte[] payload) {
+            for (int pivot = row.nextSetBit(0); pivot >= 0; pivot = row.nextSetBit(0)) {
+                if (mRows[pivot] == null) {
+                    mRows[pivot] = row;
+                    mPayloads[pivot] = payload;
+                    mRank++;
+                    return;
+                }
+                row.xor(mRows[pivot]);
+                xorInto(payload, mPayloads[pivot], 0);
+            }
+        }
+
+        private void solve() {
+            byte[] data = new byte[mBlockCount * mBlockSize];
+            for (int i = mBlockCount - 1; i >= 0; i--) {
+                BitSet row = mRows[i];
+                for (int j = row.nextSetBit(i + 1); j >= 0; j = row.nextSetBit(j + 1)) {
+                    xorInto(mPayloads[i], mPayloads[j], 0);
+                }
+                row.clear(i + 1, mBlockCount);
+                System.arraycopy(mPayloads[i], 0, data, i * mBlockSize, mBlockSize);
+            }
+
+            byte[] result = new byte[mLength];
+            System.arraycopy(data, 0, result, 0, mLength);
+            if (crc32(result) != mCrc) {
+                start(mCrc, mLength, mBlockSize);
+                return;
+            }
+            mData = result;
+        }
+    }
+}
@@ -24,7 +24,9 @@ import org.ea.sqrl.activites.identity.ExportOptionsActivity;
 import org.ea.sqrl.activites.identity.RenameActivity;
 import org.ea.sqrl.activites.identity.ResetPasswordActivity;
 import org.ea.sqrl.database.IdentityDBHelper;
+import org.ea.sqrl.database.IdentityRepository;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -72,7 +74,7 @@ public class IdentitySelector {
         mEnableIdentityOptions = enableIdentityOptions;
         mHideOnSingleIdentity = hideOnSingleIdentity;
         mDbHelper = IdentityDBHelper.getInstance(mContext);
-        mIdentities = mDbHelper.getIdentities();
+        mIdentities = new HashMap<>();
         mLastId = -1;
     }
 
@@ -107,10 +109,17 @@ public class IdentitySelector {
      * removal or renaming of an identity.
      * It is generally a good idea to call this method in the onResume() event of an activity
      * where an IdentitySelector is deployed.
+     * The identities are read on the database thread and the layout is updated once they
+     * arrive.
      */
     public void update() {
         long currentId = SqrlApplication.getCurrentId(mContext);
-        String currentName = mDbHelper.getIdentityName(currentId);
+        IdentityRepository.getInstance(mContext).getIdentities(
+                identities -> showIdentities(currentId, identities));
+    }
+
+    private void showIdentities(long currentId, Map<Long, String> identities) {
+        String currentName = identities.get(currentId);
         if (currentName == null) currentName = "";
 
         if (currentName.length() > ID_NAME_MAX_LEN) {
@@ -120,7 +129,7 @@ public class IdentitySelector {
         ssCurrentName.setSpan(new UnderlineSpan(), 0, ssCurrentName.length(), 0);
         mTxtSelectedIdentity.setText(ssCurrentName);
         mLastId = currentId;
-        mIdentities = mDbHelper.getIdentities();
+        mIdentities = identities;
 
         if (mHideOnSingleIdentity && mIdentities.size() < 2) {
             mIdentitySelectorLayout.setVisibility(View.GONE);
@@ -0,0 +1,335 @@
+package org.ea.sqrl.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates how many bits of guessing a password takes. The password is split into the cheapest
+ * run of parts, each either a brute forced character, a word from the word list, a sequence
+ * like "abc", a walk over the keyboard like "qwerty" or a repeat of what came just before, and
+ * the bits of the parts are added up.
+ *
+ * The estimate of a prefix only depends on the prefix, so typing a character on the end only
+ * costs the work for that character. Free of Android classes, not thread safe.
+ *
+ * @author Daniel Persson
+ */
+public class PasswordEntropyEstimator {
+    public static final int CLASS_LOWERCASE = 1;
+    public static final int CLASS_UPPERCASE = 2;
+    public static final int CLASS_DIGIT = 4;
+    public static final int CLASS_SYMBOL = 8;
+
+    private static final int MIN_MATCH_LENGTH = 3;
+    private static final double LOG2 = Math.log(2);
+
+    private static final String[] KEYBOARD_ROWS = {
+            "`1234567890-=", "qwertyuiop[]\\", "asdfghjkl;'", "zxcvbnm,./"
+    };
+    private static final String[] KEYBOARD_SHIFTED_ROWS = {
+            "~!@#$%^&*()_+", "QWERTYUIOP{}|", "ASDFGHJKL:\"", "ZXCVBNM<>?"
+    };
+    private static final float[] KEYBOARD_ROW_OFFSETS = {0f, 0.5f, 0.75f, 1.25f};
+    private static final double KEYBOARD_START_BITS = log2(47);
+    private static final double KEYBOARD_STEP_BITS = log2(4.5);
+
+    private static final String LEET_FROM = "4@3!10$57+";
+    private static final String LEET_TO = "aaeiiosstt";
+
+    public interface WordListLoader {
+        /**
+         * @return  Words, lower case and one per line, most common first.
+         */
+        byte[] load();
+    }
+
+    public static class Result {
+        public final double entropyBits;
+        public final int length;
+        public final int characterClasses;
+
+        Result(double entropyBits, int length, int characterClasses) {
+            this.entropyBits = entropyBits;
+            this.length = length;
+            this.characterClasses = characterClasses;
+        }
+
+        public boolean uses(int characterClass) {
+            return (characterClasses & characterClass) != 0;
+        }
+    }
+
+    private final WordListLoader mWordListLoader;
+    private Map<String, Integer> mWordRanks = null;
+    private int mMaxWordLength = 0;
+
+    private char[] mChars = new char[32];
+    private char[] mLowercase = new char[32];
+    private char[] mNormalized = new char[32];
+    private int[] mClasses = new int[32];
+    private double[] mBest = new double[33];
+    private int mLength = 0;
+
+    /**
+     * @param wordListLoader    Called on the first estimate, from the thread doing it.
+     */
+    public PasswordEntropyEstimator(WordListLoader wordListLoader) {
+        mWordListLoader = wordListLoader;
+    }
+
+    public Result estimate(CharSequence password) {
+        loadWordList();
+
+        int length = password.length();
+        int common = 0;
+        while (common < length && common < mLength && mChars[common] == password.charAt(common)) {
+            common++;
+        }
+        ensureCapacity(length);
+
+        for (int i = common; i < length; i++) {
+            char c = password.charAt(i);
+            mChars[i] = c;
+            mLowercase[i] = Character.toLowerCase(c);
+            int leet = LEET_FROM.indexOf(c);
+            mNormalized[i] = leet >= 0 ? LEET_TO.charAt(leet) : Character.toLowerCase(c);
+            mClasses[i] = (i > 0 ? mClasses[i - 1] : 0) | getCharacterClass(c);
+            mBest[i + 1] = getBestEndingAt(0, i, mBest, true);
+        }
+        mLength = length;
+
+        return new Result(mBest[length], length, length > 0 ? mClasses[length - 1] : 0);
+    }
+
+    /**
+     * Forgets the last password, wiping everything kept of it for the next estimate.
+     */
+    public void clear() {
+        Arrays.fill(mChars, '\0');
+        Arrays.fill(mLowercase, '\0');
+        Arrays.fill(mNormalized, '\0');
+        Arrays.fill(mClasses, 0);
+        Arrays.fill(mBest, 0);
+        mLength = 0;
+    }
+
+    private void loadWordList() {
+        if (mWordRanks != null) return;
+
+        Map<String, Integer> ranks = new HashMap<>();
+        byte[] data = mWordListLoader != null ? mWordListLoader.load() : null;
+        if (data != null) {
+            String[] words = new String(data, StandardCharsets.UTF_8).split("\n");
+            for (String word : words) {
+                word = word.trim();
+                if (word.length() < MIN_MATCH_LENGTH || ranks.containsKey(word)) continue;
+                ranks.put(word, ranks.size() + 1);
+                mMaxWordLength = Math.max(mMaxWordLength, word.length());
+            }
+        }
+        mWordRanks = ranks.isEmpty() ? Collections.emptyMap() : ranks;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length <= mChars.length) return;
+        int capacity = Math.max(length, mChars.length * 2);
+        mChars = Arrays.copyOf(mChars, capacity);
+        mLowercase = Arrays.copyOf(mLowercase, capacity);
+        mNormalized = Arrays.copyOf(mNormalized, capacity);
+        mClasses = Arrays.copyOf(mClasses, capacity);
+        mBest = Arrays.copyOf(mBest, capacity + 1);
+    }
+
+    /**
+     * Cheapest way to guess the characters from start to end, inclusive, given the cheapest way
+     * to each position before it in best, which is indexed from start.
+     */
+    private double getBestEndingAt(int start, int end, double[] best, boolean withRepeats) {
+        int offset = -start;
+        double result = best[end + offset] + log2(getCardinality(mClasses[end]));
+
+        for (int from = Math.max(start, end - mMaxWordLength + 1); from <= end - MIN_MATCH_LENGTH + 1; from++) {
+            double bits = getWordBits(from, end);
+            if (bits >= 0) result = Math.min(result, best[from + offset] + bits);
+        }
+
+        int sequenceStart = getSequenceStart(start, end);
+        for (int from = sequenceStart; from <= end - MIN_MATCH_LENGTH + 1; from++) {
+            result = Math.min(result, best[from + offset] + getSequenceBits(from, end));
+        }
+
+        int walkStart = getKeyboardWalkStart(start, end);
+        for (int from = walkStart; from <= end - MIN_MATCH_LENGTH + 1; from++) {
+            result = Math.min(result, best[from + offset] + getKeyboardWalkBits(from, end));
+        }
+
+        if (withRepeats) {
+            for (int blockLength = 1; blockLength <= (end - start + 1) / 2; blockLength++) {
+                int repeats = getRepeats(start, end, blockLength);
+                if (repeats < (blockLength == 1 ? MIN_MATCH_LENGTH : 2)) continue;
+                int from = end + 1 - repeats * blockLength;
+                double bits = getBlockBits(end + 1 - blockLength, end) + log2(repeats);
+                result = Math.min(result, best[from + offset] + bits);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return  Bits for the dictionary word from start to end, or -1 if it isn't one.
+     */
+    private double getWordBits(int start, int end) {
+        int length = end - start + 1;
+        boolean substitutions = false;
+        Integer rank = mWordRanks.get(new String(mLowercase, start, length));
+        if (rank == null) {
+            rank = mWordRanks.get(new String(mNormalized, start, length));
+            if (rank == null) return -1;
+            substitutions = true;
+        }
+
+        int uppercase = 0;
+        int substituted = 0;
+        for (int i = start; i <= end; i++) {
+            char c = mChars[i];
+            if (Character.isUpperCase(c)) uppercase++;
+            else if (substitutions && LEET_FROM.indexOf(c) >= 0) substituted++;
+        }
+
+        double bits = log2(rank + 1);
+        if (uppercase == length || (uppercase == 1 && Character.isUpperCase(mChars[start]))) {
+            bits += 1;
+        } else if (uppercase > 0) {
+            bits += log2Binomial(length, uppercase);
+        }
+        if (substituted > 0) bits += log2Binomial(length, substituted);
+        return bits;
+    }
+
+    /**
+     * Start of the longest run of characters ending at end that step by one, up or down.
+     */
+    private int getSequenceStart(int start, int end) {
+        if (end - start < 1) return end + 1;
+        int step = mChars[end] - mChars[end - 1];
+        if (step != 1 && step != -1) return end + 1;
+
+        int from = end - 1;
+        int characterClass = getCharacterClass(mChars[end]);
+        while (from > start && mChars[from] - mChars[from - 1] == step &&
+                getCharacterClass(mChars[from - 1]) == characterClass) {
+            from--;
+        }
+        return getCharacterClass(mChars[from]) == characterClass ? from : from + 1;
+    }
+
+    private double getSequenceBits(int start, int end) {
+        char first = mChars[start];
+        double bits = first == 'a' || first == 'A' || first == '0' || first == '1' ?
+                1 : log2(getCardinality(getCharacterClass(first)));
+        if (mChars[end] < first) bits += 1;
+        return bits + log2(end - start + 1);
+    }
+
+    /**
+     * Start of the longest run of characters ending at end where each is next to the one before
+     * on the keyboard.
+     */
+    private int getKeyboardWalkStart(int start, int end) {
+        int from = end;
+        while (from > start && isKeyboardNeighbour(mChars[from - 1], mChars[from])) {
+            from--;
+        }
+        return from;
+    }
+
+    private double getKeyboardWalkBits(int start, int end) {
+        boolean shifted = false;
+        for (int i = start; i <= end; i++) {
+            shifted |= getKeyboardRow(KEYBOARD_SHIFTED_ROWS, mChars[i]) >= 0;
+        }
+        return KEYBOARD_START_BITS + (end - start) * KEYBOARD_STEP_BITS + (shifted ? 1 : 0);
+    }
+
+    private static boolean isKeyboardNeighbour(char a, char b) {
+        if (a == b) return false;
+        String[] rows = getKeyboardRow(KEYBOARD_ROWS, a) >= 0 ? KEYBOARD_ROWS : KEYBOARD_SHIFTED_ROWS;
+        int rowA = getKeyboardRow(rows, a);
+        int rowB = getKeyboardRow(rows, b);
+        if (rowA < 0 || rowB < 0) return false;
+
+        float xA = rows[rowA].indexOf(a) + KEYBOARD_ROW_OFFSETS[rowA];
+        float xB = rows[rowB].indexOf(b) + KEYBOARD_ROW_OFFSETS[rowB];
+        if (rowA == rowB) return Math.abs(xA - xB) == 1f;
+        return Math.abs(rowA - rowB) == 1 && Math.abs(xA - xB) <= 0.75f;
+    }
+
+    private static int getKeyboardRow(String[] rows, char c) {
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].indexOf(c) >= 0) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * How many times the block of the given length ending at end comes right after itself.
+     */
+    private int getRepeats(int start, int end, int blockLength) {
+        int repeats = 1;
+        int from = end + 1 - blockLength;
+        while (from - blockLength >= start && regionEquals(from - blockLength, end + 1 - blockLength, blockLength)) {
+            from -= blockLength;
+            repeats++;
+        }
+        return repeats;
+    }
+
+    private boolean regionEquals(int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (mChars[a + i] != mChars[b + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cheapest way to guess a block on its own, without looking at what came before it.
+     */
+    private double getBlockBits(int start, int end) {
+        double[] best = new double[end - start + 2];
+        for (int i = start; i <= end; i++) {
+            best[i - start + 1] = getBestEndingAt(start, i, best, false);
+        }
+        return best[end - start + 1];
+    }
+
+    private static int getCharacterClass(char c) {
+        if (c >= 'a' && c <= 'z') return CLASS_LOWERCASE;
+        if (c >= 'A' && c <= 'Z') return CLASS_UPPERCASE;
+        if (c >= '0' && c <= '9') return CLASS_DIGIT;
+        return CLASS_SYMBOL;
+    }
+
+    private static int getCardinality(int characterClasses) {
+        int cardinality = 0;
+        if ((characterClasses & CLASS_LOWERCASE) != 0) cardinality += 26;
+        if ((characterClasses & CLASS_UPPERCASE) != 0) cardinality += 26;
+        if ((characterClasses & CLASS_DIGIT) != 0) cardinality += 10;
+        if ((characterClasses & CLASS_SYMBOL) != 0) cardinality += 33;
+        return Math.max(cardinality, 1);
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / LOG2;
+    }
+
+    private static double log2Binomial(int n, int k) {
+        double bits = 0;
+        for (int i = 1; i <= Math.min(k, n - k); i++) {
+            bits += log2(n - k + i) - log2(i);
+        }
+        return Math.max(bits, 1);
+    }
+}
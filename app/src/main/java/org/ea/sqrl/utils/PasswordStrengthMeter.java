@@ -2,34 +2,49 @@ package org.ea.sqrl.utils;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.ContextCompat;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
-import android.widget.Toast;
 
 import org.ea.sqrl.R;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Calculates and displays a password strength rating.
  * Expects the password_strength_meter.xml to be present in the calling layout
  *
+ * The rating comes from an entropy estimate done on one worker thread shared by all meters.
+ * Keystrokes only replace the password waiting for it, and it waits for typing to pause before
+ * estimating, so fast typing neither starts threads nor builds up work. Once nothing is waiting
+ * the estimator is wiped, so the worker doesn't hold on to the password.
+ *
  * @author Alexander Hauser (alexhauser)
  */
 public class PasswordStrengthMeter {
+    private static final String TAG = "PasswordStrengthMeter";
 
     private final int PW_MIN_LENGTH = 8;
-    private final int STRENGTH_POINTS_MIN_MEDIUM = 11;
-    private final int STRENGTH_POINTS_MIN_GOOD = 17;
+    private final int ENTROPY_BITS_MIN_MEDIUM = 40;
+    private final int ENTROPY_BITS_MIN_GOOD = 60;
+    private static final long DEBOUNCE_MS = 50;
+    private static final String WORD_LIST_ASSET = "password_words.txt";
+
     private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private ViewGroup mPassStrengthLayout;
-    private CalcPasswordStrengthAsyncTask mLastCalcTask;
+    private int mLastRequest = 0;
 
 
     /**
@@ -55,11 +70,8 @@ public class PasswordStrengthMeter {
         passwordField.addTextChangedListener(new TextWatcher() {
 
             public void afterTextChanged(Editable s) {
-                String password = s.toString();
-
-                if (mLastCalcTask != null) mLastCalcTask.cancel(true);
-                mLastCalcTask = new CalcPasswordStrengthAsyncTask();
-                mLastCalcTask.execute(password);
+                Evaluator.getInstance(mContext).submit(
+                        new Request(PasswordStrengthMeter.this, ++mLastRequest, s.toString()));
             }
 
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
@@ -67,135 +79,139 @@ public class PasswordStrengthMeter {
         });
     }
 
+    /**
+     * Called on the worker, results for anything but the latest keystroke are dropped.
+     */
+    private void onResult(int request, PasswordEntropyEstimator.Result result) {
+        mHandler.post(() -> {
+            if (request == mLastRequest) showResult(result);
+        });
+    }
 
-    class CalcPasswordStrengthAsyncTask extends AsyncTask<String, Void, PasswordStrengthResult> {
-
-        @Override
-        protected PasswordStrengthResult doInBackground(String... args) {
-
-            // This will avoid updating the UI too often on quick password input
-            for (int i=0; i<10; i++) {
-                try { Thread.sleep(5); } catch(Exception e) {}
-                if (isCancelled()) return null;
+    private void showResult(PasswordEntropyEstimator.Result result) {
+        PasswordRating rating;
+        if (result.entropyBits < ENTROPY_BITS_MIN_MEDIUM) {
+            rating = PasswordRating.POOR;
+        } else if (result.entropyBits < ENTROPY_BITS_MIN_GOOD) {
+            rating = PasswordRating.MEDIUM;
+        } else rating = PasswordRating.GOOD;
+
+        try {
+            Drawable ledGreen = ContextCompat.getDrawable(mContext, R.drawable.led_green);
+            Drawable ledRed   = ContextCompat.getDrawable(mContext, R.drawable.led_red);
+            TextView txtPasswordStrength = mPassStrengthLayout.findViewById(R.id.txtPasswordStrength);
+            TextView txtPasswordWarning = mPassStrengthLayout.findViewById(R.id.txtPasswordWarning);
+            ImageView imgUppercase = mPassStrengthLayout.findViewById(R.id.imgPasswordContainsUppercase);
+            ImageView imgLowercase = mPassStrengthLayout.findViewById(R.id.imgPasswordContainsLowercase);
+            ImageView imgDigits = mPassStrengthLayout.findViewById(R.id.imgPasswordContainsDigits);
+            ImageView imgSymbols = mPassStrengthLayout.findViewById(R.id.imgSymbols);
+            ProgressBar progressPwStrength = mPassStrengthLayout.findViewById(R.id.progressPasswordStrength);
+
+            progressPwStrength.setMax(ENTROPY_BITS_MIN_GOOD);
+            progressPwStrength.setProgress((int) Math.min(result.entropyBits, ENTROPY_BITS_MIN_GOOD));
+
+            if (rating == PasswordRating.POOR) {
+                txtPasswordStrength.setText(mContext.getText(R.string.password_strength_poor));
+                txtPasswordStrength.setBackgroundColor(
+                        ContextCompat.getColor(mContext, R.color.password_strength_poor));
+            } else if (rating == PasswordRating.MEDIUM) {
+                txtPasswordStrength.setText(mContext.getText(R.string.password_strength_medium));
+                txtPasswordStrength.setBackgroundColor(
+                        ContextCompat.getColor(mContext, R.color.password_strength_medium));
+            } else if (rating == PasswordRating.GOOD) {
+                txtPasswordStrength.setText(mContext.getText(R.string.password_strength_good));
+                txtPasswordStrength.setBackgroundColor(
+                        ContextCompat.getColor(mContext, R.color.password_strength_good));
             }
 
-            PasswordStrengthResult result = new PasswordStrengthResult();
-            String password = args[0];
+            imgLowercase.setImageDrawable(result.uses(PasswordEntropyEstimator.CLASS_LOWERCASE) ? ledGreen : ledRed);
+            imgUppercase.setImageDrawable(result.uses(PasswordEntropyEstimator.CLASS_UPPERCASE) ? ledGreen : ledRed);
+            imgDigits.setImageDrawable(result.uses(PasswordEntropyEstimator.CLASS_DIGIT) ? ledGreen : ledRed);
+            imgSymbols.setImageDrawable(result.uses(PasswordEntropyEstimator.CLASS_SYMBOL) ? ledGreen : ledRed);
 
-            result.passwordLength = password.length();
-            if (result.passwordLength > PW_MIN_LENGTH) {
-                result.strengthPoints = result.passwordLength;
+            if (result.length > 0 && result.length < PW_MIN_LENGTH) {
+                txtPasswordWarning.setText(R.string.short_password_warning);
+                txtPasswordWarning.setVisibility(View.VISIBLE);
             } else {
-                result.strengthPoints = (int)(result.passwordLength/2);
-            }
-
-            for (int i = 0; i < password.length(); i++) {
-
-                char c = password.charAt(i);
-
-                if (c >= 65 && c <= 90) {       // Uppercase
-                    if (!result.uppercaseUsed) {
-                        result.strengthPoints += 2;
-                        result.uppercaseUsed = true;
-                    }
-                } else if (c >= 97 && c <= 122) { // Lowercase
-                    if (!result.lowercaseUsed) {
-                        result.lowercaseUsed = true;
-                    }
-                } else if (c >= 48 && c <= 57) {  // Digit
-                    if (!result.digitsUsed) {
-                        result.strengthPoints += 2;
-                        result.digitsUsed = true;
-                    }
-                } else {                          // Symbol
-                    if (!result.symbolsUsed) {
-                        result.strengthPoints += 2;
-                        result.symbolsUsed = true;
-                    }
-                }
-
-                if (result.allCharClassesUsed()) break; // No need to look any further
-                if (isCancelled()) return null;
+                txtPasswordWarning.setVisibility(View.GONE);
             }
-
-            if (result.strengthPoints < STRENGTH_POINTS_MIN_MEDIUM) {
-                result.rating = PasswordRating.POOR;
-            } else if (result.strengthPoints < STRENGTH_POINTS_MIN_GOOD) {
-                result.rating = PasswordRating.MEDIUM;
-            } else result.rating = PasswordRating.GOOD;
-
-            // Last chance to detect cancellation
-            if (isCancelled()) return null;
-
-            return result;
         }
+        catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
 
-        @Override
-        protected void onPostExecute(PasswordStrengthResult result) {
-
-            if (result == null) return;
-
-            try {
-                Drawable ledGreen = ContextCompat.getDrawable(mContext, R.drawable.led_green);
-                Drawable ledRed   = ContextCompat.getDrawable(mContext, R.drawable.led_red);
-                TextView txtPasswordStrength = mPassStrengthLayout.findViewById(R.id.txtPasswordStrength);
-                TextView txtPasswordWarning = mPassStrengthLayout.findViewById(R.id.txtPasswordWarning);
-                ImageView imgUppercase = mPassStrengthLayout.findViewById(R.id.imgPasswordContainsUppercase);
-                ImageView imgLowercase = mPassStrengthLayout.findViewById(R.id.imgPasswordContainsLowercase);
-                ImageView imgDigits = mPassStrengthLayout.findViewById(R.id.imgPasswordContainsDigits);
-                ImageView imgSymbols = mPassStrengthLayout.findViewById(R.id.imgSymbols);
-                ProgressBar progressPwStrength = mPassStrengthLayout.findViewById(R.id.progressPasswordStrength);
-
-                progressPwStrength.setMax(STRENGTH_POINTS_MIN_GOOD);
-                progressPwStrength.setProgress(result.strengthPoints);
-
-                if (result.rating == PasswordRating.POOR) {
-                    txtPasswordStrength.setText(mContext.getText(R.string.password_strength_poor));
-                    txtPasswordStrength.setBackgroundColor(
-                            ContextCompat.getColor(mContext, R.color.password_strength_poor));
-                } else if (result.rating == PasswordRating.MEDIUM) {
-                    txtPasswordStrength.setText(mContext.getText(R.string.password_strength_medium));
-                    txtPasswordStrength.setBackgroundColor(
-                            ContextCompat.getColor(mContext, R.color.password_strength_medium));
-                } else if (result.rating == PasswordRating.GOOD) {
-                    txtPasswordStrength.setText(mContext.getText(R.string.password_strength_good));
-                    txtPasswordStrength.setBackgroundColor(
-                            ContextCompat.getColor(mContext, R.color.password_strength_good));
-                }
 
-                imgLowercase.setImageDrawable(result.lowercaseUsed ? ledGreen : ledRed);
-                imgUppercase.setImageDrawable(result.uppercaseUsed ? ledGreen : ledRed);
-                imgDigits.setImageDrawable(result.digitsUsed ? ledGreen : ledRed);
-                imgSymbols.setImageDrawable(result.symbolsUsed ? ledGreen : ledRed);
+    private static class Request {
+        final PasswordStrengthMeter meter;
+        final int sequence;
+        final String password;
+        final long submitted = System.nanoTime();
 
-                if (result.passwordLength > 0 && result.passwordLength < PW_MIN_LENGTH) {
-                    txtPasswordWarning.setText(R.string.short_password_warning);
-                    txtPasswordWarning.setVisibility(View.VISIBLE);
-                } else {
-                    txtPasswordWarning.setVisibility(View.GONE);
-                }
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
+        Request(PasswordStrengthMeter meter, int sequence, String password) {
+            this.meter = meter;
+            this.sequence = sequence;
+            this.password = password;
         }
     }
 
+    /**
+     * The one worker estimating passwords. Only the latest request is kept, it is estimated
+     * once no newer one has come in for the debounce time.
+     */
+    private static class Evaluator {
+        private static Evaluator instance = null;
+
+        private final PasswordEntropyEstimator mEstimator;
+        private final AtomicReference<Request> mPending = new AtomicReference<>();
+        private final Thread mWorker;
+
+        private Evaluator(Context context) {
+            mEstimator = new PasswordEntropyEstimator(
+                    () -> Utils.getAssetContent(context, WORD_LIST_ASSET));
+            mWorker = new Thread(this::run, "PasswordStrength");
+            mWorker.setDaemon(true);
+            mWorker.setPriority(Thread.MIN_PRIORITY);
+            mWorker.start();
+        }
 
-    class PasswordStrengthResult {
-
-        public int strengthPoints = 0;
-        public int passwordLength = 0;
+        static synchronized Evaluator getInstance(Context context) {
+            if (instance == null) {
+                instance = new Evaluator(context.getApplicationContext());
+            }
+            return instance;
+        }
 
-        public boolean lowercaseUsed = false;
-        public boolean uppercaseUsed = false;
-        public boolean digitsUsed = false;
-        public boolean symbolsUsed = false;
+        void submit(Request request) {
+            mPending.set(request);
+            LockSupport.unpark(mWorker);
+        }
 
-        public PasswordRating rating = PasswordRating.POOR;
+        private void run() {
+            long debounceNanos = TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS);
+            while (true) {
+                Request request = mPending.get();
+                if (request == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
 
-        public boolean allCharClassesUsed() {
-            return (lowercaseUsed && uppercaseUsed && digitsUsed && symbolsUsed);
+                long wait = request.submitted + debounceNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                if (!mPending.compareAndSet(request, null)) continue;
+
+                try {
+                    request.meter.onResult(request.sequence, mEstimator.estimate(request.password));
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                } finally {
+                    // The password is kept only while typing goes on, it may be the master password
+                    if (mPending.get() == null) mEstimator.clear();
+                }
+            }
         }
     }
 
@@ -1,16 +1,26 @@
 package org.ea.sqrl.utils;
 
 import com.google.zxing.FormatException;
-import com.google.zxing.common.DecoderResult;
 import com.google.zxing.qrcode.decoder.Version;
 
 public class QRCodeDecodeHelper {
-    public static byte[] decode(byte[] bytes) throws FormatException {
-        DecoderResult dr = QRCodeDecodedBitStreamParser.decode(bytes, Version.getVersionForNumber(1), null, null);
-        byte[] qrCode = new byte[0];
-        for(byte[] newSegment : dr.getByteSegments()) {
-            qrCode = EncryptionUtils.combine(qrCode, newSegment);
-        }
-        return qrCode;
+    private static final byte[] SQRL_HEADER = "sqrl".getBytes();
+
+    /**
+     * @param bytes     Data codewords of the symbol.
+     * @param version   Version of the symbol.
+     * @return  The data of all numeric, alphanumeric and byte segments.
+     */
+    public static byte[] decode(byte[] bytes, Version version) throws FormatException {
+        return QRCodeDecodedBitStreamParser.decodeBytes(bytes, version, null);
+    }
+
+    /**
+     * Decodes identities and identity frames, which all start with "sqrl" in either case.
+     *
+     * @return  The data, or null if it isn't SQRL data, known after the first bytes.
+     */
+    public static byte[] decodeSqrlData(byte[] bytes, Version version) throws FormatException {
+        return QRCodeDecodedBitStreamParser.decodeBytes(bytes, version, SQRL_HEADER);
     }
 }
@@ -137,6 +137,198 @@ final class QRCodeDecodedBitStreamParser {
                 parityData);
     }
 
+    /**
+     * Decodes the numeric, alphanumeric and byte segments straight into one array, without
+     * building the text or a list of segments. The segment headers are walked first, which
+     * rejects a malformed stream before any data is decoded and gives the size of the array.
+     *
+     * @param bytes     Data codewords of the symbol.
+     * @param version   Version of the symbol, it decides the size of the character counts.
+     * @param header    Bytes the data has to start with, ignoring ASCII case, or null for any.
+     * @return  The data, or null as soon as its first bytes don't match the header.
+     */
+    static byte[] decodeBytes(byte[] bytes, Version version, byte[] header) throws FormatException {
+        try {
+            int length = measureBytes(new BitSource(bytes), version);
+            if (header != null && length < header.length) return null;
+
+            ByteSink sink = new ByteSink(length, header);
+            BitSource bits = new BitSource(bytes);
+            boolean fc1InEffect = false;
+            Mode mode;
+            while (bits.available() >= 4 && (mode = Mode.forBits(bits.readBits(4))) != Mode.TERMINATOR) {
+                if (mode == Mode.FNC1_FIRST_POSITION || mode == Mode.FNC1_SECOND_POSITION) {
+                    fc1InEffect = true;
+                } else if (mode == Mode.STRUCTURED_APPEND) {
+                    bits.readBits(16);
+                } else if (mode == Mode.ECI) {
+                    parseECIValue(bits);
+                } else if (mode == Mode.HANZI) {
+                    bits.readBits(4);
+                    skipBits(bits, 13 * bits.readBits(mode.getCharacterCountBits(version)));
+                } else {
+                    int count = bits.readBits(mode.getCharacterCountBits(version));
+                    boolean matches;
+                    if (mode == Mode.NUMERIC) {
+                        matches = streamNumericSegment(bits, count, sink);
+                    } else if (mode == Mode.ALPHANUMERIC) {
+                        matches = streamAlphanumericSegment(bits, count, fc1InEffect, sink);
+                    } else if (mode == Mode.BYTE) {
+                        matches = streamByteSegment(bits, count, sink);
+                    } else {
+                        skipBits(bits, 13 * count);
+                        matches = true;
+                    }
+                    if (!matches) return null;
+                }
+            }
+            return sink.toByteArray();
+        } catch (IllegalArgumentException iae) {
+            // from readBits() and Mode.forBits() calls
+            throw FormatException.getFormatInstance();
+        }
+    }
+
+    /**
+     * Walks the segment headers, skipping the data, and checks that every segment fits.
+     *
+     * @return  Bytes the data segments decode to, at most, as FNC1 can shorten alphanumeric ones.
+     */
+    private static int measureBytes(BitSource bits, Version version) throws FormatException {
+        int length = 0;
+        Mode mode;
+        while (bits.available() >= 4 && (mode = Mode.forBits(bits.readBits(4))) != Mode.TERMINATOR) {
+            if (mode == Mode.FNC1_FIRST_POSITION || mode == Mode.FNC1_SECOND_POSITION) {
+                continue;
+            }
+            if (mode == Mode.STRUCTURED_APPEND) {
+                skipBits(bits, 16);
+                continue;
+            }
+            if (mode == Mode.ECI) {
+                if (CharacterSetECI.getCharacterSetECIByValue(parseECIValue(bits)) == null) {
+                    throw FormatException.getFormatInstance();
+                }
+                continue;
+            }
+            if (mode == Mode.HANZI) {
+                skipBits(bits, 4);
+            }
+
+            int count = bits.readBits(mode.getCharacterCountBits(version));
+            if (mode == Mode.NUMERIC) {
+                skipBits(bits, 10 * (count / 3) + (count % 3 == 2 ? 7 : count % 3 == 1 ? 4 : 0));
+                length += count;
+            } else if (mode == Mode.ALPHANUMERIC) {
+                skipBits(bits, 11 * (count / 2) + 6 * (count % 2));
+                length += count;
+            } else if (mode == Mode.BYTE) {
+                skipBits(bits, 8 * count);
+                length += count;
+            } else if (mode == Mode.KANJI || mode == Mode.HANZI) {
+                skipBits(bits, 13 * count);
+            } else {
+                throw FormatException.getFormatInstance();
+            }
+        }
+        return length;
+    }
+
+    private static void skipBits(BitSource bits, int count) throws FormatException {
+        if (count > bits.available()) {
+            throw FormatException.getFormatInstance();
+        }
+        while (count > 0) {
+            int chunk = Math.min(count, 32);
+            bits.readBits(chunk);
+            count -= chunk;
+        }
+    }
+
+    private static boolean streamByteSegment(BitSource bits, int count, ByteSink sink) {
+        for (int i = 0; i < count; i++) {
+            if (!sink.put(bits.readBits(8))) return false;
+        }
+        return true;
+    }
+
+    private static boolean streamAlphanumericSegment(BitSource bits,
+                                                     int count,
+                                                     boolean fc1InEffect,
+                                                     ByteSink sink) throws FormatException {
+        // See section 6.4.8.1, 6.4.8.2, %% is rendered as % and a single % as FNC1 separator 0x1D
+        char[] pair = new char[2];
+        boolean percentPending = false;
+        while (count > 0) {
+            int chars = Math.min(count, 2);
+            int value = bits.readBits(chars == 2 ? 11 : 6);
+            pair[0] = toAlphaNumericChar(chars == 2 ? value / 45 : value);
+            pair[1] = toAlphaNumericChar(value % 45);
+            for (int i = 0; i < chars; i++) {
+                char c = pair[i];
+                if (percentPending) {
+                    percentPending = false;
+                    if (c == '%') {
+                        if (!sink.put('%')) return false;
+                        continue;
+                    }
+                    if (!sink.put(0x1D)) return false;
+                }
+                if (fc1InEffect && c == '%') {
+                    percentPending = true;
+                } else if (!sink.put(c)) {
+                    return false;
+                }
+            }
+            count -= chars;
+        }
+        return !percentPending || sink.put(0x1D);
+    }
+
+    private static boolean streamNumericSegment(BitSource bits, int count, ByteSink sink) throws FormatException {
+        while (count > 0) {
+            int digits = Math.min(count, 3);
+            int value = bits.readBits(digits == 3 ? 10 : digits == 2 ? 7 : 4);
+            int divisor = digits == 3 ? 100 : digits == 2 ? 10 : 1;
+            if (value >= divisor * 10) {
+                throw FormatException.getFormatInstance();
+            }
+            for (; divisor > 0; divisor /= 10) {
+                if (!sink.put(toAlphaNumericChar(value / divisor % 10))) return false;
+            }
+            count -= digits;
+        }
+        return true;
+    }
+
+    /**
+     * Fixed size output of decodeBytes(), checking the header as the first bytes arrive.
+     */
+    private static final class ByteSink {
+        private final byte[] data;
+        private final byte[] header;
+        private int offset = 0;
+
+        ByteSink(int length, byte[] header) {
+            this.data = new byte[length];
+            this.header = header;
+        }
+
+        boolean put(int value) {
+            byte b = (byte) value;
+            if (header != null && offset < header.length &&
+                    Character.toLowerCase((char) (b & 0xFF)) != Character.toLowerCase((char) (header[offset] & 0xFF))) {
+                return false;
+            }
+            data[offset++] = b;
+            return true;
+        }
+
+        byte[] toByteArray() {
+            return offset == data.length ? data : Arrays.copyOf(data, offset);
+        }
+    }
+
     /**
      * See specification GBT 18284-2000
      */
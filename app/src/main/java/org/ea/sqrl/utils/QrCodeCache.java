@@ -0,0 +1,96 @@
+package org.ea.sqrl.utils;
+
+import android.graphics.Bitmap;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.nayuki.qrcodegen.QrCode;
+
+/**
+ * Keeps the last few identity QR codes, and the images drawn from them, so showing or printing
+ * the same export again doesn't encode it again. Entries are keyed by a hash of the exported
+ * data, which is secret, so the cache is cleared whenever an identity is added, changed or
+ * removed.
+ *
+ * @author Daniel Persson
+ */
+public class QrCodeCache {
+    private static final int MAX_QR_CODES = 4;
+    private static final int MAX_IMAGES = 4;
+
+    private static QrCodeCache instance = null;
+
+    private final Map<String, QrCode> mQrCodes = new LruMap<>(MAX_QR_CODES);
+    private final Map<String, Bitmap> mImages = new LruMap<>(MAX_IMAGES);
+
+    public static synchronized QrCodeCache getInstance() {
+        if (instance == null) {
+            instance = new QrCodeCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @param saveData  Data from createSaveData() or createSaveDataWithoutPassword().
+     * @return  The data encoded at medium error correction, as the export screens show it.
+     */
+    public synchronized QrCode getQrCode(byte[] saveData) {
+        return getQrCode(hash(saveData), saveData);
+    }
+
+    /**
+     * @param saveData  Data from createSaveData() or createSaveDataWithoutPassword().
+     * @param scale     Pixels per module.
+     * @param border    Modules of white border.
+     * @return  The QR code of the data drawn as an image, shared so it must not be recycled.
+     */
+    public synchronized Bitmap getImage(byte[] saveData, int scale, int border) {
+        String key = hash(saveData);
+        String imageKey = key + ":" + scale + ":" + border;
+        Bitmap image = mImages.get(imageKey);
+        if (image == null) {
+            image = getQrCode(key, saveData).toImage(scale, border);
+            mImages.put(imageKey, image);
+        }
+        return image;
+    }
+
+    public synchronized void clear() {
+        mQrCodes.clear();
+        mImages.clear();
+    }
+
+    private QrCode getQrCode(String key, byte[] saveData) {
+        QrCode qrCode = mQrCodes.get(key);
+        if (qrCode == null) {
+            qrCode = QrCode.encodeBinary(saveData, QrCode.Ecc.MEDIUM);
+            mQrCodes.put(key, qrCode);
+        }
+        return qrCode;
+    }
+
+    private static String hash(byte[] saveData) {
+        try {
+            return EncryptionUtils.byte2hex(MessageDigest.getInstance("SHA-256").digest(saveData));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class LruMap<V> extends LinkedHashMap<String, V> {
+        private final int mMaxEntries;
+
+        LruMap(int maxEntries) {
+            super(maxEntries + 1, 1f, true);
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+}
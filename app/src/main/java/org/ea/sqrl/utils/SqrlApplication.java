@@ -1,13 +1,20 @@
 package org.ea.sqrl.utils;
 
+import android.app.Activity;
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ShortcutInfo;
 import android.content.pm.ShortcutManager;
 import android.graphics.drawable.Icon;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.support.v7.app.AppCompatDelegate;
 import android.util.Log;
 
@@ -17,11 +24,16 @@ import org.ea.sqrl.activites.ClearQuickPassActivity;
 import org.ea.sqrl.activites.EnableQuickPassActivity;
 import org.ea.sqrl.activites.LoginActivity;
 import org.ea.sqrl.database.IdentityDBHelper;
+import org.ea.sqrl.database.IdentityMetadata;
+import org.ea.sqrl.processors.CPSServer;
 import org.ea.sqrl.processors.EntropyHarvester;
 import org.ea.sqrl.processors.SQRLStorage;
+import org.ea.sqrl.processors.UnlockedKeyCache;
 
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class SqrlApplication extends Application {
@@ -34,25 +46,155 @@ public class SqrlApplication extends Application {
     static ShortcutInfo logonShortcut;
     static ShortcutInfo clearQuickPassShortcut;
 
+    private static final ExecutorService startupExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SqrlStartup");
+        t.setDaemon(true);
+        return t;
+    });
+    private static boolean identityLoaded = false;
+
     @Override
     public void onCreate() {
+        traceBegin("SqrlApplication.onCreate");
         super.onCreate();
         AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
-        configureShortcuts(getApplicationContext());
-        setApplicationShortcuts(getApplicationContext());
-        try {
-            long currentId = getCurrentId(getApplicationContext());
-            if (currentId > 0) {
-                SQRLStorage.getInstance(getApplicationContext()).read(IdentityDBHelper.getInstance(getApplicationContext()).getIdentityData(currentId));
+        registerActivityLifecycleCallbacks(new CPSListenerLifecycle());
+        registerReceiver(new ScreenOffReceiver(), new IntentFilter(Intent.ACTION_SCREEN_OFF));
+
+        /*
+         * Nothing the first frame depends on, so it runs after onCreate returns. Screens that
+         * need the identity before this finishes wait for it in CommonBaseActivity.onCreate.
+         */
+        final Context context = getApplicationContext();
+        runInBackground(() -> {
+            traceBegin("SqrlApplication.loadCurrentIdentity");
+            loadCurrentIdentity(context);
+            traceEnd();
+
+            traceBegin("SqrlApplication.initEntropy");
+            try {
+                EntropyHarvester.getInstance().warmUp();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to initiate EntropyHarvester.", e);
             }
-            EntropyHarvester.getInstance();
+            traceEnd();
+
+            traceBegin("SqrlApplication.publishShortcuts");
+            setApplicationShortcuts(context);
+            traceEnd();
+            logStartupTime("deferred startup done");
+        });
+        traceEnd();
+        logStartupTime("application created");
+    }
+
+    /**
+     * Runs a task on the app's background startup thread, one task at a time.
+     */
+    public static void runInBackground(Runnable task) {
+        startupExecutor.execute(task);
+    }
+
+    /**
+     * Reads and parses the currently active identity into the sqrl storage, unless that has
+     * already happened. Safe to call from any thread, a caller arriving while the startup
+     * thread is loading waits for it instead of loading again.
+     *
+     * @param context   The context of the caller.
+     */
+    public static synchronized void loadCurrentIdentity(Context context) {
+        if (identityLoaded) return;
+        identityLoaded = true;
+
+        long currentId = getCurrentId(context);
+        if (currentId <= 0) return;
+        try {
+            SQRLStorage.getInstance(context.getApplicationContext())
+                    .read(IdentityDBHelper.getInstance(context).getIdentityData(currentId));
         } catch (Exception e) {
-            Log.e(TAG, "Failed to get initiate EntropyHarvester or SQRLStorage.");
+            Log.e(TAG, "Failed to load the current identity.", e);
+        }
+    }
+
+    /**
+     * Starts a named section in systrace and perfetto captures. No-op before API 18.
+     */
+    public static void traceBegin(String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(section);
+        }
+    }
+
+    public static void traceEnd() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
         }
     }
 
-    public static void setApplicationShortcuts(Context context) {
+    /**
+     * Logs how long the process has been running, so cold start milestones can be read
+     * from logcat.
+     */
+    public static void logStartupTime(String milestone) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            long sinceStart = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+            Log.i(TAG, "Startup: " + milestone + " after " + sinceStart + " ms");
+        }
+    }
+
+    /**
+     * Locking the device ends the trust window of a kept unlocked identity. Screen off can
+     * only be received by a receiver registered at runtime.
+     */
+    private static class ScreenOffReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UnlockedKeyCache.getInstance().wipe();
+        }
+    }
+
+    /**
+     * Keeps the CPS listener bound while any of our activities is visible, so a browser
+     * probing for the app gets answered without waiting for a socket to be set up.
+     */
+    private class CPSListenerLifecycle implements ActivityLifecycleCallbacks {
+        private int startedActivities = 0;
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            if (startedActivities++ == 0) {
+                CPSServer.getInstance(getApplicationContext()).startListener();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            if (--startedActivities == 0) {
+                CPSServer.getInstance(getApplicationContext()).stopListener();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {}
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {}
+    }
+
+    public static synchronized void setApplicationShortcuts(Context context) {
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (scanShortcut == null) {
+                configureShortcuts(context.getApplicationContext());
+            }
             SQRLStorage sqrlStorage = SQRLStorage.getInstance(context);
             if (getCurrentId(context) > 0) {
                 ShortcutManager shortcutManager = context.getSystemService(ShortcutManager.class);
@@ -138,7 +280,8 @@ public class SqrlApplication extends Application {
      * @param id        The id of the identity which should be set as currently active.
      *                  Set this to -1 to select the first available identity.
      */
-    public static void setCurrentId(Context context, long id) {
+    public static synchronized void setCurrentId(Context context, long id) {
+        identityLoaded = true;
         IdentityDBHelper dbHelper = IdentityDBHelper.getInstance(context);
 
         if (id == -1) {
@@ -153,12 +296,12 @@ public class SqrlApplication extends Application {
         SqrlApplication.saveCurrentId((Application) context.getApplicationContext(), id);
 
         SQRLStorage storage = SQRLStorage.getInstance(context.getApplicationContext());
-        byte[] identityData = dbHelper.getIdentityData(id);
+        IdentityMetadata metadata = dbHelper.getIdentityMetadata(id);
 
-        if(storage.needsReload(identityData)) {
+        if(metadata == null || storage.needsReload(metadata)) {
             storage.clearQuickPass();
             try {
-                storage.read(identityData);
+                storage.read(dbHelper.getIdentityData(id));
             } catch (Exception e) {
                 Log.e(TAG, e.getMessage(), e);
             }
@@ -0,0 +1,53 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.utils.FountainCode;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FountainCodeUnitTest {
+
+    @Test
+    public void decodesWithMissedFrames() {
+        Random random = new Random(4711);
+        byte[] data = new byte[1337];
+        random.nextBytes(data);
+
+        FountainCode.Encoder encoder = new FountainCode.Encoder(data, 120);
+        FountainCode.Decoder decoder = new FountainCode.Decoder();
+
+        int seed = 0;
+        while (!decoder.isComplete()) {
+            byte[] frame = encoder.getFrame(seed++);
+            if (random.nextInt(3) == 0) continue;  // The camera missed this one
+            assertTrue(decoder.add(frame));
+            assertTrue(seed < encoder.getBlockCount() * 3);
+        }
+        assertArrayEquals(data, decoder.getData());
+    }
+
+    @Test
+    public void decodesFromRepairFramesOnly() {
+        byte[] data = "sqrldata with a payload that needs a few blocks to be sent".getBytes();
+        FountainCode.Encoder encoder = new FountainCode.Encoder(data, 8);
+        FountainCode.Decoder decoder = new FountainCode.Decoder();
+
+        for (int seed = encoder.getBlockCount(); !decoder.isComplete(); seed++) {
+            decoder.add(encoder.getFrame(seed));
+            assertTrue(seed < encoder.getBlockCount() * 4);
+        }
+        assertArrayEquals(data, decoder.getData());
+    }
+
+    @Test
+    public void ignoresOtherData() {
+        FountainCode.Decoder decoder = new FountainCode.Decoder();
+        assertFalse(decoder.add("sqrldata".getBytes()));
+        assertFalse(FountainCode.isFrame(null));
+        assertFalse(decoder.isComplete());
+    }
+}
@@ -0,0 +1,56 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.processors.HmacDrbg;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+public class HmacDrbgUnitTest {
+    private static byte[] hex(String s) {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return out;
+    }
+
+    @Test
+    public void matchesNistVector() throws Exception {
+        HmacDrbg drbg = new HmacDrbg(
+                hex("ca851911349384bffe89de1cbdc46e6831e44d34a4fb935ee285dd14b71a7488"),
+                hex("659ba96c601dc69fc902940805ec0ca8"),
+                null);
+
+        byte[] out = new byte[128];
+        drbg.generate(out, null);
+        drbg.generate(out, null);
+
+        assertArrayEquals(hex(
+                "e528e9abf2dece54d47c7e75e5fe302149f817ea9fb4bee6f4199697d04d5b89" +
+                "d54fbb978a15b5c443c9ec21036d2460b6f73ebad0dc2aba6e624abf07745bc1" +
+                "07694bb7547bb0995f70de25d6b29e2d3011bb19d27676c07162c8b5ccde0668" +
+                "961df86803482cb37ed6d5c0bb8d50cf1f50d476aa0458bdaba806f48be9dcb8"), out);
+        assertEquals(3, drbg.getReseedCounter());
+    }
+
+    @Test
+    public void reseedChangesOutput() throws Exception {
+        byte[] seed = new byte[32];
+        HmacDrbg first = new HmacDrbg(seed, null, null);
+        HmacDrbg second = new HmacDrbg(seed, null, null);
+
+        second.reseed(new byte[] {1}, null);
+
+        byte[] a = new byte[32];
+        byte[] b = new byte[32];
+        first.generate(a, null);
+        second.generate(b, null);
+
+        assertFalse(Arrays.equals(a, b));
+        assertEquals(2, second.getReseedCounter());
+    }
+}
@@ -0,0 +1,75 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.database.IdentityMetadata;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityMetadataUnitTest {
+    private static byte[] block(int type, int length) {
+        byte[] block = new byte[length];
+        block[0] = (byte) length;
+        block[1] = (byte) (length >> 8);
+        block[2] = (byte) type;
+        return block;
+    }
+
+    private static byte[] identity(boolean withRescueBlock) throws Exception {
+        byte[] password = block(1, 125);
+        password[34] = 9;
+        password[35] = (byte) 0x34;
+        password[36] = (byte) 0x12;
+        password[39] = 0x1f;
+        password[41] = 4;
+        password[43] = 15;
+
+        byte[] previous = block(3, 6 + 2 * 32 + 16);
+        previous[4] = 2;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("sqrldata".getBytes(StandardCharsets.US_ASCII));
+        out.write(password);
+        if (withRescueBlock) out.write(block(2, 73));
+        out.write(previous);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void extractsPlaintextHeaderFields() throws Exception {
+        IdentityMetadata metadata = IdentityMetadata.fromIdentityData(identity(true));
+
+        assertEquals(9, metadata.getLogNFactor());
+        assertEquals(0x1234, metadata.getIterationCount());
+        assertEquals(0x1f, metadata.getOptionFlags());
+        assertEquals(4, metadata.getHintLength());
+        assertEquals(15, metadata.getIdleTimeoutInMinutes());
+        assertEquals(2, metadata.getPreviousKeyCount());
+        assertTrue(metadata.hasRescueBlock());
+        assertEquals(64, metadata.getContentHash().length());
+    }
+
+    @Test
+    public void contentHashFollowsData() throws Exception {
+        IdentityMetadata withRescue = IdentityMetadata.fromIdentityData(identity(true));
+        IdentityMetadata withoutRescue = IdentityMetadata.fromIdentityData(identity(false));
+
+        assertFalse(withoutRescue.hasRescueBlock());
+        assertEquals(withRescue.getContentHash(), IdentityMetadata.fromIdentityData(identity(true)).getContentHash());
+        assertNotEquals(withRescue.getContentHash(), withoutRescue.getContentHash());
+    }
+
+    @Test
+    public void ignoresUnknownFormats() {
+        IdentityMetadata metadata = IdentityMetadata.fromIdentityData("SQRLDATAabc".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals(0, metadata.getIterationCount());
+        assertEquals(0, metadata.getPreviousKeyCount());
+        assertFalse(metadata.hasRescueBlock());
+    }
+}
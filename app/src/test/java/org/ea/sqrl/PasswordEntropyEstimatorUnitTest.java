@@ -0,0 +1,82 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.utils.PasswordEntropyEstimator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PasswordEntropyEstimatorUnitTest {
+
+    private static PasswordEntropyEstimator newEstimator() {
+        return new PasswordEntropyEstimator(() -> {
+            // Gradle runs unit tests from the module directory
+            for (String path : new String[] {"src/main/assets", "main/assets"}) {
+                try {
+                    return Files.readAllBytes(Paths.get(path, "password_words.txt"));
+                } catch (IOException ignored) {}
+            }
+            return "password\nqwerty\nmonkey\ndragon\n".getBytes();
+        });
+    }
+
+    private static double bits(String password) {
+        return newEstimator().estimate(password).entropyBits;
+    }
+
+    @Test
+    public void patternsAreCheaperThanRandom() {
+        double random = bits("kx9fwmqz");
+        assertTrue(bits("password") < random / 3);
+        assertTrue(bits("P@ssw0rd") < random / 2);
+        assertTrue(bits("qwertyui") < random / 2);
+        assertTrue(bits("abcdefgh") < random / 3);
+        assertTrue(bits("aaaaaaaa") < random / 3);
+        assertTrue(bits("kx9fkx9f") < random * 0.75);
+        assertTrue(bits("correct horse battery staple") > 60);
+    }
+
+    @Test
+    public void incrementalMatchesFresh() {
+        PasswordEntropyEstimator estimator = newEstimator();
+        String[] typed = {"m", "mo", "mon", "monk", "monke", "monkey", "monkey1", "monkey", "monkeY!2qwe"};
+        for (String password : typed) {
+            PasswordEntropyEstimator.Result incremental = estimator.estimate(password);
+            PasswordEntropyEstimator.Result fresh = newEstimator().estimate(password);
+            assertEquals(password, fresh.entropyBits, incremental.entropyBits, 1e-9);
+            assertEquals(fresh.characterClasses, incremental.characterClasses);
+        }
+    }
+
+    @Test
+    public void reportsCharacterClasses() {
+        PasswordEntropyEstimator.Result result = newEstimator().estimate("aB3");
+        assertTrue(result.uses(PasswordEntropyEstimator.CLASS_LOWERCASE));
+        assertTrue(result.uses(PasswordEntropyEstimator.CLASS_UPPERCASE));
+        assertTrue(result.uses(PasswordEntropyEstimator.CLASS_DIGIT));
+        assertTrue(!result.uses(PasswordEntropyEstimator.CLASS_SYMBOL));
+        assertEquals(0, newEstimator().estimate("").entropyBits, 0);
+    }
+
+    @Test
+    public void clearLeavesNothingOfThePassword() throws Exception {
+        PasswordEntropyEstimator estimator = newEstimator();
+        String password = "Tr0ub4dor&3";
+        double bits = estimator.estimate(password).entropyBits;
+        estimator.clear();
+
+        for (Field field : PasswordEntropyEstimator.class.getDeclaredFields()) {
+            if (field.getType() != char[].class) continue;
+            field.setAccessible(true);
+            for (char c : (char[]) field.get(estimator)) {
+                assertEquals(field.getName(), '\0', c);
+            }
+        }
+        assertEquals(bits, estimator.estimate(password).entropyBits, 1e-9);
+    }
+}
@@ -0,0 +1,101 @@
+package org.ea.sqrl;
+
+import com.google.zxing.FormatException;
+import com.google.zxing.qrcode.decoder.Version;
+
+import org.ea.sqrl.utils.QRCodeDecodeHelper;
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.nayuki.qrcodegen.BitBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class QRCodeDecodeHelperUnitTest {
+    private static final int MODE_NUMERIC = 0x1;
+    private static final int MODE_ALPHANUMERIC = 0x2;
+    private static final int MODE_BYTE = 0x4;
+    private static final int MODE_FNC1_FIRST = 0x5;
+
+    private static void appendBytes(BitBuffer bits, byte[] data, int countBits) {
+        bits.appendBits(MODE_BYTE, 4);
+        bits.appendBits(data.length, countBits);
+        for (byte b : data) bits.appendBits(b & 0xFF, 8);
+    }
+
+    private static void appendAlphanumeric(BitBuffer bits, String text, int countBits) {
+        bits.appendBits(MODE_ALPHANUMERIC, 4);
+        bits.appendBits(text.length(), countBits);
+        String chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:";
+        int i = 0;
+        for (; i + 1 < text.length(); i += 2) {
+            bits.appendBits(chars.indexOf(text.charAt(i)) * 45 + chars.indexOf(text.charAt(i + 1)), 11);
+        }
+        if (i < text.length()) bits.appendBits(chars.indexOf(text.charAt(i)), 6);
+    }
+
+    private static byte[] toCodewords(BitBuffer bits) {
+        bits.appendBits(0, 4);  // Terminator
+        while (bits.bitLength() % 8 != 0) bits.appendBits(0, 1);
+        return bits.getBytes();
+    }
+
+    @Test
+    public void decodesMixedSegmentsAtLargeVersion() throws FormatException {
+        // Version 10 and up count byte segments with 16 bits, version 1 would misread them
+        byte[] identity = new byte[300];
+        new Random(3).nextBytes(identity);
+        System.arraycopy("sqrldata".getBytes(), 0, identity, 0, 8);
+
+        BitBuffer bits = new BitBuffer();
+        appendBytes(bits, identity, 16);
+        bits.appendBits(MODE_NUMERIC, 4);
+        bits.appendBits(5, 12);
+        bits.appendBits(123, 10);
+        bits.appendBits(45, 7);
+        appendAlphanumeric(bits, "AB:1", 11);
+        byte[] codewords = toCodewords(bits);
+
+        byte[] expected = new byte[identity.length + 9];
+        System.arraycopy(identity, 0, expected, 0, identity.length);
+        System.arraycopy("12345AB:1".getBytes(), 0, expected, identity.length, 9);
+
+        Version version = Version.getVersionForNumber(12);
+        assertArrayEquals(expected, QRCodeDecodeHelper.decode(codewords, version));
+        assertArrayEquals(expected, QRCodeDecodeHelper.decodeSqrlData(codewords, version));
+    }
+
+    @Test
+    public void acceptsUpperCaseHeaderAndRejectsOthers() throws FormatException {
+        Version version = Version.getVersionForNumber(3);
+
+        BitBuffer upper = new BitBuffer();
+        appendAlphanumeric(upper, "SQRLDATA", 9);
+        assertArrayEquals("SQRLDATA".getBytes(),
+                QRCodeDecodeHelper.decodeSqrlData(toCodewords(upper), version));
+
+        BitBuffer other = new BitBuffer();
+        appendBytes(other, "https://example.com".getBytes(), 8);
+        assertNull(QRCodeDecodeHelper.decodeSqrlData(toCodewords(other), version));
+    }
+
+    @Test
+    public void appliesFnc1Escapes() throws FormatException {
+        BitBuffer bits = new BitBuffer();
+        bits.appendBits(MODE_FNC1_FIRST, 4);
+        appendAlphanumeric(bits, "A%%B%C", 9);
+        assertArrayEquals(new byte[] {'A', '%', 'B', 0x1D, 'C'},
+                QRCodeDecodeHelper.decode(toCodewords(bits), Version.getVersionForNumber(1)));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsTruncatedSegment() throws FormatException {
+        BitBuffer bits = new BitBuffer();
+        bits.appendBits(MODE_BYTE, 4);
+        bits.appendBits(200, 8);
+        bits.appendBits(0x41, 8);
+        QRCodeDecodeHelper.decode(toCodewords(bits), Version.getVersionForNumber(1));
+    }
+}
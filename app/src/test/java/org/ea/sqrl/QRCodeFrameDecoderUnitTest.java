@@ -0,0 +1,93 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.processors.QRCodeFrameDecoder;
+import org.ea.sqrl.utils.FountainCode;
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.nayuki.qrcodegen.QrCode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class QRCodeFrameDecoderUnitTest {
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 480;
+
+    /**
+     * Draws a QR code into the luminance plane of an NV21 frame, with uneven lighting and sensor
+     * noise, the chroma plane is left grey.
+     */
+    private static byte[] renderFrame(QrCode qrCode, int scale, int offsetX, int offsetY, Random random) {
+        byte[] frame = new byte[FRAME_WIDTH * FRAME_HEIGHT * 3 / 2];
+        int qrSize = qrCode.size * scale;
+        int left = (FRAME_WIDTH - qrSize) / 2 + offsetX;
+        int top = (FRAME_HEIGHT - qrSize) / 2 + offsetY;
+
+        for (int y = 0; y < FRAME_HEIGHT; y++) {
+            for (int x = 0; x < FRAME_WIDTH; x++) {
+                int qx = x - left;
+                int qy = y - top;
+                boolean dark = qx >= 0 && qy >= 0 && qx < qrSize && qy < qrSize &&
+                        qrCode.getModule(qx / scale, qy / scale);
+                int light = 150 + 80 * x / FRAME_WIDTH;
+                int value = (dark ? 40 : light) + random.nextInt(21) - 10;
+                frame[y * FRAME_WIDTH + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        for (int i = FRAME_WIDTH * FRAME_HEIGHT; i < frame.length; i++) frame[i] = (byte) 128;
+        return frame;
+    }
+
+    private static void assertDecodesAtAllPlacements(QrCode qrCode, int type, byte[] expected) {
+        QRCodeFrameDecoder decoder = new QRCodeFrameDecoder();
+        Random random = new Random(qrCode.version);
+        int[][] placements = {{0, 0}, {-30, 20}, {25, -15}};
+
+        for (int scale = 3; scale <= 5; scale++) {
+            for (int[] offset : placements) {
+                byte[] frame = renderFrame(qrCode, scale, offset[0], offset[1], random);
+                QRCodeFrameDecoder.Result result = decoder.decode(frame, FRAME_WIDTH, FRAME_HEIGHT);
+                assertNotNull("scale " + scale + " offset " + offset[0] + "," + offset[1], result);
+                assertEquals(type, result.type);
+                assertEquals(qrCode.version, result.version);
+                assertArrayEquals(expected, result.data);
+            }
+        }
+    }
+
+    @Test
+    public void decodesSiteUrl() {
+        String url = "sqrl://www.grc.com/sqrl?nut=P2Kr7IWA8tWsRWVSrJcsSA";
+        QrCode qrCode = QrCode.encodeBinary(url.getBytes(), QrCode.Ecc.LOW);
+        assertDecodesAtAllPlacements(qrCode, QRCodeFrameDecoder.TYPE_SQRL_URL, url.getBytes());
+    }
+
+    @Test
+    public void decodesIdentity() {
+        byte[] data = new byte[125];
+        new Random(17).nextBytes(data);
+        System.arraycopy("sqrldata".getBytes(), 0, data, 0, 8);
+        QrCode qrCode = QrCode.encodeBinary(data, QrCode.Ecc.MEDIUM);
+        assertDecodesAtAllPlacements(qrCode, QRCodeFrameDecoder.TYPE_IDENTITY, data);
+    }
+
+    @Test
+    public void decodesIdentityFrame() {
+        byte[] data = new byte[500];
+        new Random(42).nextBytes(data);
+        byte[] frame = new FountainCode.Encoder(data, 100).getFrame(7);
+        QrCode qrCode = QrCode.encodeBinary(frame, QrCode.Ecc.MEDIUM);
+        assertDecodesAtAllPlacements(qrCode, QRCodeFrameDecoder.TYPE_IDENTITY_FRAME, frame);
+    }
+
+    @Test
+    public void ignoresFrameOutsideRegionOfInterest() {
+        QrCode qrCode = QrCode.encodeBinary("sqrl://example.com/sqrl?nut=1234".getBytes(), QrCode.Ecc.LOW);
+        byte[] frame = renderFrame(qrCode, 3, -260, 0, new Random(1));
+        assertNull(new QRCodeFrameDecoder().decode(frame, FRAME_WIDTH, FRAME_HEIGHT));
+    }
+}
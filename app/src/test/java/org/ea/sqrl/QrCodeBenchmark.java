@@ -0,0 +1,56 @@
+package org.ea.sqrl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import io.nayuki.qrcodegen.QrCode;
+import io.nayuki.qrcodegen.QrSegment;
+
+/**
+ * Times encoding with the automatic mask choice for every version, 1 to 40, with as much data
+ * as fits at the low error correction level. Not run with the unit tests, start it with main.
+ */
+public class QrCodeBenchmark {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 100;
+
+    public static void main(String[] args) {
+        Random random = new Random(4711);
+        long totalNanos = 0;
+        for (int version = QrCode.MIN_VERSION; version <= QrCode.MAX_VERSION; version++) {
+            List<QrSegment> segs = Collections.singletonList(QrSegment.makeBytes(fullVersion(version, random)));
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                QrCode.encodeSegments(segs, QrCode.Ecc.LOW, version, version, -1, false);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                QrCode.encodeSegments(segs, QrCode.Ecc.LOW, version, version, -1, false);
+            }
+            long nanos = System.nanoTime() - start;
+            totalNanos += nanos;
+            System.out.println(String.format(Locale.US, "version %2d: %8.1f us", version, nanos / 1000.0 / ROUNDS));
+        }
+        System.out.println(String.format(Locale.US, "all versions: %.1f ms", totalNanos / 1000000.0 / ROUNDS));
+    }
+
+    private static byte[] fullVersion(int version, Random random) {
+        int length = 1;
+        while (fits(length + 1, version)) length++;
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static boolean fits(int length, int version) {
+        try {
+            QrCode.encodeSegments(Collections.singletonList(QrSegment.makeBytes(new byte[length])),
+                    QrCode.Ecc.LOW, version, version, 0, false);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.utils.QrCodeCache;
+import org.junit.Test;
+
+import io.nayuki.qrcodegen.QrCode;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class QrCodeCacheUnitTest {
+
+    @Test
+    public void sameDataIsEncodedOnceUntilCleared() {
+        QrCodeCache cache = QrCodeCache.getInstance();
+        byte[] saveData = "sqrldata}\u0000\u0001qrcodecache".getBytes();
+
+        QrCode qrCode = cache.getQrCode(saveData);
+        assertSame(qrCode, cache.getQrCode(saveData.clone()));
+
+        cache.clear();
+        assertNotSame(qrCode, cache.getQrCode(saveData));
+    }
+
+    @Test
+    public void oldestDataIsDropped() {
+        QrCodeCache cache = QrCodeCache.getInstance();
+        QrCode first = cache.getQrCode(new byte[] {0});
+        for (byte i = 1; i <= 4; i++) {
+            cache.getQrCode(new byte[] {i});
+        }
+        assertNotSame(first, cache.getQrCode(new byte[] {0}));
+    }
+}
@@ -0,0 +1,104 @@
+package org.ea.sqrl;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import io.nayuki.qrcodegen.QrCode;
+import io.nayuki.qrcodegen.QrSegment;
+
+import static org.junit.Assert.assertEquals;
+
+public class QrCodeUnitTest {
+
+    @Test
+    public void chosenMaskHasLowestPenaltyForAllVersions() {
+        Random random = new Random(4711);
+        for (int version = QrCode.MIN_VERSION; version <= QrCode.MAX_VERSION; version++) {
+            for (QrCode.Ecc ecc : new QrCode.Ecc[] {QrCode.Ecc.LOW, QrCode.Ecc.HIGH}) {
+                byte[] data = new byte[random.nextInt(version * 10) + 1];
+                random.nextBytes(data);
+                List<QrSegment> segs = Collections.singletonList(QrSegment.makeBytes(data));
+
+                int expectedMask = 0;
+                int minPenalty = Integer.MAX_VALUE;
+                for (int mask = 0; mask < 8; mask++) {
+                    int penalty = penaltyScore(QrCode.encodeSegments(segs, ecc, version, version, mask, false));
+                    if (penalty < minPenalty) {
+                        expectedMask = mask;
+                        minPenalty = penalty;
+                    }
+                }
+
+                QrCode qr = QrCode.encodeSegments(segs, ecc, version, version, -1, false);
+                assertEquals("version " + version, expectedMask, qr.mask);
+            }
+        }
+    }
+
+    /**
+     * The penalty scoring as it was done module by module, before the grid was bit-packed.
+     */
+    private static int penaltyScore(QrCode qr) {
+        int size = qr.size;
+        int result = 0;
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0, run = 0; x < size; x++) {
+                if (x == 0 || qr.getModule(x, y) != qr.getModule(x - 1, y)) {
+                    run = 1;
+                } else if (++run == 5) {
+                    result += 3;
+                } else if (run > 5) {
+                    result++;
+                }
+            }
+        }
+        for (int x = 0; x < size; x++) {
+            for (int y = 0, run = 0; y < size; y++) {
+                if (y == 0 || qr.getModule(x, y) != qr.getModule(x, y - 1)) {
+                    run = 1;
+                } else if (++run == 5) {
+                    result += 3;
+                } else if (run > 5) {
+                    result++;
+                }
+            }
+        }
+
+        for (int y = 0; y < size - 1; y++) {
+            for (int x = 0; x < size - 1; x++) {
+                boolean color = qr.getModule(x, y);
+                if (color == qr.getModule(x + 1, y) && color == qr.getModule(x, y + 1)
+                        && color == qr.getModule(x + 1, y + 1))
+                    result += 3;
+            }
+        }
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0, bits = 0; x < size; x++) {
+                bits = ((bits << 1) & 0x7FF) | (qr.getModule(x, y) ? 1 : 0);
+                if (x >= 10 && (bits == 0x05D || bits == 0x5D0)) result += 40;
+            }
+        }
+        for (int x = 0; x < size; x++) {
+            for (int y = 0, bits = 0; y < size; y++) {
+                bits = ((bits << 1) & 0x7FF) | (qr.getModule(x, y) ? 1 : 0);
+                if (y >= 10 && (bits == 0x05D || bits == 0x5D0)) result += 40;
+            }
+        }
+
+        int black = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (qr.getModule(x, y)) black++;
+            }
+        }
+        int total = size * size;
+        for (int k = 0; black * 20 < (9 - k) * total || black * 20 > (11 + k) * total; k++)
+            result += 10;
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package org.ea.sqrl;
+
+import android.app.Application;
+
+import org.ea.sqrl.processors.RecordingTransport;
+import org.ea.sqrl.processors.ReplayTransport;
+import org.ea.sqrl.processors.SQRLTransport;
+import org.ea.sqrl.utils.EncryptionUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * This testcase will check that recorded server exchanges are served back unchanged
+ * and in order by the replaying transport.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class SQRLTransportUnitTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void recordAndReplay() throws Exception {
+        File fixture = tempFolder.newFile("exchanges.txt");
+        SQRLTransport server = (url, data) -> "dmVyPTENCnRpZj01DQo" + data.length();
+        SQRLTransport recorder = new RecordingTransport(server, fixture);
+
+        String first = recorder.post("https://example.com/sqrl?nut=1", "client=a&server=b&ids=c");
+        String second = recorder.post("https://example.com/sqrl?nut=2", "client=d&server=e&ids=f");
+
+        ReplayTransport replay = ReplayTransport.fromFixture(new FileInputStream(fixture), 0);
+        assertEquals(2, replay.getRemainingExchanges());
+        assertEquals(first, replay.post("https://example.com/sqrl?nut=1", "client=a&server=b&ids=c"));
+        assertEquals(second, replay.post("https://example.com/sqrl?nut=2", "client=d&server=e&ids=f"));
+        assertEquals(0, replay.getRemainingExchanges());
+    }
+
+    @Test
+    public void fixtureKeepsCommasAndQuotes() throws Exception {
+        File fixture = tempFolder.newFile("escaped.txt");
+        String url = "https://example.com/sqrl?nut=1&x=\"a,b\"";
+        String data = "client=a,\"b\"\n&server=c";
+        String response = "ver=1,\"quoted\"\r\n";
+        new RecordingTransport((u, d) -> response, fixture).post(url, data);
+
+        ReplayTransport replay = ReplayTransport.fromFixture(new FileInputStream(fixture), 0);
+        assertEquals(response, replay.post(url, data));
+    }
+
+    @Test
+    public void urlSafeBase64MatchesJdk() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String encoded = EncryptionUtils.encodeUrlSafe(data);
+            assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(data), encoded);
+            assertArrayEquals(data, EncryptionUtils.decodeUrlSafe(encoded));
+            assertArrayEquals(data, EncryptionUtils.decodeUrlSafe(Base64.getUrlEncoder().encodeToString(data)));
+        }
+    }
+
+    @Test
+    public void replayHonoursLatency() throws Exception {
+        File fixture = tempFolder.newFile("latency.txt");
+        new RecordingTransport((url, data) -> "dGlmPTQNCg", fixture).post("https://example.com/sqrl", "client=a");
+
+        ReplayTransport replay = ReplayTransport.fromFixture(new FileInputStream(fixture), 50);
+        long start = System.nanoTime();
+        replay.post("https://example.com/sqrl", "client=a");
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue("Replay should wait for the configured latency", elapsedMs >= 50);
+    }
+
+    @Test(expected = Exception.class)
+    public void replayRejectsUnexpectedRequest() throws Exception {
+        File fixture = tempFolder.newFile("unexpected.txt");
+        new RecordingTransport((url, data) -> "dGlmPTQNCg", fixture).post("https://example.com/sqrl", "client=a");
+
+        ReplayTransport replay = ReplayTransport.fromFixture(new FileInputStream(fixture), 0);
+        replay.post("https://example.com/other", "client=a");
+    }
+}
@@ -0,0 +1,55 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.processors.SecretArena;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SecretArenaUnitTest {
+    private static byte[] key() {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++) key[i] = (byte) (i * 7 + 1);
+        return key;
+    }
+
+    @Test
+    public void hmacMatchesJce() throws Exception {
+        byte[] domain = "www.grc.com".getBytes();
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key(), "HmacSHA256"));
+
+        SecretArena.Secret secret = SecretArena.getInstance().wrap(key());
+        try {
+            assertArrayEquals(mac.doFinal(domain), secret.hmacSha256(domain));
+        } finally {
+            secret.release();
+        }
+    }
+
+    @Test
+    public void wrapWipesSourceAndReleaseFreesSlot() throws Exception {
+        SecretArena arena = SecretArena.getInstance();
+        int freeSlots = arena.getFreeSlots();
+
+        byte[] source = key();
+        SecretArena.Secret secret = arena.wrap(source);
+        assertTrue(Arrays.equals(new byte[32], source));
+        assertEquals(freeSlots - 1, arena.getFreeSlots());
+
+        long copies = arena.getCopyCount();
+        byte[] copy = secret.use(bytes -> Arrays.copyOf(bytes, bytes.length));
+        assertArrayEquals(key(), copy);
+        assertEquals(copies + 1, arena.getCopyCount());
+
+        secret.release();
+        assertTrue(secret.isReleased());
+        assertEquals(freeSlots, arena.getFreeSlots());
+    }
+}
@@ -0,0 +1,45 @@
+package org.ea.sqrl;
+
+import org.ea.sqrl.processors.UnlockedKeyCache;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UnlockedKeyCacheUnitTest {
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final byte[] BINDING = "salt1234".getBytes();
+
+    @Test
+    public void returnsKeyForSameBinding() {
+        UnlockedKeyCache cache = new UnlockedKeyCache(new UnlockedKeyCache.SoftwareKeyWrapper());
+        cache.put(KEY, BINDING, 60000);
+
+        assertTrue(cache.hasKey());
+        assertArrayEquals(KEY, cache.get(BINDING));
+        assertArrayEquals(KEY, cache.get(BINDING));
+    }
+
+    @Test
+    public void wrongBindingWipesKey() {
+        UnlockedKeyCache cache = new UnlockedKeyCache(new UnlockedKeyCache.SoftwareKeyWrapper());
+        cache.put(KEY, BINDING, 60000);
+
+        assertNull(cache.get("salt4321".getBytes()));
+        assertFalse(cache.hasKey());
+        assertNull(cache.get(BINDING));
+    }
+
+    @Test
+    public void expiredOrWipedKeyIsGone() {
+        UnlockedKeyCache cache = new UnlockedKeyCache(new UnlockedKeyCache.SoftwareKeyWrapper());
+        cache.put(KEY, BINDING, 0);
+        assertNull(cache.get(BINDING));
+
+        cache.put(KEY, BINDING, 60000);
+        cache.wipe();
+        assertNull(cache.get(BINDING));
+    }
+}
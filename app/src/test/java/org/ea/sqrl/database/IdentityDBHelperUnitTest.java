@@ -0,0 +1,27 @@
+package org.ea.sqrl.database;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * This testcase checks the names given to duplicate identities when the unique name index
+ * is added, they must not collide with names already in use.
+ */
+public class IdentityDBHelperUnitTest {
+    @Test
+    public void duplicateGetsIdAsSuffix() {
+        Set<String> taken = new HashSet<>(Arrays.asList("Work"));
+        assertEquals("Work 3", IdentityDBHelper.uniqueName("Work", 3, taken));
+    }
+
+    @Test
+    public void suffixSkipsExistingNames() {
+        Set<String> taken = new HashSet<>(Arrays.asList("Work", "Work 3", "Work 4"));
+        assertEquals("Work 5", IdentityDBHelper.uniqueName("Work", 3, taken));
+    }
+}
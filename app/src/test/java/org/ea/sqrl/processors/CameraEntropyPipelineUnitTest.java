@@ -0,0 +1,110 @@
+package org.ea.sqrl.processors;
+
+import android.app.Application;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This testcase checks the frame ring between the camera callback and the entropy worker,
+ * frames must be hashed and handed back on the camera thread, and frames arriving while the
+ * worker is behind must be dropped straight away.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class CameraEntropyPipelineUnitTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int FRAME_LENGTH = 1024;
+
+    private final List<byte[]> recycled = Collections.synchronizedList(new ArrayList<>());
+    private final BlockingQueue<Runnable> cameraTasks = new LinkedBlockingQueue<>();
+
+    private Runnable nextCameraTask() throws InterruptedException {
+        Runnable task = cameraTasks.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(task);
+        return task;
+    }
+
+    @Test
+    public void framesAreRecycledOnCameraThread() throws Exception {
+        CameraEntropyPipeline pipeline = new CameraEntropyPipeline(
+                EntropyHarvester.getInstance(), 2, FRAME_LENGTH, cameraTasks::add, recycled::add);
+        byte[] first = new byte[FRAME_LENGTH];
+        byte[] second = new byte[FRAME_LENGTH];
+
+        assertTrue(pipeline.offer(first));
+        assertTrue(pipeline.offer(second));
+        Runnable firstTask = nextCameraTask();
+        Runnable secondTask = nextCameraTask();
+        assertTrue(recycled.isEmpty());
+
+        firstTask.run();
+        secondTask.run();
+        assertEquals(2, recycled.size());
+        assertSame(first, recycled.get(0));
+        assertSame(second, recycled.get(1));
+        assertEquals(0, pipeline.getDroppedFrames());
+        pipeline.stop();
+    }
+
+    @Test
+    public void framesAreDroppedWhenRingIsFull() throws Exception {
+        CountDownLatch workerBusy = new CountDownLatch(1);
+        CountDownLatch releaseWorker = new CountDownLatch(1);
+        CameraEntropyPipeline pipeline = new CameraEntropyPipeline(
+                EntropyHarvester.getInstance(), 2, FRAME_LENGTH, task -> {
+                    workerBusy.countDown();
+                    try {
+                        releaseWorker.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, recycled::add);
+
+        assertTrue(pipeline.offer(new byte[FRAME_LENGTH]));
+        assertTrue(workerBusy.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(pipeline.offer(new byte[FRAME_LENGTH]));
+        assertTrue(pipeline.offer(new byte[FRAME_LENGTH]));
+
+        byte[] dropped = new byte[FRAME_LENGTH];
+        assertFalse(pipeline.offer(dropped));
+        assertEquals(Arrays.asList(dropped), recycled);
+        assertEquals(1, pipeline.getDroppedFrames());
+
+        releaseWorker.countDown();
+        pipeline.stop();
+    }
+
+    @Test
+    public void finishedFramesAreNotRecycledAfterStop() throws Exception {
+        CameraEntropyPipeline pipeline = new CameraEntropyPipeline(
+                EntropyHarvester.getInstance(), 2, FRAME_LENGTH, cameraTasks::add, recycled::add);
+
+        assertTrue(pipeline.offer(new byte[FRAME_LENGTH]));
+        Runnable task = nextCameraTask();
+        pipeline.stop();
+        task.run();
+        assertTrue(recycled.isEmpty());
+
+        byte[] late = new byte[FRAME_LENGTH];
+        assertFalse(pipeline.offer(late));
+        assertEquals(Arrays.asList(late), recycled);
+    }
+}
@@ -0,0 +1,245 @@
+package org.ea.sqrl.processors;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.ea.sqrl.utils.EncryptionUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This testcase runs complete login flows against replayed server answers, checking that the
+ * flow handler walks through query and ident, the previous key loop and ask questions. It runs
+ * on Robolectric as the protocol code logs and encodes through the platform classes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class CommunicationFlowReplayUnitTest {
+    private static final String SITE = "https://example.com";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /**
+     * Builds requests without an unlocked identity, the replayed server never checks them.
+     */
+    private static class UnsignedCommunicationHandler extends CommunicationHandler {
+        private final int previousKeys;
+        private int previousKeyIndex = 0;
+        final List<String> commands = new ArrayList<>();
+
+        UnsignedCommunicationHandler(int previousKeys) {
+            super(null);
+            this.previousKeys = previousKeys;
+        }
+
+        @Override
+        public String createClientQuery(boolean noiptest, boolean requestServerUnlockKey) {
+            commands.add("query");
+            return "ver=1\r\ncmd=query\r\n";
+        }
+
+        @Override
+        public String createClientLogin(EntropyHarvester entropyHarvester, boolean noiptest, boolean clientProvidedSession) {
+            commands.add("ident");
+            return "ver=1\r\ncmd=ident\r\n";
+        }
+
+        @Override
+        public String createPostParams(String client, String server, boolean unlockServerKey) throws Exception {
+            return "client=" + encode(client) + "&server=" + encode(server);
+        }
+
+        @Override
+        void setProgressState(int progressState) {}
+
+        @Override
+        public boolean hasMorePreviousKeys() {
+            return previousKeyIndex < previousKeys;
+        }
+
+        @Override
+        public void increasePreviousKeyIndex() {
+            previousKeyIndex++;
+            super.increasePreviousKeyIndex();
+        }
+
+        @Override
+        public void resetPreviousKeys() {
+            previousKeyIndex = 0;
+            super.resetPreviousKeys();
+        }
+    }
+
+    private static class TestContext extends ContextWrapper {
+        TestContext() {
+            super(null);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+
+    private static String encode(String value) throws Exception {
+        return EncryptionUtils.encodeUrlSafe(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] exchange(String nut, String response) throws Exception {
+        return new String[] {SITE + "/sqrl?nut=" + nut, "", encode("ver=1\r\nnut=" + nut + "\r\n" + response)};
+    }
+
+    private CommunicationFlowHandler createFlow(UnsignedCommunicationHandler commHandler, ReplayTransport transport) throws Exception {
+        commHandler.setTransport(transport);
+
+        CommunicationFlowHandler flowHandler = new CommunicationFlowHandler(new TestContext(), commHandler, 0) {
+            @Override
+            void touchCurrentIdentity() {}
+        };
+        flowHandler.setUseSSL(true);
+        flowHandler.setServerData("sqrl://example.com/sqrl?nut=1");
+        flowHandler.setQueryLink("/sqrl?nut=1");
+        flowHandler.setDomain("example.com", "/sqrl?nut=1");
+        flowHandler.addAction(CommunicationFlowHandler.Action.QUERY_WITHOUT_SUK_QRCODE);
+        flowHandler.addAction(CommunicationFlowHandler.Action.LOGIN);
+        return flowHandler;
+    }
+
+    private static void runToEnd(CommunicationFlowHandler flowHandler) throws Exception {
+        CountDownLatch ended = new CountDownLatch(1);
+        flowHandler.setDoneAction(screen -> ended.countDown());
+        flowHandler.setErrorAction(screen -> ended.countDown());
+        flowHandler.start();
+        assertTrue(ended.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The question has been handed to the dialog once the step that got it has finished.
+     */
+    private static CountDownLatch awaitQuestion(CommunicationFlowHandler flowHandler) {
+        CountDownLatch asked = new CountDownLatch(1);
+        flowHandler.setFlowListener(new CommunicationFlowHandler.FlowListener() {
+            @Override
+            public void onStateChanged(CommunicationFlowHandler.State state) {}
+
+            @Override
+            public void onStepFinished(CommunicationFlowHandler.Action action, long durationInMilliSeconds) {
+                if (flowHandler.getState() == CommunicationFlowHandler.State.WAITING_FOR_USER) {
+                    asked.countDown();
+                }
+            }
+        });
+        return asked;
+    }
+
+    @Test
+    public void queryThenIdent() throws Exception {
+        ReplayTransport transport = new ReplayTransport(Arrays.asList(
+                exchange("1", "tif=5\r\nqry=/sqrl?nut=2\r\n"),
+                exchange("2", "tif=5\r\nqry=/sqrl?nut=3\r\n")
+        ), 0);
+        UnsignedCommunicationHandler commHandler = new UnsignedCommunicationHandler(0);
+        CommunicationFlowHandler flowHandler = createFlow(commHandler, transport);
+
+        runToEnd(flowHandler);
+        assertEquals(CommunicationFlowHandler.State.DONE, flowHandler.getState());
+        assertEquals(Arrays.asList("query", "ident"), commHandler.commands);
+        assertEquals(0, transport.getRemainingExchanges());
+    }
+
+    @Test
+    public void doneActionSurvivesDetachedScreen() throws Exception {
+        ReplayTransport transport = new ReplayTransport(Arrays.asList(
+                exchange("1", "tif=5\r\nqry=/sqrl?nut=2\r\n"),
+                exchange("2", "tif=5\r\nqry=/sqrl?nut=3\r\n")
+        ), 0);
+        CommunicationFlowHandler flowHandler = createFlow(new UnsignedCommunicationHandler(0), transport);
+
+        CountDownLatch done = new CountDownLatch(1);
+        flowHandler.setDoneAction(screen -> done.countDown());
+        // The screen that set the action goes away, as it does on a rotation
+        flowHandler.detach(null);
+        flowHandler.start();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void triesPreviousKeysUntilMatch() throws Exception {
+        ReplayTransport transport = new ReplayTransport(Arrays.asList(
+                exchange("1", "tif=4\r\nqry=/sqrl?nut=2\r\n"),
+                exchange("2", "tif=6\r\nqry=/sqrl?nut=3\r\n"),
+                exchange("3", "tif=6\r\nqry=/sqrl?nut=4\r\n")
+        ), 0);
+        UnsignedCommunicationHandler commHandler = new UnsignedCommunicationHandler(3);
+        CommunicationFlowHandler flowHandler = createFlow(commHandler, transport);
+
+        runToEnd(flowHandler);
+        assertEquals(CommunicationFlowHandler.State.DONE, flowHandler.getState());
+        assertEquals(Arrays.asList("query", "query", "ident"), commHandler.commands);
+        assertEquals(0, transport.getRemainingExchanges());
+    }
+
+    @Test
+    public void waitsForAnswerToAsk() throws Exception {
+        String ask = encode("Continue?") + "~" + encode("Yes");
+        ReplayTransport transport = new ReplayTransport(Arrays.asList(
+                exchange("1", "tif=5\r\nqry=/sqrl?nut=2\r\nask=" + ask + "\r\n"),
+                exchange("2", "tif=5\r\nqry=/sqrl?nut=3\r\n")
+        ), 0);
+        UnsignedCommunicationHandler commHandler = new UnsignedCommunicationHandler(0);
+        CommunicationFlowHandler flowHandler = createFlow(commHandler, transport);
+
+        CountDownLatch asked = awaitQuestion(flowHandler);
+        CountDownLatch ended = new CountDownLatch(1);
+        flowHandler.setDoneAction(screen -> ended.countDown());
+        flowHandler.setErrorAction(screen -> ended.countDown());
+        flowHandler.start();
+
+        assertTrue(asked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, transport.getRemainingExchanges());
+        commHandler.setAskButton("1");
+
+        assertTrue(ended.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(CommunicationFlowHandler.State.DONE, flowHandler.getState());
+        assertEquals(Arrays.asList("query", "ident"), commHandler.commands);
+    }
+
+    @Test
+    public void answerAfterCancelDoesNotContinue() throws Exception {
+        String ask = encode("Continue?") + "~" + encode("Yes");
+        ReplayTransport transport = new ReplayTransport(Arrays.asList(
+                exchange("1", "tif=5\r\nqry=/sqrl?nut=2\r\nask=" + ask + "\r\n"),
+                exchange("2", "tif=5\r\nqry=/sqrl?nut=3\r\n")
+        ), 0);
+        UnsignedCommunicationHandler commHandler = new UnsignedCommunicationHandler(0);
+        CommunicationFlowHandler flowHandler = createFlow(commHandler, transport);
+        CountDownLatch asked = awaitQuestion(flowHandler);
+
+        CountDownLatch done = new CountDownLatch(1);
+        flowHandler.setDoneAction(screen -> done.countDown());
+        flowHandler.start();
+
+        assertTrue(asked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        flowHandler.cancel();
+        commHandler.setAskButton("1");
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(CommunicationFlowHandler.State.CANCELLED, flowHandler.getState());
+        assertEquals(Arrays.asList("query"), commHandler.commands);
+        assertEquals(1, transport.getRemainingExchanges());
+    }
+}